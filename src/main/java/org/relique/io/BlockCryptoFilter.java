@@ -0,0 +1,39 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2001  Jonathan Ackerman
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.io;
+
+/**
+ * Decryption filter that can decrypt a block of bytes at a time, instead
+ * of one byte at a time.
+ *
+ * Streams reading an encrypted file read a block of encrypted bytes
+ * themselves and pass it to the filter to be decrypted in place.
+ */
+public interface BlockCryptoFilter extends CryptoFilter
+{
+	/**
+	 * Decrypt bytes that were read from an encrypted stream, replacing
+	 * them with the clear-text bytes.
+	 *
+	 * @param b buffer containing the encrypted bytes.
+	 * @param off offset in b of the first byte to decrypt.
+	 * @param len number of bytes to decrypt.
+	 */
+	abstract public void decrypt(byte[] b, int off, int len);
+}
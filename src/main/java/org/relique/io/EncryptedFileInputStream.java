@@ -46,7 +46,17 @@ public class EncryptedFileInputStream extends InputStream
 
 	public int read(byte[] b, int off, int len) throws IOException
 	{
-		if (filter != null)
+		if (filter instanceof BlockCryptoFilter)
+		{
+			/*
+			 * Read a block of encrypted bytes and decrypt them all at once.
+			 */
+			int nRead = in.read(b, off, len);
+			if (nRead > 0)
+				((BlockCryptoFilter)filter).decrypt(b, off, nRead);
+			return nRead;
+		}
+		else if (filter != null)
 			return filter.read(in, b, off, len);
 		else
 			return in.read(b, off, len);
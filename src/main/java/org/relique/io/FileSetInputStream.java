@@ -19,14 +19,23 @@
 
 package org.relique.io;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
 
 import org.relique.jdbc.csv.CsvResources;
 
@@ -44,7 +53,7 @@ public class FileSetInputStream extends InputStream
 {
 	private String dirName;
 	private List<String> fileNames;
-	private EncryptedFileInputStream currentFile;
+	private InputStream currentFile;
 	private boolean readingHeader;
 	private String tail;
 	private int pos;
@@ -58,6 +67,64 @@ public class FileSetInputStream extends InputStream
 	private CryptoFilter filter;
 	private int skipLeadingDataLines;
 	private boolean isClosed = false;
+	private int decompressionThreads;
+
+	/** ZIP file containing the files, or null when reading a directory */
+	private MappedZipFile zipFile = null;
+	private List<String> zipEntryNames;
+	private int zipEntriesStarted = 0;
+	private ExecutorService zipEntryPool = null;
+	private LinkedList<FutureTask<InputStream>> zipEntryTasks = new LinkedList<FutureTask<InputStream>>();
+
+	/** Largest ZIP entry decompressed into memory in advance */
+	private static final int MAX_PREFETCH_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * Decompresses a ZIP entry in another thread, before it is needed.
+	 */
+	private class ZipEntryReader implements Callable<InputStream>
+	{
+		private String entryName;
+
+		private ZipEntryReader(String entryName)
+		{
+			this.entryName = entryName;
+		}
+
+		public InputStream call() throws IOException
+		{
+			ZipEntry entry = zipFile.getEntry(entryName);
+			InputStream in = zipFile.getInputStream(entry);
+			if (entry.getMethod() == ZipEntry.STORED || entry.getSize() < 0 ||
+				entry.getSize() > MAX_PREFETCH_SIZE)
+			{
+				/*
+				 * Mapped entries need no decompression, and large entries
+				 * are read only when they are needed.
+				 */
+				return in;
+			}
+
+			byte[] b = new byte[(int)entry.getSize()];
+			int nRead;
+			try
+			{
+				nRead = ParallelGzipInputStream.readFully(in, b, 0, b.length);
+			}
+			finally
+			{
+				in.close();
+			}
+			return new ByteArrayInputStream(b, 0, nRead);
+		}
+	}
+
+	/** Bytes read from current file, but not yet returned */
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int bufferPos = 0;
+	private int bufferLength = 0;
+
+	private static final int BUFFER_SIZE = 8192;
 
 	/**
 	 *
@@ -81,9 +148,118 @@ public class FileSetInputStream extends InputStream
 			String[] fieldsInName, String separator, boolean prepend,
 			boolean headerless, CryptoFilter filter, int skipLeadingDataLines)
 			throws IOException
+	{
+		this(dirName, fileNamePattern, fieldsInName, separator, prepend,
+			headerless, filter, skipLeadingDataLines, null);
+	}
+
+	/**
+	 *
+	 * @param dirName
+	 *            the containing directory
+	 * @param fileNamePattern
+	 *            the regular expression describing the file name and the extra
+	 *            fields.
+	 * @param fieldsInName
+	 *            the names of the fields contained in the file name.
+	 * @param separator
+	 *            the separator to use when faking output (typically the ",").
+	 * @param prepend
+	 *            whether the extra fields should precede the ones from the file
+	 *            content.
+	 * @param headerless
+	 * @param skipLeadingDataLines
+	 * @param fileFilter
+	 *            decides which of the files matching fileNamePattern need to
+	 *            be read, or null to read all of them. If no file is
+	 *            accepted, the first matching file is still read so that
+	 *            the header line is available.
+	 * @throws IOException
+	 */
+	public FileSetInputStream(String dirName, String fileNamePattern,
+			String[] fieldsInName, String separator, boolean prepend,
+			boolean headerless, CryptoFilter filter, int skipLeadingDataLines,
+			FilenameFilter fileFilter) throws IOException
+	{
+		this(dirName, fileNamePattern, fieldsInName, separator, prepend,
+			headerless, filter, skipLeadingDataLines, fileFilter, 1);
+	}
+
+	/**
+	 *
+	 * @param dirName
+	 *            the containing directory
+	 * @param fileNamePattern
+	 *            the regular expression describing the file name and the extra
+	 *            fields.
+	 * @param fieldsInName
+	 *            the names of the fields contained in the file name.
+	 * @param separator
+	 *            the separator to use when faking output (typically the ",").
+	 * @param prepend
+	 *            whether the extra fields should precede the ones from the file
+	 *            content.
+	 * @param headerless
+	 * @param skipLeadingDataLines
+	 * @param fileFilter
+	 *            decides which of the files matching fileNamePattern need to
+	 *            be read, or null to read all of them.
+	 * @param decompressionThreads
+	 *            number of threads decompressing each file with a name
+	 *            ending in .gz.
+	 * @throws IOException
+	 */
+	public FileSetInputStream(String dirName, String fileNamePattern,
+			String[] fieldsInName, String separator, boolean prepend,
+			boolean headerless, CryptoFilter filter, int skipLeadingDataLines,
+			FilenameFilter fileFilter, int decompressionThreads) throws IOException
+	{
+		this(dirName, null, fileNamePattern, fieldsInName, separator, prepend,
+			headerless, filter, skipLeadingDataLines, fileFilter, decompressionThreads);
+	}
+
+	/**
+	 * Collapse entries of a ZIP file matching a given pattern into one
+	 * input stream.
+	 *
+	 * @param zipFile
+	 *            the ZIP file containing the entries.
+	 * @param fileNamePattern
+	 *            the regular expression describing the entry name and the
+	 *            extra fields.
+	 * @param fieldsInName
+	 *            the names of the fields contained in the entry name.
+	 * @param separator
+	 *            the separator to use when faking output (typically the ",").
+	 * @param prepend
+	 *            whether the extra fields should precede the ones from the
+	 *            entry content.
+	 * @param headerless
+	 * @param skipLeadingDataLines
+	 * @param decompressionThreads
+	 *            number of threads decompressing entries before they are
+	 *            needed.
+	 * @throws IOException
+	 */
+	public FileSetInputStream(MappedZipFile zipFile, String fileNamePattern,
+			String[] fieldsInName, String separator, boolean prepend,
+			boolean headerless, int skipLeadingDataLines,
+			int decompressionThreads) throws IOException
+	{
+		this("", zipFile, fileNamePattern, fieldsInName, separator, prepend,
+			headerless, null, skipLeadingDataLines, null, decompressionThreads);
+	}
+
+	private FileSetInputStream(String dirName, MappedZipFile zipFile,
+			String fileNamePattern, String[] fieldsInName, String separator,
+			boolean prepend, boolean headerless, CryptoFilter filter,
+			int skipLeadingDataLines, FilenameFilter fileFilter,
+			int decompressionThreads) throws IOException
 	{
 		this.dirName = dirName;
+		this.zipFile = zipFile;
 		this.filter = filter;
+		this.decompressionThreads = decompressionThreads;
 		this.skipLeadingDataLines = skipLeadingDataLines;
 		if (!headerless)
 			this.skipLeadingDataLines++;
@@ -122,7 +298,11 @@ public class FileSetInputStream extends InputStream
 
 		fileNames = new ArrayList<String>();
 		File root = new File(dirName);
-		String[] candidates = root.list();
+		String[] candidates;
+		if (zipFile != null)
+			candidates = zipFile.getEntryNames().toArray(new String[0]);
+		else
+			candidates = root.list();
 
 		fileNameRE = Pattern.compile(fileNamePattern);
 
@@ -140,14 +320,32 @@ public class FileSetInputStream extends InputStream
 			return;
 		}
 
+		if (fileFilter != null)
+		{
+			/*
+			 * Drop files that cannot contain any rows the query is looking for.
+			 * All files share the same header, so any remaining file can provide it.
+			 */
+			List<String> acceptedFileNames = new ArrayList<String>();
+			for (String fileName : fileNames)
+			{
+				if (fileFilter.accept(root, fileName))
+					acceptedFileNames.add(fileName);
+			}
+			if (acceptedFileNames.isEmpty())
+				acceptedFileNames.add(fileNames.get(0));
+			fileNames = acceptedFileNames;
+		}
+
+		zipEntryNames = new ArrayList<String>(fileNames);
 		fileNameRE = Pattern.compile(".*" + fileNamePattern);
 		readingHeader = true;
 		String currentFileName = fileNames.remove(0);
 		dataTail = getTailFromName(dirName + currentFileName);
 		if (headerless)
 			tail = dataTail;
-		currentFile = new EncryptedFileInputStream(dirName + currentFileName, filter);
-		lookahead = currentFile.read();
+		currentFile = openFile(dirName + currentFileName);
+		lookahead = readFileByte();
 		doingTail = prepend;
 		if (doingTail)
 			pos = 1;
@@ -157,6 +355,7 @@ public class FileSetInputStream extends InputStream
 	public void close() throws IOException
 	{
 		isClosed = true;
+		stopZipEntryPool();
 		if (currentFile != null)
 		{
 			currentFile.close();
@@ -164,6 +363,48 @@ public class FileSetInputStream extends InputStream
 		}
 	}
 
+	private void stopZipEntryPool()
+	{
+		/*
+		 * Entries that were opened in advance but never read must still
+		 * be closed.  Tasks that have not started yet are cancelled.
+		 */
+		boolean interrupted = false;
+		while (zipEntryTasks.size() > 0)
+		{
+			FutureTask<InputStream> task = zipEntryTasks.removeFirst();
+			if (task.cancel(false) || interrupted)
+				continue;
+			try
+			{
+				task.get().close();
+			}
+			catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+			catch (ExecutionException e)
+			{
+				/*
+				 * Entry could not be opened, so there is nothing to close.
+				 */
+			}
+			catch (IOException e)
+			{
+				/*
+				 * Entry is not needed any more, so ignore errors closing it.
+				 */
+			}
+		}
+		if (zipEntryPool != null)
+		{
+			zipEntryPool.shutdownNow();
+			zipEntryPool = null;
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
 	/**
 	 * Reads the next byte of data from the input stream. The value byte is
 	 * returned as an int in the range 0 to 255. if the end of the current
@@ -186,6 +427,93 @@ public class FileSetInputStream extends InputStream
 		if (isClosed)
 			throw new IOException(CsvResources.getString("streamClosed"));
 
+		return readByte();
+	}
+
+	/**
+	 * Reads up to len bytes of data into an array, with the same bytes
+	 * as calling read() len times.  Runs of bytes in the middle of a line
+	 * are copied directly from the file buffer.
+	 *
+	 * @return the number of bytes read, or -1 if the end of the stream is
+	 *         reached.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (isClosed)
+			throw new IOException(CsvResources.getString("streamClosed"));
+
+		if (off < 0 || len < 0 || len > b.length - off)
+			throw new IndexOutOfBoundsException();
+		if (len == 0)
+			return 0;
+
+		int n = 0;
+		while (n < len)
+		{
+			if (!doingTail && lookahead >= 0 && lookahead != '\n' &&
+				bufferPos < bufferLength)
+			{
+				/*
+				 * Count bytes following lookahead that do not end a line.
+				 * Lookahead and all but the last of these bytes are returned,
+				 * and the last becomes the new lookahead.
+				 */
+				int count = 0;
+				int maxCount = Math.min(len - n, bufferLength - bufferPos);
+				while (count < maxCount)
+				{
+					byte c = buffer[bufferPos + count];
+					if (c == '\n' || c == '\r')
+						break;
+					count++;
+				}
+				if (count > 0)
+				{
+					b[off + n] = (byte)lookahead;
+					System.arraycopy(buffer, bufferPos, b, off + n + 1, count - 1);
+					lookahead = buffer[bufferPos + count - 1] & 0xFF;
+					bufferPos += count;
+					currentLineLength += count;
+					n += count;
+					continue;
+				}
+			}
+
+			int ch = readByte();
+			if (ch == -1)
+				break;
+			b[off + n] = (byte)ch;
+			n++;
+		}
+		return (n == 0) ? -1 : n;
+	}
+
+	/**
+	 * Read next byte from the current file, filling the buffer from the
+	 * file when it is empty.
+	 */
+	private int readFileByte() throws IOException
+	{
+		if (bufferPos == bufferLength)
+		{
+			bufferPos = 0;
+			bufferLength = currentFile.read(buffer, 0, buffer.length);
+			if (bufferLength <= 0)
+			{
+				bufferLength = 0;
+				return -1;
+			}
+		}
+		return buffer[bufferPos++] & 0xFF;
+	}
+
+	private int readByte() throws IOException
+	{
 		// run out of input on all subfiles
 		if (currentFile == null)
 			return -1;
@@ -204,7 +532,7 @@ public class FileSetInputStream extends InputStream
 		ch = lookahead;
 		do
 		{
-			lookahead = currentFile.read();
+			lookahead = readFileByte();
 			// we ignore \r, which breaks things on files created with MacOS9
 		}
 		while (lookahead == '\r');
@@ -240,30 +568,87 @@ public class FileSetInputStream extends InputStream
 			else
 			{
 				currentFile = null;
+				stopZipEntryPool();
 				return -1;
 			}
 			tail = getTailFromName(dirName + currentFileName);
-			currentFile = new EncryptedFileInputStream(dirName + currentFileName, filter);
+			currentFile = openFile(dirName + currentFileName);
 			// if files do contain a header, skip it
 			for(int i = 0; i < this.skipLeadingDataLines; i++)
 			{
 				int ch2;
 				do
 				{
-					ch2 = currentFile.read();
+					ch2 = readFileByte();
 				}
 				while (ch2 != '\n' && ch2 != -1);
 			}
 			doingTail = prepend;
 			if (doingTail)
 				pos = 1;
-			lookahead = currentFile.read();
-			return read();
+			lookahead = readFileByte();
+			return readByte();
 		}
 		currentLineLength++;
 		return ch;
 	}
 
+	private InputStream openFile(String fileName) throws IOException
+	{
+		/*
+		 * Each file is encrypted separately, starting from the beginning of the key.
+		 */
+		if (filter != null)
+			filter.reset();
+		bufferPos = 0;
+		bufferLength = 0;
+		if (zipFile != null)
+			return openZipEntry(fileName);
+		InputStream in = new EncryptedFileInputStream(fileName, filter);
+		if (ParallelGzipInputStream.isGzipFileName(fileName))
+			in = new ParallelGzipInputStream(in, decompressionThreads);
+		return in;
+	}
+
+	private InputStream openZipEntry(String entryName) throws IOException
+	{
+		if (decompressionThreads <= 1)
+			return zipFile.getInputStream(zipFile.getEntry(entryName));
+
+		/*
+		 * Start decompressing the following entries in other threads, so
+		 * they are ready when this entry has been read.  Entries are
+		 * opened in the same order as the names in the list.
+		 */
+		if (zipEntryPool == null)
+			zipEntryPool = ParallelGzipInputStream.createPool(decompressionThreads, "CsvJdbc zip entry");
+		while (zipEntryTasks.size() <= decompressionThreads && zipEntriesStarted < zipEntryNames.size())
+		{
+			FutureTask<InputStream> task = new FutureTask<InputStream>(
+				new ZipEntryReader(zipEntryNames.get(zipEntriesStarted)));
+			zipEntryPool.execute(task);
+			zipEntryTasks.add(task);
+			zipEntriesStarted++;
+		}
+		try
+		{
+			return zipEntryTasks.removeFirst().get();
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException(e.getMessage());
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new IOException(cause.toString());
+		}
+	}
+
 	private String getTailFromName(String currentName)
 	{
 		Matcher m = fileNameRE.matcher(currentName);
@@ -0,0 +1,255 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2001  Jonathan Ackerman
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * ZIP file with entries that are not compressed (STORED entries) read
+ * directly from memory mapped regions of the ZIP file.
+ *
+ * ZipFile does not give the position of entries in the file, so the
+ * position of the data of each STORED entry is found by reading the
+ * central directory at the end of the ZIP file.
+ */
+public class MappedZipFile
+{
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int END_LENGTH = 22;
+	private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+	private static final int CENTRAL_SIGNATURE = 0x02014b50;
+	private static final int CENTRAL_LENGTH = 46;
+	private static final int LOCAL_SIGNATURE = 0x04034b50;
+	private static final int LOCAL_LENGTH = 30;
+	private static final int FLAG_ENCRYPTED = 1;
+
+	private File file;
+	private ZipFile zipFile;
+
+	/** Position in ZIP file of the data of each STORED entry */
+	private HashMap<String, Long> storedDataOffsets = null;
+
+	/**
+	 * Read bytes from a memory mapped region of a file.
+	 */
+	private static class ByteBufferInputStream extends InputStream
+	{
+		private ByteBuffer buffer;
+
+		private ByteBufferInputStream(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read()
+		{
+			if (!buffer.hasRemaining())
+				return -1;
+			return buffer.get() & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len)
+		{
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public long skip(long n)
+		{
+			int skipped = (int)Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available()
+		{
+			return buffer.remaining();
+		}
+	}
+
+	public MappedZipFile(String fileName) throws IOException
+	{
+		this.file = new File(fileName);
+		this.zipFile = new ZipFile(file);
+	}
+
+	public ZipEntry getEntry(String name)
+	{
+		return zipFile.getEntry(name);
+	}
+
+	/**
+	 * Get names of all entries that are not directories, in the order they
+	 * are stored in the ZIP file.
+	 */
+	public List<String> getEntryNames()
+	{
+		List<String> names = new ArrayList<String>();
+		Enumeration<? extends ZipEntry> en = zipFile.entries();
+		while (en.hasMoreElements())
+		{
+			ZipEntry entry = en.nextElement();
+			if (!entry.isDirectory())
+				names.add(entry.getName());
+		}
+		return names;
+	}
+
+	/**
+	 * Get stream to read contents of an entry, mapping the entry into
+	 * memory if it is not compressed.  Entries can be read from several
+	 * threads at the same time.
+	 */
+	public InputStream getInputStream(ZipEntry entry) throws IOException
+	{
+		if (entry.getMethod() == ZipEntry.STORED && entry.getSize() > 0 &&
+			entry.getSize() <= Integer.MAX_VALUE)
+		{
+			Long offset = getStoredDataOffsets().get(entry.getName());
+			if (offset != null)
+				return new ByteBufferInputStream(map(offset.longValue(), entry.getSize()));
+		}
+		return zipFile.getInputStream(entry);
+	}
+
+	private ByteBuffer map(long offset, long size) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			/*
+			 * Mapping stays valid after the file is closed.
+			 */
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, size);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	private synchronized HashMap<String, Long> getStoredDataOffsets() throws IOException
+	{
+		if (storedDataOffsets == null)
+		{
+			storedDataOffsets = new HashMap<String, Long>();
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try
+			{
+				readCentralDirectory(raf);
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+		return storedDataOffsets;
+	}
+
+	/**
+	 * Find data offset of each STORED entry in the central directory.
+	 * Entries of ZIP64 files and encrypted entries are left for ZipFile
+	 * to read.
+	 */
+	private void readCentralDirectory(RandomAccessFile raf) throws IOException
+	{
+		long fileLength = raf.length();
+		int tailLength = (int)Math.min(fileLength, END_LENGTH + MAX_COMMENT_LENGTH);
+		byte[] tail = new byte[tailLength];
+		raf.seek(fileLength - tailLength);
+		raf.readFully(tail);
+		int endOffset = -1;
+		for (int i = tailLength - END_LENGTH; i >= 0 && endOffset < 0; i--)
+		{
+			if (readInt(tail, i) == END_SIGNATURE)
+				endOffset = i;
+		}
+		if (endOffset < 0)
+			return;
+
+		long directoryLength = readInt(tail, endOffset + 12) & 0xFFFFFFFFL;
+		long directoryOffset = readInt(tail, endOffset + 16) & 0xFFFFFFFFL;
+		if (directoryOffset == 0xFFFFFFFFL || directoryOffset + directoryLength > fileLength)
+			return;
+
+		byte[] directory = new byte[(int)directoryLength];
+		raf.seek(directoryOffset);
+		raf.readFully(directory);
+		byte[] localHeader = new byte[LOCAL_LENGTH];
+		int i = 0;
+		while (i + CENTRAL_LENGTH <= directory.length && readInt(directory, i) == CENTRAL_SIGNATURE)
+		{
+			int flags = readShort(directory, i + 8);
+			int method = readShort(directory, i + 10);
+			int nameLength = readShort(directory, i + 28);
+			int extraLength = readShort(directory, i + 30);
+			int commentLength = readShort(directory, i + 32);
+			long localOffset = readInt(directory, i + 42) & 0xFFFFFFFFL;
+			if (method == ZipEntry.STORED && (flags & FLAG_ENCRYPTED) == 0 &&
+				localOffset != 0xFFFFFFFFL && i + CENTRAL_LENGTH + nameLength <= directory.length)
+			{
+				String name = new String(directory, i + CENTRAL_LENGTH, nameLength, "UTF-8");
+				raf.seek(localOffset);
+				raf.readFully(localHeader);
+				if (readInt(localHeader, 0) == LOCAL_SIGNATURE)
+				{
+					long dataOffset = localOffset + LOCAL_LENGTH +
+						readShort(localHeader, 26) + readShort(localHeader, 28);
+					storedDataOffsets.put(name, Long.valueOf(dataOffset));
+				}
+			}
+			i += CENTRAL_LENGTH + nameLength + extraLength + commentLength;
+		}
+	}
+
+	private static int readShort(byte[] b, int off)
+	{
+		return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8);
+	}
+
+	private static int readInt(byte[] b, int off)
+	{
+		return readShort(b, off) | (readShort(b, off + 2) << 16);
+	}
+
+	public void close() throws IOException
+	{
+		zipFile.close();
+	}
+}
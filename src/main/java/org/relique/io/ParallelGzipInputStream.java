@@ -0,0 +1,371 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2001  Jonathan Ackerman
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import org.relique.jdbc.csv.CsvResources;
+
+/**
+ * Decompresses a gzip file.
+ *
+ * Blocked gzip files (as written by bgzip) are made of many small gzip
+ * members, each giving its compressed size in a "BC" extra field.  The
+ * members of these files are read one after another and decompressed
+ * by a pool of threads, then returned in their original order.
+ *
+ * Any other gzip file is decompressed in the reading thread.
+ */
+public class ParallelGzipInputStream extends InputStream
+{
+	private static final int HEADER_LENGTH = 10;
+	private static final int TRAILER_LENGTH = 8;
+	private static final int FLAG_EXTRA = 4;
+	private static final int GZIP_MAGIC_1 = 0x1f;
+	private static final int GZIP_MAGIC_2 = 0x8b;
+	private static final int METHOD_DEFLATE = 8;
+
+	private InputStream in;
+	private InputStream sequentialIn = null;
+	private int nThreads;
+	private ExecutorService pool = null;
+	private LinkedList<FutureTask<byte[]>> pending = new LinkedList<FutureTask<byte[]>>();
+	private boolean isEndOfMembers = false;
+	private boolean isClosed = false;
+	private byte[] block = new byte[0];
+	private int blockPos = 0;
+
+	/**
+	 * Decompress members of a gzip file as a separate task.
+	 */
+	private static class InflateTask implements Callable<byte[]>
+	{
+		private byte[] member;
+		private int dataOffset;
+
+		private InflateTask(byte[] member, int dataOffset)
+		{
+			this.member = member;
+			this.dataOffset = dataOffset;
+		}
+
+		public byte[] call() throws IOException
+		{
+			int trailerOffset = member.length - TRAILER_LENGTH;
+			long expectedCrc = readInt(member, trailerOffset) & 0xFFFFFFFFL;
+			int size = readInt(member, trailerOffset + 4);
+			if (size < 0)
+				throw new IOException(CsvResources.getString("invalidGzipBlock"));
+
+			byte[] result = new byte[size];
+			Inflater inflater = new Inflater(true);
+			try
+			{
+				inflater.setInput(member, dataOffset, trailerOffset - dataOffset);
+				int nInflated = 0;
+				while (nInflated < size && !inflater.finished())
+				{
+					int n = inflater.inflate(result, nInflated, size - nInflated);
+					if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						break;
+					nInflated += n;
+				}
+				if (nInflated != size)
+					throw new IOException(CsvResources.getString("invalidGzipBlock"));
+			}
+			catch (DataFormatException e)
+			{
+				throw new IOException(CsvResources.getString("invalidGzipBlock") + ": " + e.getMessage());
+			}
+			finally
+			{
+				inflater.end();
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(result, 0, size);
+			if (crc.getValue() != expectedCrc)
+				throw new IOException(CsvResources.getString("invalidGzipBlock"));
+			return result;
+		}
+	}
+
+	/**
+	 * @param in compressed input stream.
+	 * @param nThreads number of threads decompressing members of blocked
+	 * gzip files.
+	 */
+	public ParallelGzipInputStream(InputStream in, int nThreads)
+	{
+		this.in = in;
+		this.nThreads = nThreads;
+	}
+
+	/**
+	 * Does file name show that the file is compressed with gzip?
+	 */
+	public static boolean isGzipFileName(String fileName)
+	{
+		return fileName.toLowerCase().endsWith(".gz");
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if (!fillBlock())
+			return (sequentialIn != null) ? sequentialIn.read() : -1;
+		return block[blockPos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (off < 0 || len < 0 || len > b.length - off)
+			throw new IndexOutOfBoundsException();
+		if (len == 0)
+			return 0;
+		if (!fillBlock())
+			return (sequentialIn != null) ? sequentialIn.read(b, off, len) : -1;
+		int n = Math.min(len, block.length - blockPos);
+		System.arraycopy(block, blockPos, b, off, n);
+		blockPos += n;
+		return n;
+	}
+
+	/**
+	 * Make sure there are decompressed bytes waiting to be read.
+	 *
+	 * @return false if no bytes remain from blocked gzip members.
+	 */
+	private boolean fillBlock() throws IOException
+	{
+		if (isClosed)
+			throw new IOException(CsvResources.getString("streamClosed"));
+
+		while (blockPos == block.length)
+		{
+			startTasks();
+			if (pending.isEmpty())
+				return false;
+			block = getResult(pending.removeFirst());
+			blockPos = 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Read members and start decompressing them, keeping every thread busy
+	 * with a member waiting for each thread.
+	 */
+	private void startTasks() throws IOException
+	{
+		int maxPending = (nThreads > 1) ? nThreads * 2 : 1;
+		while (!isEndOfMembers && pending.size() < maxPending)
+		{
+			FutureTask<byte[]> task = readMember();
+			if (task == null)
+			{
+				isEndOfMembers = true;
+				break;
+			}
+			pending.add(task);
+			if (nThreads > 1)
+			{
+				if (pool == null)
+					pool = createPool(nThreads, "CsvJdbc decompression");
+				pool.execute(task);
+			}
+			else
+			{
+				task.run();
+			}
+		}
+	}
+
+	/**
+	 * Create pool of daemon threads, so an unclosed stream does not stop
+	 * the JVM from exiting.
+	 */
+	static ExecutorService createPool(int nThreads, final String threadName)
+	{
+		return Executors.newFixedThreadPool(nThreads, new ThreadFactory()
+		{
+			private int threadCount = 0;
+
+			public Thread newThread(Runnable r)
+			{
+				threadCount++;
+				Thread thread = new Thread(r, threadName + " " + threadCount);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	private byte[] getResult(FutureTask<byte[]> task) throws IOException
+	{
+		try
+		{
+			return task.get();
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException(e.getMessage());
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new IOException(CsvResources.getString("invalidGzipBlock") + ": " + cause);
+		}
+	}
+
+	/**
+	 * Read next member of a blocked gzip file.
+	 *
+	 * @return task to decompress the member, or null at the end of the
+	 * file or if the remaining input must be decompressed sequentially.
+	 */
+	private FutureTask<byte[]> readMember() throws IOException
+	{
+		byte[] header = new byte[HEADER_LENGTH + 2];
+		int nRead = readFully(in, header, 0, HEADER_LENGTH);
+		if (nRead == 0)
+			return null;
+		if (nRead < HEADER_LENGTH || (header[0] & 0xFF) != GZIP_MAGIC_1 ||
+			(header[1] & 0xFF) != GZIP_MAGIC_2 || (header[2] & 0xFF) != METHOD_DEFLATE ||
+			(header[3] & 0xFF) != FLAG_EXTRA)
+		{
+			startSequential(header, nRead);
+			return null;
+		}
+		nRead += readFully(in, header, HEADER_LENGTH, 2);
+		if (nRead < header.length)
+		{
+			startSequential(header, nRead);
+			return null;
+		}
+
+		int extraLength = (header[HEADER_LENGTH] & 0xFF) | ((header[HEADER_LENGTH + 1] & 0xFF) << 8);
+		byte[] extra = new byte[extraLength];
+		nRead = readFully(in, extra, 0, extraLength);
+		int blockSize = (nRead == extraLength) ? getBlockSize(extra) : -1;
+		int dataOffset = header.length + extraLength;
+		if (blockSize < dataOffset + TRAILER_LENGTH)
+		{
+			/*
+			 * Not a blocked gzip member, so decompress it and everything
+			 * after it in this thread.
+			 */
+			byte[] bytes = new byte[header.length + nRead];
+			System.arraycopy(header, 0, bytes, 0, header.length);
+			System.arraycopy(extra, 0, bytes, header.length, nRead);
+			startSequential(bytes, bytes.length);
+			return null;
+		}
+
+		byte[] member = new byte[blockSize];
+		System.arraycopy(header, 0, member, 0, header.length);
+		System.arraycopy(extra, 0, member, header.length, extraLength);
+		if (readFully(in, member, dataOffset, blockSize - dataOffset) != blockSize - dataOffset)
+			throw new IOException(CsvResources.getString("invalidGzipBlock"));
+		return new FutureTask<byte[]>(new InflateTask(member, dataOffset));
+	}
+
+	/**
+	 * Find total size of gzip member in "BC" subfield of extra field.
+	 *
+	 * @return size in bytes, or -1 if there is no "BC" subfield.
+	 */
+	private static int getBlockSize(byte[] extra)
+	{
+		int i = 0;
+		while (i + 4 <= extra.length)
+		{
+			int subfieldLength = (extra[i + 2] & 0xFF) | ((extra[i + 3] & 0xFF) << 8);
+			if (extra[i] == 'B' && extra[i + 1] == 'C' && subfieldLength == 2 &&
+				i + 6 <= extra.length)
+			{
+				return ((extra[i + 4] & 0xFF) | ((extra[i + 5] & 0xFF) << 8)) + 1;
+			}
+			i += 4 + subfieldLength;
+		}
+		return -1;
+	}
+
+	/**
+	 * Decompress remaining input in this thread, starting with gzip header
+	 * bytes that have already been read.
+	 */
+	private void startSequential(byte[] header, int headerLength) throws IOException
+	{
+		sequentialIn = new GZIPInputStream(new SequenceInputStream(
+			new ByteArrayInputStream(header, 0, headerLength), in));
+	}
+
+	static int readFully(InputStream in, byte[] b, int off, int len) throws IOException
+	{
+		int total = 0;
+		while (total < len)
+		{
+			int n = in.read(b, off + total, len - total);
+			if (n < 0)
+				break;
+			total += n;
+		}
+		return total;
+	}
+
+	private static int readInt(byte[] b, int off)
+	{
+		return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8) |
+			((b[off + 2] & 0xFF) << 16) | ((b[off + 3] & 0xFF) << 24);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		isClosed = true;
+		if (pool != null)
+			pool.shutdownNow();
+		pending.clear();
+		if (sequentialIn != null)
+			sequentialIn.close();
+		else
+			in.close();
+	}
+}
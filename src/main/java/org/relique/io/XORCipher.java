@@ -24,7 +24,7 @@ import java.io.OutputStream;
 /**
  * Example encryption filter that XOR's the all data with a secret seed value.
  */
-public class XORCipher implements CryptoFilter
+public class XORCipher implements BlockCryptoFilter
 {
 	private int keyCounter;
 	private int[] scrambleKey;
@@ -51,10 +51,7 @@ public class XORCipher implements CryptoFilter
 	@Override
 	public int read(InputStream in, byte[] b) throws IOException
 	{
-		int len;
-		len = in.read(b, 0, b.length);
-		scrambleArray(b);
-		return len;
+		return read(in, b, 0, b.length);
 	}
 
 	@Override
@@ -62,10 +59,17 @@ public class XORCipher implements CryptoFilter
 			throws IOException
 	{
 		len = in.read(b, off, len);
-		scrambleArray(b);
+		if (len > 0)
+			decrypt(b, off, len);
 		return len;
 	}
 
+	@Override
+	public void decrypt(byte[] b, int off, int len)
+	{
+		scrambleArray(b, off, len);
+	}
+
 	@Override
 	public String toString()
 	{
@@ -114,17 +118,22 @@ public class XORCipher implements CryptoFilter
 	 *
 	 * @param org
 	 *            is the original byte array
-	 * @return
+	 * @param off
+	 *            is the offset of the first byte to scramble
+	 * @param len
+	 *            is the number of bytes to scramble
 	 */
-	private void scrambleArray(byte[] org)
+	private void scrambleArray(byte[] org, int off, int len)
 	{
 		if (scrambleKey.length > 0)
 		{
-			for (int i = 0; i < org.length; i++)
+			int end = off + len;
+			for (int i = off; i < end; i++)
 			{
 				org[i] ^= scrambleKey[keyCounter];
 				keyCounter++;
-				keyCounter %= scrambleKey.length;
+				if (keyCounter == scrambleKey.length)
+					keyCounter = 0;
 			}
 		}
 	}
@@ -30,6 +30,30 @@ abstract class AggregateFunction extends Expression
 	 */
 	public static final String GROUPING_COLUMN_NAME = "@GROUPROWS";
 
+	/*
+	 * Key for map of aggregate function states in database rows,
+	 * when the aggregate function values have already been calculated.
+	 */
+	public static final String GROUP_STATES_COLUMN_NAME = "@GROUPSTATES";
+
 	public abstract List<String> aggregateColumns();
 	public abstract void processRow(Map<String, Object> env) throws SQLException;
+
+	/**
+	 * Create an empty state for calculating this function over a share
+	 * of the rows, independently of any other state.
+	 */
+	public abstract AggregateState createState();
+
+	/**
+	 * Get the state already calculated for this function, or null if
+	 * the function value must be calculated from the rows.
+	 */
+	protected AggregateState getGroupState(Map<String, Object> env)
+	{
+		Map states = (Map)env.get(GROUP_STATES_COLUMN_NAME);
+		if (states == null)
+			return null;
+		return (AggregateState)states.get(this);
+	}
 }
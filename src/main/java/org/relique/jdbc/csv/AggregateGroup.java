@@ -0,0 +1,51 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2008  Mario Frasca
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.util.Map;
+
+/**
+ * Rows in one GROUP BY group and the states of the aggregate functions
+ * calculated for those rows.
+ */
+class AggregateGroup
+{
+	/** Position of first row of group, so groups can keep the order they are read */
+	long firstRowNumber;
+	Map<String, Object> firstRow;
+	AggregateState[] states;
+
+	public AggregateGroup(long firstRowNumber, Map<String, Object> firstRow,
+		AggregateState[] states)
+	{
+		this.firstRowNumber = firstRowNumber;
+		this.firstRow = firstRow;
+		this.states = states;
+	}
+
+	public Map<String, Object> getFirstRow()
+	{
+		return firstRow;
+	}
+
+	public AggregateState[] getStates()
+	{
+		return states;
+	}
+}
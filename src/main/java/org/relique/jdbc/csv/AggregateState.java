@@ -0,0 +1,38 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2008  Mario Frasca
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Value of an aggregate function calculated for a share of the rows,
+ * which can be combined with values calculated for other rows.
+ */
+interface AggregateState
+{
+	public void processRow(Map<String, Object> env) throws SQLException;
+
+	/**
+	 * Add the rows processed by another state of the same function.
+	 */
+	public void merge(AggregateState other);
+
+	public Object getValue();
+}
@@ -0,0 +1,120 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2001  Jonathan Ackerman
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Set membership test that never gives false negatives and gives false
+ * positives with a small probability, using a fixed number of bits no
+ * matter how many keys are added.
+ */
+class BloomFilter
+{
+	/** Number of bits to use for each expected key, giving about 1% false positives */
+	private static final int BITS_PER_KEY = 10;
+
+	private static final int NUMBER_OF_HASHES = 7;
+
+	private long[] bits;
+
+	private int numberOfBits;
+
+	public BloomFilter(int expectedKeys)
+	{
+		int nWords = Math.max(1, (int)Math.min(Integer.MAX_VALUE / 64,
+			((long)Math.max(expectedKeys, 1) * BITS_PER_KEY + 63) / 64));
+		this.bits = new long[nWords];
+		this.numberOfBits = nWords * 64;
+	}
+
+	private BloomFilter(long[] bits)
+	{
+		this.bits = bits;
+		this.numberOfBits = bits.length * 64;
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of a string.
+	 */
+	private static long hash(String key)
+	{
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++)
+		{
+			char c = key.charAt(i);
+			h ^= (c & 0xFF);
+			h *= 0x100000001b3L;
+			h ^= (c >>> 8);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	public void add(String key)
+	{
+		long h = hash(key);
+		int h1 = (int)h;
+		int h2 = (int)(h >>> 32);
+		for (int i = 0; i < NUMBER_OF_HASHES; i++)
+		{
+			int combined = h1 + i * h2;
+			int index = (combined & Integer.MAX_VALUE) % numberOfBits;
+			bits[index >>> 6] |= (1L << (index & 63));
+		}
+	}
+
+	/**
+	 * @return false if key was certainly never added, true if it might have been.
+	 */
+	public boolean mightContain(String key)
+	{
+		long h = hash(key);
+		int h1 = (int)h;
+		int h2 = (int)(h >>> 32);
+		for (int i = 0; i < NUMBER_OF_HASHES; i++)
+		{
+			int combined = h1 + i * h2;
+			int index = (combined & Integer.MAX_VALUE) % numberOfBits;
+			if ((bits[index >>> 6] & (1L << (index & 63))) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	public void write(DataOutputStream out) throws IOException
+	{
+		out.writeInt(bits.length);
+		for (int i = 0; i < bits.length; i++)
+			out.writeLong(bits[i]);
+	}
+
+	public static BloomFilter read(DataInputStream in) throws IOException
+	{
+		int nWords = in.readInt();
+		if (nWords <= 0)
+			throw new IOException(CsvResources.getString("invalidBloomFilter"));
+		long[] bits = new long[nWords];
+		for (int i = 0; i < nWords; i++)
+			bits[i] = in.readLong();
+		return new BloomFilter(bits);
+	}
+}
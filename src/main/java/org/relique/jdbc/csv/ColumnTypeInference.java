@@ -0,0 +1,248 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2001  Jonathan Ackerman
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Guesses column types from the values in a CSV file, remembering the
+ * column types found for each file so they are only guessed once.
+ */
+class ColumnTypeInference
+{
+	/** Maximum number of files to remember column types for */
+	private static final int MAX_CACHED_FILES = 256;
+
+	/** Numeric types, each able to hold all values of the types before it */
+	private static final String[] NUMERIC_TYPES = {"Int", "Long", "Double", "BigDecimal"};
+
+	private static LinkedHashMap<String, String[]> cache =
+		new LinkedHashMap<String, String[]>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest)
+		{
+			return size() > MAX_CACHED_FILES;
+		}
+	};
+
+	/** Files currently being read by a background thread */
+	private static Set<String> fullScans = new HashSet<String>();
+
+	private ColumnTypeInference()
+	{
+	}
+
+	/**
+	 * Guess type of a single value.
+	 */
+	public static String getTypeName(String value, StringConverter converter)
+	{
+		String typeName = "String";
+		if (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false"))
+		{
+			typeName = "Boolean";
+		}
+		else if (value.equals(("" + converter.parseInt(value))))
+		{
+			typeName = "Int";
+		}
+		else if (value.equals(("" + converter.parseLong(value))))
+		{
+			typeName = "Long";
+		}
+		else if (value.equals(("" + converter.parseDouble(value))))
+		{
+			typeName = "Double";
+		}
+		else if (value.equals(("" + converter.parseBytes(value))))
+		{
+			typeName = "Bytes";
+		}
+		else if (value.equals(("" + converter.parseBigDecimal(value))))
+		{
+			typeName = "BigDecimal";
+		}
+		else if (converter.parseTimestamp(value) != null)
+		{
+			typeName = "Timestamp";
+		}
+		else if (value.equals(("" + converter.parseDate(value) + "          ").substring(0, 10)))
+		{
+			typeName = "Date";
+		}
+		else if (value.equals(("" + converter.parseTime(value) + "        ").substring(0, 8)))
+		{
+			typeName = "Time";
+		}
+		else if (value.equals(("" + converter.parseAsciiStream(value))))
+		{
+			typeName = "AsciiStream";
+		}
+		return typeName;
+	}
+
+	private static int getNumericRank(String typeName)
+	{
+		for (int i = 0; i < NUMERIC_TYPES.length; i++)
+		{
+			if (NUMERIC_TYPES[i].equals(typeName))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Get a type able to hold values of both types.
+	 *
+	 * @param typeName1 first type, or null if no values seen yet.
+	 * @param typeName2 second type.
+	 */
+	public static String getWiderTypeName(String typeName1, String typeName2)
+	{
+		if (typeName1 == null || typeName1.equals(typeName2))
+			return typeName2;
+
+		int rank1 = getNumericRank(typeName1);
+		int rank2 = getNumericRank(typeName2);
+		if (rank1 >= 0 && rank2 >= 0)
+			return NUMERIC_TYPES[Math.max(rank1, rank2)];
+
+		if ((typeName1.equals("Date") && typeName2.equals("Timestamp")) ||
+			(typeName1.equals("Timestamp") && typeName2.equals("Date")))
+		{
+			return "Timestamp";
+		}
+		return "String";
+	}
+
+	/**
+	 * Guess column types from rows of a CSV file.
+	 *
+	 * @param maxRows number of rows to read, or 0 to read all rows.
+	 * @return column types, or null if file contains no rows.
+	 */
+	public static String[] inferColumnTypes(CsvRawReader rawReader,
+		StringConverter converter, int maxRows) throws SQLException
+	{
+		int nColumns = rawReader.getColumnNames().length;
+		String[] typeNames = new String[nColumns];
+		int nRows = 0;
+		while ((maxRows <= 0 || nRows < maxRows) && rawReader.next())
+		{
+			String[] fieldValues = rawReader.getFieldValues();
+			for (int i = 0; i < Math.min(nColumns, fieldValues.length); i++)
+			{
+				/*
+				 * Empty values fit any type.
+				 */
+				String value = fieldValues[i];
+				if (value != null)
+					value = value.trim();
+				if (value != null && value.length() > 0 && !"String".equals(typeNames[i]))
+					typeNames[i] = getWiderTypeName(typeNames[i], getTypeName(value, converter));
+			}
+			nRows++;
+		}
+		if (nRows == 0)
+			return null;
+
+		for (int i = 0; i < nColumns; i++)
+		{
+			if (typeNames[i] == null)
+				typeNames[i] = "String";
+		}
+		return typeNames;
+	}
+
+	/**
+	 * Get column types found previously for a file.
+	 *
+	 * @param key identifies file and version of file.
+	 * @return column types, or null if not known.
+	 */
+	public static synchronized String[] get(String key)
+	{
+		return cache.get(key);
+	}
+
+	public static synchronized void put(String key, String[] typeNames)
+	{
+		cache.put(key, typeNames);
+	}
+
+	public static synchronized void clear()
+	{
+		cache.clear();
+	}
+
+	/**
+	 * Start a background thread that reads all rows of a CSV file, so
+	 * that later queries use column types based on the whole file.
+	 *
+	 * @param rawReader reader for the file, closed when the thread finishes.
+	 * @param converter converter used only by the background thread.
+	 */
+	public static void startFullScan(final String key, final CsvRawReader rawReader,
+		final StringConverter converter)
+	{
+		synchronized (ColumnTypeInference.class)
+		{
+			if (!fullScans.add(key))
+			{
+				rawReader.close();
+				return;
+			}
+		}
+
+		Thread thread = new Thread("CsvJdbc column type inference")
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					String[] typeNames = inferColumnTypes(rawReader, converter, 0);
+					if (typeNames != null)
+						put(key, typeNames);
+				}
+				catch (SQLException e)
+				{
+					CsvDriver.writeLog("Column type inference failed: " + e);
+				}
+				finally
+				{
+					rawReader.close();
+					synchronized (ColumnTypeInference.class)
+					{
+						fullScans.remove(key);
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
@@ -0,0 +1,416 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2001  Jonathan Ackerman
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.relique.io.DataReader;
+
+/**
+ * Reads rows of a CSV file from a cache file or from TableCache, containing
+ * the values already converted to their column types, so the CSV file does
+ * not need to be parsed again.
+ */
+public class ColumnarCacheReader extends DataReader
+{
+	public static final String CACHE_FILE_EXTENSION = ".cache";
+
+	private static final int CACHE_FILE_MAGIC = 0x43534343;
+	private static final int CACHE_FILE_VERSION = 1;
+	private static final int ROWS_PER_GROUP = 4096;
+
+	private DataInputStream in;
+	private Iterator<ColumnarRowGroup> rowGroups;
+	private String tableAlias;
+	private String[] columnNames;
+	private String[] columnTypes;
+	private int[] columnSizes;
+	private int[] encodings;
+	private String[] upperColumnNames;
+	private String[] tableAndColumnNames;
+	private String[] aliasedColumnNames;
+	private ColumnarRowGroup rowGroup;
+	private int rowIndex;
+	private StringConverter converter;
+
+	private ColumnarCacheReader(DataInputStream in, String tableName,
+		String tableAlias, String[] columnNames, String[] columnTypes,
+		int[] columnSizes, int[] encodings)
+	{
+		this.in = in;
+		this.tableAlias = tableAlias;
+		this.columnNames = columnNames;
+		this.columnTypes = columnTypes;
+		this.columnSizes = columnSizes;
+		this.encodings = encodings;
+		this.rowGroup = null;
+		this.rowIndex = 0;
+		initColumnNames(tableName);
+	}
+
+	/**
+	 * Create reader for table rows held in memory.
+	 */
+	public ColumnarCacheReader(TableCache.CachedTable table, String tableName,
+		String tableAlias)
+	{
+		this.in = null;
+		this.rowGroups = table.rowGroups.iterator();
+		this.tableAlias = tableAlias;
+		this.columnNames = table.columnNames;
+		this.columnTypes = table.columnTypes;
+		this.columnSizes = table.columnSizes;
+		this.encodings = table.encodings;
+		this.rowGroup = null;
+		this.rowIndex = 0;
+		initColumnNames(tableName);
+	}
+
+	private void initColumnNames(String tableName)
+	{
+		String upperTableName = tableName.toUpperCase();
+		this.upperColumnNames = new String[columnNames.length];
+		this.tableAndColumnNames = new String[columnNames.length];
+		if (tableAlias != null)
+			this.aliasedColumnNames = new String[columnNames.length];
+		for (int i = 0; i < columnNames.length; i++)
+		{
+			this.upperColumnNames[i] = columnNames[i].toUpperCase();
+			this.tableAndColumnNames[i] = upperTableName + "." + upperColumnNames[i];
+			if (tableAlias != null)
+				this.aliasedColumnNames[i] = tableAlias + "." + upperColumnNames[i];
+		}
+	}
+
+	/**
+	 * Get the cache file to use for a CSV file.
+	 *
+	 * @param sourceFile CSV file.
+	 * @param cacheDirectory directory for cache files, or null to use the
+	 *        directory containing the CSV file.
+	 */
+	public static File getCacheFile(File sourceFile, String cacheDirectory)
+	{
+		if (cacheDirectory == null)
+			return new File(sourceFile.getPath() + CACHE_FILE_EXTENSION);
+		else
+			return new File(cacheDirectory, sourceFile.getName() + CACHE_FILE_EXTENSION);
+	}
+
+	/**
+	 * Describes everything that affects the values read from a table.
+	 */
+	public static String getFormatDescription(CsvConnection connection, String tableName)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(connection.getSeparator()).append('|');
+		sb.append(connection.getQuotechar()).append('|');
+		sb.append(connection.getQuoteStyle()).append('|');
+		sb.append(connection.getCommentChar()).append('|');
+		sb.append(connection.getHeaderline(tableName)).append('|');
+		sb.append(connection.isSuppressHeaders()).append('|');
+		sb.append(connection.isHeaderFixedWidth()).append('|');
+		sb.append(connection.getTrimHeaders()).append('|');
+		sb.append(connection.getTrimValues()).append('|');
+		sb.append(connection.getSkipLeadingLines()).append('|');
+		sb.append(connection.getSkipLeadingDataLines()).append('|');
+		sb.append(connection.isIgnoreUnparseableLines()).append('|');
+		sb.append(connection.isDefectiveHeaders()).append('|');
+		sb.append(connection.getTransposedLines()).append('|');
+		sb.append(connection.getTransposedFieldsToSkip()).append('|');
+		sb.append(connection.getCharset()).append('|');
+		sb.append(connection.getColumnTypes(tableName)).append('|');
+		sb.append(connection.getColumnTypesSampleRows()).append('|');
+		sb.append(connection.isColumnTypesFullScan()).append('|');
+		sb.append(connection.getDateFormat()).append('|');
+		sb.append(connection.getTimeFormat()).append('|');
+		sb.append(connection.getTimestampFormat()).append('|');
+		sb.append(connection.getTimeZoneName()).append('|');
+		sb.append(connection.getLocale()).append('|');
+		sb.append(TimeZone.getDefault().getID()).append('|');
+		if (connection.getFixedWidthColumns() != null)
+		{
+			for (int[] columnRange : connection.getFixedWidthColumns())
+				sb.append(columnRange[0]).append('-').append(columnRange[1]).append(',');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Open cache file for reading.
+	 *
+	 * @return reader, or null if cache file does not exist or is out of date.
+	 */
+	public static ColumnarCacheReader open(File cacheFile, File sourceFile,
+		String format, String tableName, String tableAlias) throws IOException
+	{
+		if (!cacheFile.exists())
+			return null;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+		boolean isValid = false;
+		try
+		{
+			if (in.readInt() != CACHE_FILE_MAGIC || in.readInt() != CACHE_FILE_VERSION)
+				return null;
+			if (!in.readUTF().equals(sourceFile.getCanonicalPath()))
+				return null;
+			if (in.readLong() != sourceFile.lastModified() || in.readLong() != sourceFile.length())
+				return null;
+			if (!in.readUTF().equals(format))
+				return null;
+
+			int nColumns = in.readInt();
+			String[] columnNames = new String[nColumns];
+			String[] columnTypes = new String[nColumns];
+			int[] columnSizes = new int[nColumns];
+			int[] encodings = new int[nColumns];
+			for (int i = 0; i < nColumns; i++)
+			{
+				columnNames[i] = in.readUTF();
+				columnTypes[i] = in.readUTF();
+				columnSizes[i] = in.readInt();
+				encodings[i] = ColumnarRowGroup.getEncoding(columnTypes[i]);
+			}
+			isValid = true;
+			return new ColumnarCacheReader(in, tableName, tableAlias,
+				columnNames, columnTypes, columnSizes, encodings);
+		}
+		finally
+		{
+			if (!isValid)
+				in.close();
+		}
+	}
+
+	/**
+	 * Read all rows from a CSV file and write them to a cache file.
+	 *
+	 * @param reader reader for the CSV file, with converter and column types set.
+	 * @return true if cache file was written, false if the table cannot be cached.
+	 */
+	public static boolean write(File cacheFile, File sourceFile, String format,
+		CsvReader reader) throws IOException, SQLException
+	{
+		CsvDriver.writeLog("Creating cache file " + cacheFile);
+
+		long lastModified = sourceFile.lastModified();
+		long length = sourceFile.length();
+
+		/*
+		 * Take a copy of the column names because CsvReader converts them
+		 * to upper case.
+		 */
+		String[] columnNames = reader.getColumnNames().clone();
+		int[] columnSizes = reader.getColumnSizes();
+		boolean hasRow = reader.next();
+		String[] columnTypes = reader.getColumnTypes();
+		int[] encodings = new int[columnNames.length];
+		for (int i = 0; i < encodings.length; i++)
+		{
+			encodings[i] = ColumnarRowGroup.getEncoding(columnTypes[i]);
+			if (encodings[i] < 0)
+				return false;
+		}
+
+		/*
+		 * Write to a temporary file first so other connections never see
+		 * a partly written cache file.
+		 */
+		File dir = cacheFile.getAbsoluteFile().getParentFile();
+		File tempFile = File.createTempFile(cacheFile.getName(), ".tmp", dir);
+		boolean isWritten = false;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try
+		{
+			out.writeInt(CACHE_FILE_MAGIC);
+			out.writeInt(CACHE_FILE_VERSION);
+			out.writeUTF(sourceFile.getCanonicalPath());
+			out.writeLong(lastModified);
+			out.writeLong(length);
+			out.writeUTF(format);
+			out.writeInt(columnNames.length);
+			for (int i = 0; i < columnNames.length; i++)
+			{
+				out.writeUTF(columnNames[i]);
+				out.writeUTF(columnTypes[i]);
+				out.writeInt(i < columnSizes.length ? columnSizes[i] : DEFAULT_COLUMN_SIZE);
+			}
+
+			String[] upperColumnNames = new String[columnNames.length];
+			for (int i = 0; i < columnNames.length; i++)
+				upperColumnNames[i] = columnNames[i].toUpperCase();
+			ColumnarRowGroup rowGroup = new ColumnarRowGroup(encodings, ROWS_PER_GROUP);
+			Object[] row = new Object[columnNames.length];
+			while (hasRow)
+			{
+				Map<String, Object> environment = reader.getEnvironment();
+				for (int i = 0; i < row.length; i++)
+					row[i] = environment.get(upperColumnNames[i]);
+				try
+				{
+					rowGroup.addRow(row);
+				}
+				catch (ClassCastException e)
+				{
+					return false;
+				}
+				if (rowGroup.isFull())
+				{
+					rowGroup.write(out);
+					rowGroup = new ColumnarRowGroup(encodings, ROWS_PER_GROUP);
+				}
+				hasRow = reader.next();
+			}
+			if (rowGroup.getRowCount() > 0)
+				rowGroup.write(out);
+
+			/*
+			 * Row count of zero marks end of file.
+			 */
+			out.writeInt(0);
+			out.close();
+			out = null;
+
+			if (sourceFile.lastModified() != lastModified || sourceFile.length() != length)
+			{
+				CsvDriver.writeLog("File " + sourceFile + " changed while creating cache file");
+				return false;
+			}
+
+			cacheFile.delete();
+			isWritten = tempFile.renameTo(cacheFile);
+			return isWritten;
+		}
+		finally
+		{
+			if (out != null)
+				out.close();
+			if (!isWritten)
+				tempFile.delete();
+		}
+	}
+
+	public void setConverter(StringConverter converter)
+	{
+		this.converter = converter;
+	}
+
+	@Override
+	public boolean next() throws SQLException
+	{
+		rowIndex++;
+		if (rowGroup == null || rowIndex >= rowGroup.getRowCount())
+		{
+			if (rowGroups != null)
+			{
+				rowGroup = rowGroups.hasNext() ? rowGroups.next() : null;
+			}
+			else
+			{
+				if (in == null)
+					return false;
+				try
+				{
+					rowGroup = ColumnarRowGroup.read(in, encodings);
+				}
+				catch (IOException e)
+				{
+					throw new SQLException(CsvResources.getString("fileReadError") + ": " + e);
+				}
+			}
+			rowIndex = 0;
+			if (rowGroup == null)
+			{
+				close();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String[] getColumnNames() throws SQLException
+	{
+		return columnNames;
+	}
+
+	@Override
+	public void close() throws SQLException
+	{
+		if (in != null)
+		{
+			try
+			{
+				in.close();
+			}
+			catch (IOException e)
+			{
+			}
+			in = null;
+		}
+	}
+
+	@Override
+	public Map<String, Object> getEnvironment() throws SQLException
+	{
+		Map<String, Object> result = new HashMap<String, Object>();
+		result.put(StringConverter.COLUMN_NAME, converter);
+
+		for (int i = 0; i < upperColumnNames.length; i++)
+		{
+			Object value = rowGroup.getValue(i, rowIndex);
+			result.put(upperColumnNames[i], value);
+			result.put(tableAndColumnNames[i], value);
+			if (aliasedColumnNames != null)
+				result.put(aliasedColumnNames[i], value);
+		}
+		return result;
+	}
+
+	@Override
+	public String[] getColumnTypes() throws SQLException
+	{
+		return columnTypes;
+	}
+
+	@Override
+	public int[] getColumnSizes() throws SQLException
+	{
+		return columnSizes;
+	}
+
+	@Override
+	public String getTableAlias()
+	{
+		return tableAlias;
+	}
+}
@@ -0,0 +1,542 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2001  Jonathan Ackerman
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A block of table rows stored column by column, with each column in an
+ * array of its own data type, strings replaced by indexes into a dictionary
+ * and a bitmap marking null values.
+ */
+class ColumnarRowGroup
+{
+	public static final int STRING = 0;
+	public static final int BOOLEAN = 1;
+	public static final int BYTE = 2;
+	public static final int SHORT = 3;
+	public static final int INT = 4;
+	public static final int LONG = 5;
+	public static final int FLOAT = 6;
+	public static final int DOUBLE = 7;
+	public static final int BIG_DECIMAL = 8;
+	public static final int DATE = 9;
+	public static final int TIME = 10;
+	public static final int TIMESTAMP = 11;
+
+	private int[] encodings;
+	private int rowCount;
+	private int capacity;
+
+	/** Bit set for each null value */
+	private long[][] nulls;
+
+	/** Typed array of values for each column */
+	private Object[] values;
+
+	/** Nanoseconds for TIMESTAMP columns */
+	private int[][] nanos;
+
+	/** Distinct values of STRING columns, indexed by the values array */
+	private String[][] dictionaries;
+	private int[] dictionarySizes;
+	private Map<String, Integer>[] dictionaryIndexes;
+
+	/**
+	 * Get encoding used to store values of an SQL data type.
+	 *
+	 * @return encoding, or -1 if the data type cannot be stored.
+	 */
+	public static int getEncoding(String sqlTypeName)
+	{
+		/*
+		 * Follow StringConverter.convert(), that leaves values of
+		 * unknown types as strings.
+		 */
+		if (sqlTypeName == null)
+			return STRING;
+		String lower = sqlTypeName.toLowerCase();
+		if (lower.equals("boolean"))
+			return BOOLEAN;
+		else if (lower.equals("byte"))
+			return BYTE;
+		else if (lower.equals("short"))
+			return SHORT;
+		else if (lower.equals("int") || lower.equals("integer"))
+			return INT;
+		else if (lower.equals("long"))
+			return LONG;
+		else if (lower.equals("float"))
+			return FLOAT;
+		else if (lower.equals("double"))
+			return DOUBLE;
+		else if (lower.equals("bigdecimal"))
+			return BIG_DECIMAL;
+		else if (lower.equals("date"))
+			return DATE;
+		else if (lower.equals("time"))
+			return TIME;
+		else if (lower.equals("timestamp"))
+			return TIMESTAMP;
+		else if (lower.equals("asciistream"))
+			return -1;
+		else
+			return STRING;
+	}
+
+	@SuppressWarnings("unchecked")
+	public ColumnarRowGroup(int[] encodings, int capacity)
+	{
+		this.encodings = encodings;
+		this.capacity = capacity;
+		this.rowCount = 0;
+		this.nulls = new long[encodings.length][(capacity + 63) / 64];
+		this.values = new Object[encodings.length];
+		this.nanos = new int[encodings.length][];
+		this.dictionaries = new String[encodings.length][];
+		this.dictionarySizes = new int[encodings.length];
+		this.dictionaryIndexes = new Map[encodings.length];
+		for (int i = 0; i < encodings.length; i++)
+		{
+			switch (encodings[i])
+			{
+			case STRING:
+				values[i] = new int[capacity];
+				dictionaries[i] = new String[16];
+				dictionaryIndexes[i] = new HashMap<String, Integer>();
+				break;
+			case BOOLEAN:
+				values[i] = new boolean[capacity];
+				break;
+			case BYTE:
+				values[i] = new byte[capacity];
+				break;
+			case SHORT:
+				values[i] = new short[capacity];
+				break;
+			case INT:
+				values[i] = new int[capacity];
+				break;
+			case FLOAT:
+				values[i] = new float[capacity];
+				break;
+			case DOUBLE:
+				values[i] = new double[capacity];
+				break;
+			case BIG_DECIMAL:
+				values[i] = new BigDecimal[capacity];
+				break;
+			case TIMESTAMP:
+				nanos[i] = new int[capacity];
+				values[i] = new long[capacity];
+				break;
+			default:
+				values[i] = new long[capacity];
+				break;
+			}
+		}
+	}
+
+	public int getRowCount()
+	{
+		return rowCount;
+	}
+
+	public boolean isFull()
+	{
+		return rowCount == capacity;
+	}
+
+	/**
+	 * Add a row of values.
+	 *
+	 * @throws ClassCastException if a value does not have the type of its column.
+	 */
+	public void addRow(Object[] row)
+	{
+		int r = rowCount;
+		for (int i = 0; i < encodings.length; i++)
+		{
+			Object o = row[i];
+			if (o == null)
+			{
+				nulls[i][r >>> 6] |= (1L << (r & 63));
+				continue;
+			}
+			switch (encodings[i])
+			{
+			case STRING:
+				((int[])values[i])[r] = addToDictionary(i, (String)o);
+				break;
+			case BOOLEAN:
+				((boolean[])values[i])[r] = ((Boolean)o).booleanValue();
+				break;
+			case BYTE:
+				((byte[])values[i])[r] = ((Byte)o).byteValue();
+				break;
+			case SHORT:
+				((short[])values[i])[r] = ((Short)o).shortValue();
+				break;
+			case INT:
+				((int[])values[i])[r] = ((Integer)o).intValue();
+				break;
+			case LONG:
+				((long[])values[i])[r] = ((Long)o).longValue();
+				break;
+			case FLOAT:
+				((float[])values[i])[r] = ((Float)o).floatValue();
+				break;
+			case DOUBLE:
+				((double[])values[i])[r] = ((Double)o).doubleValue();
+				break;
+			case BIG_DECIMAL:
+				((BigDecimal[])values[i])[r] = (BigDecimal)o;
+				break;
+			case DATE:
+				((long[])values[i])[r] = ((Date)o).getTime();
+				break;
+			case TIME:
+				((long[])values[i])[r] = ((Time)o).getTime();
+				break;
+			case TIMESTAMP:
+				((long[])values[i])[r] = ((Timestamp)o).getTime();
+				nanos[i][r] = ((Timestamp)o).getNanos();
+				break;
+			}
+		}
+		rowCount++;
+	}
+
+	private int addToDictionary(int column, String s)
+	{
+		Integer index = dictionaryIndexes[column].get(s);
+		if (index == null)
+		{
+			int size = dictionarySizes[column];
+			if (size == dictionaries[column].length)
+			{
+				String[] newDictionary = new String[size * 2];
+				System.arraycopy(dictionaries[column], 0, newDictionary, 0, size);
+				dictionaries[column] = newDictionary;
+			}
+			dictionaries[column][size] = s;
+			dictionarySizes[column] = size + 1;
+			index = Integer.valueOf(size);
+			dictionaryIndexes[column].put(s, index);
+		}
+		return index.intValue();
+	}
+
+	/**
+	 * Free memory only needed while adding rows.
+	 */
+	public void endOfRows()
+	{
+		for (int i = 0; i < dictionaryIndexes.length; i++)
+			dictionaryIndexes[i] = null;
+	}
+
+	public boolean isNull(int column, int row)
+	{
+		return (nulls[column][row >>> 6] & (1L << (row & 63))) != 0;
+	}
+
+	/**
+	 * Get value as an object of the Java class used by StringConverter for the column type.
+	 */
+	public Object getValue(int column, int row)
+	{
+		if (isNull(column, row))
+			return null;
+
+		switch (encodings[column])
+		{
+		case STRING:
+			return dictionaries[column][((int[])values[column])[row]];
+		case BOOLEAN:
+			return Boolean.valueOf(((boolean[])values[column])[row]);
+		case BYTE:
+			return Byte.valueOf(((byte[])values[column])[row]);
+		case SHORT:
+			return Short.valueOf(((short[])values[column])[row]);
+		case INT:
+			return Integer.valueOf(((int[])values[column])[row]);
+		case LONG:
+			return Long.valueOf(((long[])values[column])[row]);
+		case FLOAT:
+			return Float.valueOf(((float[])values[column])[row]);
+		case DOUBLE:
+			return Double.valueOf(((double[])values[column])[row]);
+		case BIG_DECIMAL:
+			return ((BigDecimal[])values[column])[row];
+		case DATE:
+			return new Date(((long[])values[column])[row]);
+		case TIME:
+			return new Time(((long[])values[column])[row]);
+		case TIMESTAMP:
+			Timestamp timestamp = new Timestamp(((long[])values[column])[row]);
+			timestamp.setNanos(nanos[column][row]);
+			return timestamp;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Estimate number of bytes of memory used.
+	 */
+	public long getSizeInBytes()
+	{
+		long size = 64;
+		for (int i = 0; i < encodings.length; i++)
+		{
+			size += nulls[i].length * 8 + 16;
+			switch (encodings[i])
+			{
+			case STRING:
+				size += capacity * 4 + dictionaries[i].length * 4;
+				for (int j = 0; j < dictionarySizes[i]; j++)
+					size += 40 + dictionaries[i][j].length() * 2;
+				break;
+			case BOOLEAN:
+			case BYTE:
+				size += capacity;
+				break;
+			case SHORT:
+				size += capacity * 2;
+				break;
+			case INT:
+			case FLOAT:
+				size += capacity * 4;
+				break;
+			case BIG_DECIMAL:
+				size += capacity * 4;
+				for (int j = 0; j < rowCount; j++)
+				{
+					if (!isNull(i, j))
+						size += 40 + ((BigDecimal[])values[i])[j].unscaledValue().bitLength() / 8;
+				}
+				break;
+			case TIMESTAMP:
+				size += capacity * 12;
+				break;
+			default:
+				size += capacity * 8;
+				break;
+			}
+		}
+		return size;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		byte[] b = s.getBytes("UTF-8");
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return new String(b, "UTF-8");
+	}
+
+	public void write(DataOutputStream out) throws IOException
+	{
+		out.writeInt(rowCount);
+		int nWords = (rowCount + 63) / 64;
+		for (int i = 0; i < encodings.length; i++)
+		{
+			for (int j = 0; j < nWords; j++)
+				out.writeLong(nulls[i][j]);
+
+			switch (encodings[i])
+			{
+			case STRING:
+				int dictionarySize = dictionarySizes[i];
+				out.writeInt(dictionarySize);
+				for (int j = 0; j < dictionarySize; j++)
+					writeString(out, dictionaries[i][j]);
+
+				/*
+				 * Use the smallest dictionary index that is big enough.
+				 */
+				int[] codes = (int[])values[i];
+				for (int j = 0; j < rowCount; j++)
+				{
+					if (dictionarySize <= 0x100)
+						out.writeByte(codes[j]);
+					else if (dictionarySize <= 0x10000)
+						out.writeShort(codes[j]);
+					else
+						out.writeInt(codes[j]);
+				}
+				break;
+			case BOOLEAN:
+				for (int j = 0; j < rowCount; j++)
+					out.writeBoolean(((boolean[])values[i])[j]);
+				break;
+			case BYTE:
+				out.write((byte[])values[i], 0, rowCount);
+				break;
+			case SHORT:
+				for (int j = 0; j < rowCount; j++)
+					out.writeShort(((short[])values[i])[j]);
+				break;
+			case INT:
+				for (int j = 0; j < rowCount; j++)
+					out.writeInt(((int[])values[i])[j]);
+				break;
+			case FLOAT:
+				for (int j = 0; j < rowCount; j++)
+					out.writeFloat(((float[])values[i])[j]);
+				break;
+			case DOUBLE:
+				for (int j = 0; j < rowCount; j++)
+					out.writeDouble(((double[])values[i])[j]);
+				break;
+			case BIG_DECIMAL:
+				for (int j = 0; j < rowCount; j++)
+				{
+					if (!isNull(i, j))
+					{
+						BigDecimal bd = ((BigDecimal[])values[i])[j];
+						byte[] unscaled = bd.unscaledValue().toByteArray();
+						out.writeInt(bd.scale());
+						out.writeInt(unscaled.length);
+						out.write(unscaled);
+					}
+				}
+				break;
+			case TIMESTAMP:
+				for (int j = 0; j < rowCount; j++)
+				{
+					out.writeLong(((long[])values[i])[j]);
+					out.writeInt(nanos[i][j]);
+				}
+				break;
+			default:
+				for (int j = 0; j < rowCount; j++)
+					out.writeLong(((long[])values[i])[j]);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Read block of rows written by write().
+	 *
+	 * @return rows, or null at end of file.
+	 */
+	public static ColumnarRowGroup read(DataInputStream in, int[] encodings) throws IOException
+	{
+		int rowCount = in.readInt();
+		if (rowCount <= 0)
+			return null;
+
+		ColumnarRowGroup rowGroup = new ColumnarRowGroup(encodings, rowCount);
+		rowGroup.rowCount = rowCount;
+		int nWords = (rowCount + 63) / 64;
+		for (int i = 0; i < encodings.length; i++)
+		{
+			for (int j = 0; j < nWords; j++)
+				rowGroup.nulls[i][j] = in.readLong();
+
+			switch (encodings[i])
+			{
+			case STRING:
+				int dictionarySize = in.readInt();
+				String[] dictionary = new String[Math.max(dictionarySize, 1)];
+				for (int j = 0; j < dictionarySize; j++)
+					dictionary[j] = readString(in);
+				rowGroup.dictionaries[i] = dictionary;
+				rowGroup.dictionarySizes[i] = dictionarySize;
+				int[] codes = (int[])rowGroup.values[i];
+				for (int j = 0; j < rowCount; j++)
+				{
+					if (dictionarySize <= 0x100)
+						codes[j] = in.readUnsignedByte();
+					else if (dictionarySize <= 0x10000)
+						codes[j] = in.readUnsignedShort();
+					else
+						codes[j] = in.readInt();
+				}
+				break;
+			case BOOLEAN:
+				for (int j = 0; j < rowCount; j++)
+					((boolean[])rowGroup.values[i])[j] = in.readBoolean();
+				break;
+			case BYTE:
+				in.readFully((byte[])rowGroup.values[i], 0, rowCount);
+				break;
+			case SHORT:
+				for (int j = 0; j < rowCount; j++)
+					((short[])rowGroup.values[i])[j] = in.readShort();
+				break;
+			case INT:
+				for (int j = 0; j < rowCount; j++)
+					((int[])rowGroup.values[i])[j] = in.readInt();
+				break;
+			case FLOAT:
+				for (int j = 0; j < rowCount; j++)
+					((float[])rowGroup.values[i])[j] = in.readFloat();
+				break;
+			case DOUBLE:
+				for (int j = 0; j < rowCount; j++)
+					((double[])rowGroup.values[i])[j] = in.readDouble();
+				break;
+			case BIG_DECIMAL:
+				for (int j = 0; j < rowCount; j++)
+				{
+					if (!rowGroup.isNull(i, j))
+					{
+						int scale = in.readInt();
+						byte[] unscaled = new byte[in.readInt()];
+						in.readFully(unscaled);
+						((BigDecimal[])rowGroup.values[i])[j] = new BigDecimal(new BigInteger(unscaled), scale);
+					}
+				}
+				break;
+			case TIMESTAMP:
+				for (int j = 0; j < rowCount; j++)
+				{
+					((long[])rowGroup.values[i])[j] = in.readLong();
+					rowGroup.nanos[i][j] = in.readInt();
+				}
+				break;
+			default:
+				for (int j = 0; j < rowCount; j++)
+					((long[])rowGroup.values[i])[j] = in.readLong();
+				break;
+			}
+		}
+		rowGroup.endOfRows();
+		return rowGroup;
+	}
+}
@@ -97,6 +97,11 @@ public class CsvConnection implements Connection
 	/** Lookup table with column data types for each table */
 	private HashMap<String, String> columnTypes = new HashMap<String, String>();
 
+	/** Number of rows to read when guessing column types, or -1 to use first row only */
+	private int columnTypesSampleRows = -1;
+
+	private boolean columnTypesFullScan;
+
 	/** Collection of all created Statements */
 	private Vector<Statement> statements = new Vector<Statement>();
 
@@ -108,6 +113,29 @@ public class CsvConnection implements Connection
 
 	private String fileNamePattern;
 	private String[] nameParts;
+	private String[] bloomFilterColumns;
+	private boolean columnarCache;
+	private String columnarCacheDirectory;
+	private boolean tableCache;
+
+	/** Bytes of memory a query may use before writing rows to temporary files */
+	private long memoryLimit = CsvDriver.DEFAULT_MEMORY_LIMIT;
+
+	/** Number of threads calculating GROUP BY and aggregate functions */
+	private int aggregationThreads = CsvDriver.DEFAULT_AGGREGATION_THREADS;
+
+	/** Number of threads sorting rows for ORDER BY */
+	private int sortThreads = CsvDriver.DEFAULT_SORT_THREADS;
+
+	/** Whether a background thread reads and parses lines of CSV files */
+	private boolean readAhead;
+
+	/** Number of threads decompressing each gzip file */
+	private int decompressionThreads = CsvDriver.DEFAULT_DECOMPRESSION_THREADS;
+
+	/** Columns that rows of each table are already sorted by */
+	private HashMap<String, String> sortedBy = new HashMap<String, String>();
+
 	private String timestampFormat;
 	private String dateFormat;
 	private String timeFormat;
@@ -366,6 +394,18 @@ public class CsvConnection implements Connection
 			columnTypes.put(null, info.getProperty(CsvDriver.COLUMN_TYPES));
 		}
 		columnTypes.putAll(getMatchingProperties(info, CsvDriver.COLUMN_TYPES + "."));
+		if (info.getProperty(CsvDriver.COLUMN_TYPES_SAMPLE_ROWS) != null)
+		{
+			try
+			{
+				columnTypesSampleRows = Integer.parseInt(info.getProperty(CsvDriver.COLUMN_TYPES_SAMPLE_ROWS));
+			}
+			catch (NumberFormatException e)
+			{
+				columnTypesSampleRows = -1;
+			}
+		}
+		columnTypesFullScan = Boolean.parseBoolean(info.getProperty(CsvDriver.COLUMN_TYPES_FULL_SCAN, "False"));
 
 		// are files indexed? ()
 		if (info.getProperty(CsvDriver.INDEXED_FILES) != null)
@@ -378,6 +418,74 @@ public class CsvConnection implements Connection
 			setFileTailPrepend(Boolean.parseBoolean(info.getProperty(
 				CsvDriver.FILE_TAIL_PREPEND,
 				CsvDriver.DEFAULT_FILE_TAIL_PREPEND)));
+			String bloomFilterColumnNames = info.getProperty(CsvDriver.BLOOM_FILTER_COLUMNS, "");
+			if (!bloomFilterColumnNames.isEmpty())
+				bloomFilterColumns = bloomFilterColumnNames.split(",");
+		}
+		columnarCache = Boolean.parseBoolean(info.getProperty(CsvDriver.COLUMNAR_CACHE, "False"));
+		columnarCacheDirectory = info.getProperty(CsvDriver.COLUMNAR_CACHE_DIRECTORY);
+		tableCache = Boolean.parseBoolean(info.getProperty(CsvDriver.TABLE_CACHE, "False"));
+		if (info.getProperty(CsvDriver.TABLE_CACHE_SIZE) != null)
+		{
+			/*
+			 * Memory limit is shared by all connections.
+			 */
+			try
+			{
+				TableCache.setMaxSize(Long.parseLong(info.getProperty(CsvDriver.TABLE_CACHE_SIZE)));
+			}
+			catch (NumberFormatException e)
+			{
+			}
+		}
+		if (info.getProperty(CsvDriver.MEMORY_LIMIT) != null)
+		{
+			try
+			{
+				memoryLimit = Long.parseLong(info.getProperty(CsvDriver.MEMORY_LIMIT));
+			}
+			catch (NumberFormatException e)
+			{
+				memoryLimit = CsvDriver.DEFAULT_MEMORY_LIMIT;
+			}
+		}
+		// set global sortedBy and sortedBy.tablename values.
+		if (info.getProperty(CsvDriver.SORTED_BY) != null)
+			sortedBy.put(null, info.getProperty(CsvDriver.SORTED_BY));
+		sortedBy.putAll(getMatchingProperties(info, CsvDriver.SORTED_BY + "."));
+		if (info.getProperty(CsvDriver.AGGREGATION_THREADS) != null)
+		{
+			try
+			{
+				aggregationThreads = Integer.parseInt(info.getProperty(CsvDriver.AGGREGATION_THREADS));
+			}
+			catch (NumberFormatException e)
+			{
+				aggregationThreads = CsvDriver.DEFAULT_AGGREGATION_THREADS;
+			}
+		}
+		if (info.getProperty(CsvDriver.SORT_THREADS) != null)
+		{
+			try
+			{
+				sortThreads = Integer.parseInt(info.getProperty(CsvDriver.SORT_THREADS));
+			}
+			catch (NumberFormatException e)
+			{
+				sortThreads = CsvDriver.DEFAULT_SORT_THREADS;
+			}
+		}
+		readAhead = Boolean.parseBoolean(info.getProperty(CsvDriver.READ_AHEAD, "False"));
+		if (info.getProperty(CsvDriver.DECOMPRESSION_THREADS) != null)
+		{
+			try
+			{
+				decompressionThreads = Integer.parseInt(info.getProperty(CsvDriver.DECOMPRESSION_THREADS));
+			}
+			catch (NumberFormatException e)
+			{
+				decompressionThreads = CsvDriver.DEFAULT_DECOMPRESSION_THREADS;
+			}
 		}
 		// is the stream to be decrypted? ()
 		// per default: no, it's unencrypted and will not be decrypted
@@ -1152,6 +1260,25 @@ public class CsvConnection implements Connection
 		return retval;
 	}
 
+	/**
+	 * Get number of rows read to guess column types.
+	 *
+	 * @return number of rows, 0 to read all rows, or -1 to guess column
+	 *         types from the first row of each query.
+	 */
+	public int getColumnTypesSampleRows()
+	{
+		return columnTypesSampleRows;
+	}
+
+	/**
+	 * Are all rows read in the background to improve guessed column types?
+	 */
+	public boolean isColumnTypesFullScan()
+	{
+		return columnTypesFullScan;
+	}
+
 	/**
 	 * Set flag for reading indexed files.
 	 *
@@ -1181,6 +1308,98 @@ public class CsvConnection implements Connection
 		return nameParts;
 	}
 
+	/**
+	 * Get names of columns in indexed files with Bloom filters.
+	 *
+	 * @return column names, or null if no Bloom filters are used.
+	 */
+	public String[] getBloomFilterColumns()
+	{
+		return bloomFilterColumns;
+	}
+
+	/**
+	 * Are values of CSV files cached in files that are faster to read?
+	 */
+	public boolean isColumnarCache()
+	{
+		return columnarCache;
+	}
+
+	/**
+	 * Get directory for cache files.
+	 *
+	 * @return directory, or null if cache files are stored next to the CSV files.
+	 */
+	public String getColumnarCacheDirectory()
+	{
+		return columnarCacheDirectory;
+	}
+
+	/**
+	 * Are rows of CSV files kept in memory shared by all connections?
+	 */
+	public boolean isTableCache()
+	{
+		return tableCache;
+	}
+
+	/**
+	 * Get number of bytes of memory a query may use for SELECT DISTINCT
+	 * before writing rows to temporary files.
+	 */
+	public long getMemoryLimit()
+	{
+		return memoryLimit;
+	}
+
+	/**
+	 * Get number of threads used to calculate GROUP BY and aggregate functions.
+	 */
+	public int getAggregationThreads()
+	{
+		return aggregationThreads;
+	}
+
+	/**
+	 * Get number of threads used to sort rows for ORDER BY.
+	 */
+	public int getSortThreads()
+	{
+		return sortThreads;
+	}
+
+	/**
+	 * Are lines of CSV files read and parsed in a background thread,
+	 * while the query uses rows that were already parsed?
+	 */
+	public boolean isReadAhead()
+	{
+		return readAhead;
+	}
+
+	/**
+	 * Get number of threads decompressing blocks of each gzip file.
+	 */
+	public int getDecompressionThreads()
+	{
+		return decompressionThreads;
+	}
+
+	/**
+	 * Get comma-separated list of columns that rows of a table are sorted by,
+	 * each optionally followed by DESC.
+	 *
+	 * @return list of columns, or null if the sort order of rows is not known.
+	 */
+	public String getSortedBy(String tableName)
+	{
+		String retval = sortedBy.get(tableName);
+		if (retval == null)
+			retval = sortedBy.get(null);
+		return retval;
+	}
+
 	public void setTimestampFormat(String timestampFormat)
 	{
 		this.timestampFormat = timestampFormat;
@@ -54,6 +54,10 @@ public class CsvDriver implements Driver
   public static final String DEFAULT_FILE_TAIL_PREPEND = "False";
   public static final String DEFAULT_DEFECTIVE_HEADERS = "False";
   public static final String DEFAULT_SKIP_LEADING_DATA_LINES = "0";
+  public static final long DEFAULT_MEMORY_LIMIT = 64L * 1024 * 1024;
+  public static final int DEFAULT_AGGREGATION_THREADS = 1;
+  public static final int DEFAULT_SORT_THREADS = 1;
+  public static final int DEFAULT_DECOMPRESSION_THREADS = 1;
 
   public static final String FILE_EXTENSION = "fileExtension";
   public static final String SEPARATOR = "separator";
@@ -64,7 +68,20 @@ public class CsvDriver implements Driver
   public static final String TRIM_HEADERS = "trimHeaders";
   public static final String TRIM_VALUES = "trimValues";
   public static final String COLUMN_TYPES = "columnTypes";
+  public static final String COLUMN_TYPES_SAMPLE_ROWS = "columnTypesSampleRows";
+  public static final String COLUMN_TYPES_FULL_SCAN = "columnTypesFullScan";
   public static final String INDEXED_FILES = "indexedFiles";
+  public static final String BLOOM_FILTER_COLUMNS = "bloomFilterColumns";
+  public static final String COLUMNAR_CACHE = "columnarCache";
+  public static final String COLUMNAR_CACHE_DIRECTORY = "columnarCacheDirectory";
+  public static final String TABLE_CACHE = "tableCache";
+  public static final String TABLE_CACHE_SIZE = "tableCacheSize";
+  public static final String MEMORY_LIMIT = "memoryLimit";
+  public static final String AGGREGATION_THREADS = "aggregationThreads";
+  public static final String SORT_THREADS = "sortThreads";
+  public static final String READ_AHEAD = "readAhead";
+  public static final String DECOMPRESSION_THREADS = "decompressionThreads";
+  public static final String SORTED_BY = "sortedBy";
   public static final String TIMESTAMP_FORMAT = "timestampFormat";
   public static final String DATE_FORMAT = "dateFormat";
   public static final String TIME_FORMAT = "timeFormat";
@@ -41,8 +41,10 @@ public class CsvReader extends DataReader
 	private int valuesToJoin;
 	private String[] joiningValues;
 	private StringConverter converter;
+	private StringConverter.ColumnConverter[] columnConverters;
 	private String[] fieldValues;
 	private int lineNumber;
+	private ReadAheadPipeline readAhead;
 
 	public CsvReader(CsvRawReader rawReader, int transposedLines,
 		int transposedFieldsToSkip, String headerline) throws SQLException
@@ -84,6 +86,19 @@ public class CsvReader extends DataReader
 	public void setConverter(StringConverter converter)
 	{
 		this.converter = converter;
+		this.columnConverters = null;
+	}
+
+	/**
+	 * Read and parse lines in a background thread, while the caller uses
+	 * rows that were already parsed.
+	 *
+	 * @param batchRows number of rows passed to the caller at a time.
+	 */
+	public void setReadAhead(int batchRows)
+	{
+		if (isPlainReader() && readAhead == null)
+			readAhead = new ReadAheadPipeline(rawReader, batchRows);
 	}
 
 	private int getTransposedFieldsToSkip()
@@ -99,7 +114,14 @@ public class CsvReader extends DataReader
 	@Override
 	public boolean next() throws SQLException
 	{
-		if (this.isPlainReader())
+		if (readAhead != null)
+		{
+			boolean result = readAhead.next();
+			lineNumber = readAhead.getLineNumber();
+			fieldValues = readAhead.getFieldValues();
+			return result;
+		}
+		else if (this.isPlainReader())
 		{
 			boolean result = rawReader.next();
 			lineNumber = rawReader.getLineNumber();
@@ -209,7 +231,17 @@ public class CsvReader extends DataReader
 
 	private Object getField(int i) throws SQLException
 	{
-		if (isPlainReader())
+		if (readAhead != null)
+		{
+			/*
+			 * Background thread has already moved the raw reader to a later row.
+			 */
+			String result = (i < fieldValues.length) ? fieldValues[i] : null;
+			if (result != null)
+				result = result.trim();
+			return result;
+		}
+		else if (isPlainReader())
 			return rawReader.getField(i);
 		else
 			return null;
@@ -218,7 +250,10 @@ public class CsvReader extends DataReader
 	@Override
 	public void close()
 	{
-		rawReader.close();
+		if (readAhead != null)
+			readAhead.close();
+		else
+			rawReader.close();
 	}
 
 	@Override
@@ -237,13 +272,23 @@ public class CsvReader extends DataReader
 		String[] tableAndColumnNames = getTableAndColumnNames();
 		String[] columnAliases = getAliasedColumnNames();
 
+		if (columnConverters == null)
+		{
+			/*
+			 * Choose conversion for each column once, not for every row.
+			 */
+			columnConverters = new StringConverter.ColumnConverter[columnTypes.length];
+			for (int i = 0; i < columnTypes.length; i++)
+				columnConverters[i] = converter.getColumnConverter(columnTypes[i]);
+		}
+
 		Map<String, Object> result = new HashMap<String, Object>();
 		result.put(StringConverter.COLUMN_NAME, converter);
 
 		for (int i = 0; i < columnNames.length; i++)
 		{
 			String key = columnNames[i];
-			Object value = converter.convert(columnTypes[i], fieldValues[i]);
+			Object value = columnConverters[i].convert(fieldValues[i]);
 			result.put(key, value);
 			result.put(tableAndColumnNames[i], value);
 			if (columnAliases != null)
@@ -264,6 +309,7 @@ public class CsvReader extends DataReader
 		if (typeNamesLoc.length == 0)
 			throw new SQLException(CsvResources.getString("invalidColumnType") + ": " + line);
 		columnTypes = new String[getColumnNames().length];
+		columnConverters = null;
 		for (int i = 0; i < Math.min(typeNamesLoc.length, columnTypes.length); i++)
 		{
 			String typeName = typeNamesLoc[i].trim();
@@ -281,6 +327,16 @@ public class CsvReader extends DataReader
 		}
 	}
 
+	/**
+	 * Set column types found by reading rows of the file in advance,
+	 * instead of guessing them from the first row.
+	 */
+	public void setInferredColumnTypes(String[] typeNames)
+	{
+		columnTypes = typeNames.clone();
+		columnConverters = null;
+	}
+
 	@Override
 	public String[] getColumnTypes() throws SQLException
 	{
@@ -297,53 +353,13 @@ public class CsvReader extends DataReader
 			throw new SQLException(CsvResources.getString("cannotInferColumns"));
 
 		columnTypes = new String[fieldValues.length];
+		columnConverters = null;
 		for (int i = 0; i < fieldValues.length; i++)
 		{
 			try
 			{
-				String typeName = "String";
 				String value = getField(i).toString();
-				if (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false"))
-				{
-					typeName = "Boolean";
-				}
-				else if (value.equals(("" + converter.parseInt(value))))
-				{
-					typeName = "Int";
-				}
-				else if (value.equals(("" + converter.parseLong(value))))
-				{
-					typeName = "Long";
-				}
-				else if (value.equals(("" + converter.parseDouble(value))))
-				{
-					typeName = "Double";
-				}
-				else if (value.equals(("" + converter.parseBytes(value))))
-				{
-					typeName = "Bytes";
-				}
-				else if (value.equals(("" + converter.parseBigDecimal(value))))
-				{
-					typeName = "BigDecimal";
-				}
-				else if (converter.parseTimestamp(value) != null)
-				{
-					typeName = "Timestamp";
-				}
-				else if (value.equals(("" + converter.parseDate(value) + "          ").substring(0, 10)))
-				{
-					typeName = "Date";
-				}
-				else if (value.equals(("" + converter.parseTime(value) + "        ").substring(0, 8)))
-				{
-					typeName = "Time";
-				}
-				else if (value.equals(("" + converter.parseAsciiStream(value))))
-				{
-					typeName = "AsciiStream";
-				}
-				columnTypes[i] = typeName;
+				columnTypes[i] = ColumnTypeInference.getTypeName(value, converter);
 			}
 			catch (SQLException e)
 			{
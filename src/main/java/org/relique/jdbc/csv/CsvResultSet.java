@@ -45,11 +45,11 @@ import java.util.Calendar;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
 
 import org.relique.io.DataReader;
 
@@ -81,6 +81,9 @@ public class CsvResultSet implements ResultSet
 	/** Last column name index read */
 	private int lastIndexRead = -1;
 
+	/** Was value of last column read null? */
+	private boolean lastValueWasNull;
+
 	private LogicalExpression whereClause;
 
 	private List<Expression> groupByColumns;
@@ -95,10 +98,43 @@ public class CsvResultSet implements ResultSet
 
 	private List<AggregateFunction> aggregateFunctions;
 
-	private Set<ArrayList<Object>> distinctValues;
+	private DistinctSet distinctValues;
+
+	/** GROUP BY columns in the order that rows are sorted, when grouping rows as they are read */
+	private List<Expression> sortedGroupByColumns;
+
+	/** 1 for each ascending column, -1 for each descending column in sortedGroupByColumns */
+	private int[] sortedGroupByDirections;
+
+	/** Groups calculated from all rows, returned by next() */
+	private SpillingAggregator groupAggregator;
+
+	/** Aggregate functions calculated for each group returned by next() */
+	private List<AggregateFunction> groupFunctions;
+
+	/** First row of next group, already read */
+	private Map<String, Object> pendingGroupRow;
+
+	/** Number of groups still to skip for SQL OFFSET */
+	private int groupOffset;
+
+	/** States of aggregate functions calculated in several threads for a query without GROUP BY */
+	private Object parallelAggregateStates;
 
 	private Map<String, Object> recordEnvironment;
 
+	/** Marks a value in rowValues that has not been evaluated yet */
+	private static final Object UNEVALUATED = new Object();
+
+	/** Values of query expressions for current row, evaluated when first needed */
+	private Object[] rowValues;
+
+	/** Row that rowValues were evaluated for */
+	private Map<String, Object> rowValuesEnvironment;
+
+	/** Upper case column labels mapped to column index, for findColumn() */
+	private HashMap<String, Integer> columnLabelIndexes;
+
 	private List<String> usedColumns;
 
 	private StringConverter converter;
@@ -109,6 +145,9 @@ public class CsvResultSet implements ResultSet
 
 	private boolean hitTail = false;
 
+	/** True when all rows have been read from reader */
+	private boolean readerFinished = false;
+
 	/** Result of last call to next() */
 	private boolean nextResult = true;
 
@@ -122,50 +161,69 @@ public class CsvResultSet implements ResultSet
 
 	private boolean isClosed = false;
 
+	/** Estimated bytes of memory used by each record buffered for ORDER BY */
+	private static final int SORT_ROW_OVERHEAD = 64;
+	private static final int SORT_COLUMN_OVERHEAD = 48;
+
+	/** Number of sorted records read from sortRowFile at once, if fetch size not set */
+	private static final int SORT_READ_AHEAD = 1000;
+
 	/**
-	 * Wrapper for any exception thrown by OrderByComparator.
+	 * Records for ORDER BY written to a temporary file because they use
+	 * too much memory, with the ORDER BY values of each record.
 	 */
-	public class OrderByException extends RuntimeException
-	{	
-		public OrderByException(String message)
+	private RowFile sortRowFile = null;
+	private ArrayList<SortKey> sortKeys = null;
+
+	/** Sorted records being returned from sortRowFile, and records read in advance */
+	private SortKey[] sortedRows = null;
+	private int sortedRowIndex;
+	private int sortedRowEnd;
+	private Map<String, Object>[] fetchedRows = null;
+	private int fetchedRowIndex;
+
+	/**
+	 * Values of SQL ORDER BY expressions for a record, evaluated once
+	 * before sorting instead of in every comparison.
+	 */
+	private static class SortKey
+	{
+		private Object[] values;
+		private Map<String, Object> recordEnvironment;
+
+		/** Position of record in sortRowFile, if record is not kept in memory */
+		private long position = -1;
+
+		private SortKey(Object[] values, Map<String, Object> recordEnvironment)
 		{
-			super(message);
+			this.values = values;
+			this.recordEnvironment = recordEnvironment;
 		}
 	}
 
 	/**
-	 * Compares SQL ORDER BY expressions for two records.
+	 * Compares SQL ORDER BY expression values of two records.  Comparisons
+	 * do not change any state, so rows can be sorted by several threads.
 	 */
-	public class OrderByComparator implements Comparator<Map<String, Object>>
+	private static class OrderByComparator implements Comparator<SortKey>
 	{
-		public int compare(Map<String, Object> recordEnvironment1, Map<String, Object> recordEnvironment2)
+		private int[] directions;
+
+		private OrderByComparator(int[] directions)
 		{
-			int retval = 0;
-			
-			try
-			{
-			int i = 0;
-			while (i < orderByColumns.size() && retval == 0)
+			this.directions = directions;
+		}
+
+		public int compare(SortKey key1, SortKey key2)
+		{
+			for (int i = 0; i < directions.length; i++)
 			{
-				Object []o = orderByColumns.get(i);
-				Integer direction = (Integer)o[0];
-				Expression expr = (Expression)o[1];
-				recordEnvironment = recordEnvironment1;
-				Map<String, Object> objectEnvironment1 = updateRecordEnvironment(true);
-				if (converter != null)
-						objectEnvironment1.put(StringConverter.COLUMN_NAME, converter);
-				Comparable<Object> result1 = (Comparable<Object>)expr.eval(objectEnvironment1);
-				recordEnvironment = recordEnvironment2;
-				Map<String, Object> objectEnvironment2 = updateRecordEnvironment(true);
-				if (converter != null)
-						objectEnvironment2.put(StringConverter.COLUMN_NAME, converter);
-				Comparable<Object> result2 = (Comparable<Object>)expr.eval(objectEnvironment2);
+				Object result1 = key1.values[i];
+				Object result2 = key2.values[i];
+				int retval;
 				if (result1 == null)
 				{
-					if (result2 == null)
-						retval = 0;
-					else
-						retval = -1;
+					retval = (result2 == null) ? 0 : -1;
 				}
 				else if (result2 == null)
 				{
@@ -173,18 +231,12 @@ public class CsvResultSet implements ResultSet
 				}
 				else
 				{
-					retval = result1.compareTo(result2);
+					retval = ((Comparable<Object>)result1).compareTo(result2);
 				}
-				if (direction.intValue() < 0)
-					retval = -retval;
-				i++;
-			}
+				if (retval != 0)
+					return (directions[i] < 0) ? -retval : retval;
 			}
-			catch (SQLException e)
-			{
-				throw new OrderByException(e.getMessage());
-			}
-			return retval;
+			return 0;
 		}
 	}
 
@@ -241,7 +293,7 @@ public class CsvResultSet implements ResultSet
 		else
 			this.orderByColumns = null;
 		if (isDistinct)
-			this.distinctValues = new HashSet<ArrayList<Object>>();
+			this.distinctValues = new DistinctSet(((CsvConnection)statement.getConnection()).getMemoryLimit());
 
 		String timeFormat = ((CsvConnection)statement.getConnection()).getTimeFormat();
 		String dateFormat = ((CsvConnection)statement.getConnection()).getDateFormat();
@@ -255,6 +307,10 @@ public class CsvResultSet implements ResultSet
 			if(!"".equals(columnTypes))
 				((CsvReader) reader).setColumnTypes(columnTypes);
 		}
+		else if (reader instanceof ColumnarCacheReader)
+		{
+			((ColumnarCacheReader) reader).setConverter(converter);
+		}
 
 		if (whereClause!= null)
 			this.usedColumns = new LinkedList<String>(whereClause.usedColumns());
@@ -486,6 +542,14 @@ public class CsvResultSet implements ResultSet
 				Expression expr = (Expression)o[1];
 				this.usedColumns.addAll(expr.usedColumns());
 			}
+
+			/*
+			 * Rows can only be returned after the last row has been read
+			 * if we are not sorting, buffering or aggregating the rows.
+			 */
+			this.distinctValues.setCanSpill(this.groupByColumns == null &&
+				this.orderByColumns == null && this.aggregateFunctions.size() == 0 &&
+				!isScrollable());
 		}
 
 		if (this.groupByColumns != null ||
@@ -496,7 +560,28 @@ public class CsvResultSet implements ResultSet
 			currentRow = 0;
 		}
 
-		if (this.groupByColumns != null)
+		List<AggregateFunction> parallelAggregateFunctions = null;
+		if (setSortedGroupByColumns())
+		{
+			/*
+			 * Rows are already sorted by GROUP BY columns, so create each
+			 * group in next() as soon as all its rows have been read.
+			 */
+			this.groupFunctions = getAllAggregateFunctions();
+			this.groupOffset = sqlOffset;
+		}
+		else if ((parallelAggregateFunctions = getParallelAggregateFunctions()) != null)
+		{
+			StringConverter[] converters = new StringConverter[((CsvConnection)statement.getConnection()).getAggregationThreads()];
+			for (int i = 0; i < converters.length; i++)
+				converters[i] = new StringConverter(dateFormat, timeFormat, timestampFormat, timeZone, locale);
+			aggregateInParallel(parallelAggregateFunctions, converters, sqlOffset);
+		}
+		else if (this.groupByColumns != null && this.distinctValues == null && !isGroupByAlias())
+		{
+			aggregateWithSpilling(sqlOffset);
+		}
+		else if (this.groupByColumns != null)
 		{
 			/*
 			 * Read all rows and group them together based on GROUP BY expressions.
@@ -619,10 +704,19 @@ public class CsvResultSet implements ResultSet
 			int savedLimit = limit;
 			maxRows = 0;
 			limit = -1;
+			long memoryLimit = ((CsvConnection)statement.getConnection()).getMemoryLimit();
+			boolean canSortFromFile = (memoryLimit > 0 && !isScrollable());
 			try
 			{
 				while (next())
-					;
+				{
+					/*
+					 * When records use too much memory, write them to a file
+					 * and keep only the values needed for sorting in memory.
+					 */
+					if (canSortFromFile && (sortRowFile != null || isOverSortMemoryLimit(memoryLimit)))
+						moveRowsToFile();
+				}
 			}
 			finally
 			{
@@ -670,6 +764,433 @@ public class CsvResultSet implements ResultSet
 		}
 	}
 
+	/**
+	 * Check if GROUP BY uses an alias for an expression in the query,
+	 * that cannot be evaluated using only the columns read from the file.
+	 */
+	private boolean isGroupByAlias()
+	{
+		List<String> groupByUsedColumns = new LinkedList<String>();
+		for (Expression expr : this.groupByColumns)
+			groupByUsedColumns.addAll(expr.usedColumns());
+		for (Object[] o : this.queryEnvironment)
+		{
+			String alias = o[0].toString().toUpperCase();
+			if (groupByUsedColumns.contains(alias) &&
+				!(o[1] instanceof ColumnName && ((ColumnName)o[1]).columnName.equals(alias)))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get all aggregate functions in the query, including those used
+	 * only in HAVING and ORDER BY clauses.
+	 */
+	private List<AggregateFunction> getAllAggregateFunctions()
+	{
+		List<AggregateFunction> allAggregateFunctions = new ArrayList<AggregateFunction>(this.aggregateFunctions);
+		if (this.havingClause != null)
+			allAggregateFunctions.addAll(this.havingClause.aggregateFunctions());
+		if (this.orderByColumns != null)
+		{
+			for (Object[] o : this.orderByColumns)
+				allAggregateFunctions.addAll(((Expression)o[1]).aggregateFunctions());
+		}
+		List<AggregateFunction> result = new ArrayList<AggregateFunction>();
+		IdentityHashMap<AggregateFunction, Boolean> found = new IdentityHashMap<AggregateFunction, Boolean>();
+		for (AggregateFunction func : allAggregateFunctions)
+		{
+			if (found.put(func, Boolean.TRUE) == null)
+				result.add(func);
+		}
+		return result;
+	}
+
+	/**
+	 * Get all aggregate functions in the query if they can be calculated
+	 * in several threads, or null if they must be calculated in this thread.
+	 */
+	private List<AggregateFunction> getParallelAggregateFunctions() throws SQLException
+	{
+		if (((CsvConnection)statement.getConnection()).getAggregationThreads() <= 1 ||
+			(this.groupByColumns == null && this.aggregateFunctions.size() == 0) ||
+			this.distinctValues != null)
+		{
+			return null;
+		}
+
+		/*
+		 * Threads evaluate GROUP BY expressions using only columns
+		 * read from the file.
+		 */
+		if (this.groupByColumns != null && isGroupByAlias())
+			return null;
+
+		return getAllAggregateFunctions();
+	}
+
+	/**
+	 * Check if rows of the table are declared to be sorted by the
+	 * GROUP BY columns, so that each group can be returned as soon as
+	 * all its rows have been read.
+	 *
+	 * @return true if sortedGroupByColumns was set.
+	 */
+	private boolean setSortedGroupByColumns() throws SQLException
+	{
+		String sortedBy = ((CsvConnection)statement.getConnection()).getSortedBy(this.tableName);
+		if (sortedBy == null || this.groupByColumns == null || this.orderByColumns != null ||
+			this.distinctValues != null || isScrollable() || isGroupByAlias())
+		{
+			return false;
+		}
+
+		/*
+		 * GROUP BY columns must be the first columns that rows are sorted by,
+		 * in any order.
+		 */
+		String[] sortColumns = sortedBy.split(",");
+		if (sortColumns.length < this.groupByColumns.size())
+			return false;
+		List<Expression> columns = new ArrayList<Expression>();
+		int[] directions = new int[this.groupByColumns.size()];
+		for (int i = 0; i < directions.length; i++)
+		{
+			String[] words = sortColumns[i].trim().split("\\s+");
+			String sortColumn = words[0].toUpperCase();
+			directions[i] = 1;
+			if (words.length > 1 && words[1].equalsIgnoreCase("DESC"))
+				directions[i] = -1;
+			Expression found = null;
+			for (Expression expr : this.groupByColumns)
+			{
+				if (expr instanceof ColumnName)
+				{
+					String columnName = ((ColumnName)expr).columnName;
+					if (columnName.equals(sortColumn) || columnName.endsWith("." + sortColumn))
+						found = expr;
+				}
+			}
+			if (found == null || columns.contains(found))
+				return false;
+			columns.add(found);
+		}
+		this.sortedGroupByColumns = columns;
+		this.sortedGroupByDirections = directions;
+		return true;
+	}
+
+	/**
+	 * Read all rows, calculating aggregate functions for each group and
+	 * writing rows to temporary files if there are too many groups to
+	 * keep in memory.
+	 */
+	private void aggregateWithSpilling(int sqlOffset) throws SQLException
+	{
+		List<AggregateFunction> functions = getAllAggregateFunctions();
+		long memoryLimit = ((CsvConnection)statement.getConnection()).getMemoryLimit();
+		SpillingAggregator aggregator = new SpillingAggregator(memoryLimit, this.groupByColumns, functions);
+		try
+		{
+			/*
+			 * Read rows directly from the reader, as next() would also keep
+			 * every row in memory when sorting or scrolling.
+			 */
+			Map<String, Object> row;
+			while ((row = readGroupedRow()) != null)
+				aggregator.add(row);
+		}
+		catch (SQLException e)
+		{
+			aggregator.close();
+			throw e;
+		}
+
+		currentRow = 0;
+		nextResult = true;
+		recordEnvironment = null;
+		updateRecordEnvironment(false);
+
+		if (this.orderByColumns != null || isScrollable())
+		{
+			/*
+			 * All groups must be kept to sort or scroll through them.
+			 */
+			try
+			{
+				AggregateGroup group;
+				while ((group = aggregator.nextGroup()) != null)
+				{
+					Map<String, Object> groupRow = createGroupRow(group.getFirstRow(),
+						functions, group.getStates());
+					if (this.havingClause == null || this.havingClause.isTrue(groupRow))
+						bufferedRecordEnvironments.add(groupRow);
+				}
+			}
+			finally
+			{
+				aggregator.close();
+			}
+
+			if (this.orderByColumns != null)
+			{
+				sortRows(sqlOffset);
+			}
+			hitTail = true;
+		}
+		else
+		{
+			/*
+			 * Return each group from next(), without keeping them all in memory.
+			 */
+			this.groupAggregator = aggregator;
+			this.groupFunctions = functions;
+			this.groupOffset = sqlOffset;
+			hitTail = false;
+		}
+	}
+
+	/**
+	 * Move to a row for the next group, skipping groups that do not
+	 * match any HAVING clause.
+	 */
+	private boolean nextGroup() throws SQLException
+	{
+		while (!hitTail)
+		{
+			if ((maxRows != 0 && currentRow >= maxRows) || (limit >= 0 && currentRow >= limit))
+				break;
+
+			Map<String, Object> groupRow;
+			if (groupAggregator != null)
+			{
+				AggregateGroup group = groupAggregator.nextGroup();
+				if (group == null)
+					groupRow = null;
+				else
+					groupRow = createGroupRow(group.getFirstRow(), groupFunctions, group.getStates());
+			}
+			else
+			{
+				groupRow = readSortedGroup();
+			}
+			if (groupRow == null)
+			{
+				hitTail = true;
+			}
+			else if (this.havingClause == null || this.havingClause.isTrue(groupRow))
+			{
+				if (groupOffset > 0)
+				{
+					groupOffset--;
+				}
+				else
+				{
+					currentRow++;
+					recordEnvironment = groupRow;
+					updateRecordEnvironment(true);
+					return true;
+				}
+			}
+		}
+		recordEnvironment = null;
+		return false;
+	}
+
+	/**
+	 * Read rows until the GROUP BY key changes, and create a row for the
+	 * group of rows just read.
+	 */
+	private Map<String, Object> readSortedGroup() throws SQLException
+	{
+		Map<String, Object> firstRow = pendingGroupRow;
+		pendingGroupRow = null;
+		if (firstRow == null)
+			firstRow = readGroupedRow();
+		if (firstRow == null)
+			return null;
+
+		List<Object> groupKey = getSortedGroupKey(firstRow);
+		AggregateState[] states = new AggregateState[groupFunctions.size()];
+		for (int i = 0; i < states.length; i++)
+			states[i] = groupFunctions.get(i).createState();
+
+		Map<String, Object> row = firstRow;
+		while (row != null)
+		{
+			if (row != firstRow)
+			{
+				List<Object> key = getSortedGroupKey(row);
+				if (!key.equals(groupKey))
+				{
+					checkSortedGroupOrder(groupKey, key);
+					pendingGroupRow = row;
+					break;
+				}
+			}
+			for (AggregateState state : states)
+				state.processRow(row);
+			row = readGroupedRow();
+		}
+		return createGroupRow(firstRow, groupFunctions, states);
+	}
+
+	/**
+	 * Read next row matching any WHERE clause.
+	 */
+	private Map<String, Object> readGroupedRow() throws SQLException
+	{
+		while (!readerFinished && nextReaderRow())
+		{
+			recordEnvironment = reader.getEnvironment();
+			recordEnvironment.put(CsvStatement.STATEMENT_COLUMN_NAME, statement);
+			if (whereClause == null || whereClause.isTrue(updateRecordEnvironment(true)))
+				return recordEnvironment;
+		}
+		readerFinished = true;
+		return null;
+	}
+
+	private List<Object> getSortedGroupKey(Map<String, Object> row) throws SQLException
+	{
+		ArrayList<Object> key = new ArrayList<Object>(sortedGroupByColumns.size());
+		for (Expression expr : sortedGroupByColumns)
+			key.add(expr.eval(row));
+		return key;
+	}
+
+	/**
+	 * Check that a new GROUP BY key comes after the previous key in the
+	 * declared sort order, otherwise rows of a group could be split apart.
+	 */
+	private void checkSortedGroupOrder(List<Object> previousKey, List<Object> key) throws SQLException
+	{
+		int comparison = 0;
+		try
+		{
+			for (int i = 0; i < key.size() && comparison == 0; i++)
+			{
+				Comparable<Object> previousValue = (Comparable<Object>)previousKey.get(i);
+				Object value = key.get(i);
+				if (previousValue == null)
+					comparison = (value == null) ? 0 : 1;
+				else if (value == null)
+					comparison = -1;
+				else
+					comparison = -previousValue.compareTo(value);
+				comparison *= sortedGroupByDirections[i];
+			}
+		}
+		catch (ClassCastException e)
+		{
+			comparison = -1;
+		}
+		if (comparison < 0)
+		{
+			throw new SQLException(CsvResources.getString("notSortedBy") + ": " +
+				previousKey + " " + key);
+		}
+	}
+
+	/**
+	 * Read all rows, passing them to threads that calculate the aggregate
+	 * functions for each group, then create a row in the ResultSet for
+	 * each group.
+	 */
+	private void aggregateInParallel(List<AggregateFunction> functions,
+		StringConverter[] converters, int sqlOffset) throws SQLException
+	{
+		List<Expression> groupExpressions = this.groupByColumns;
+		if (groupExpressions == null)
+			groupExpressions = new ArrayList<Expression>();
+		ParallelAggregator aggregator = new ParallelAggregator(groupExpressions, functions, converters);
+		try
+		{
+			/*
+			 * Read rows directly from the reader, as next() would also keep
+			 * every row in memory when sorting or scrolling.
+			 */
+			Map<String, Object> row;
+			while ((row = readGroupedRow()) != null)
+				aggregator.add(row);
+			List<AggregateGroup> groups = aggregator.finish();
+
+			if (this.groupByColumns != null)
+			{
+				for (AggregateGroup group : groups)
+				{
+					Map<String, Object> groupRow = createGroupRow(group.getFirstRow(),
+						functions, group.getStates());
+					if (this.havingClause == null || this.havingClause.isTrue(groupRow))
+						bufferedRecordEnvironments.add(groupRow);
+				}
+
+				if (this.orderByColumns != null)
+				{
+					sortRows(sqlOffset);
+				}
+			}
+			else
+			{
+				/*
+				 * Create a single row ResultSet from the aggregate functions,
+				 * even if there were no rows.
+				 */
+				AggregateState[] states;
+				if (groups.isEmpty())
+				{
+					states = new AggregateState[functions.size()];
+					for (int i = 0; i < states.length; i++)
+						states[i] = functions.get(i).createState();
+				}
+				else
+				{
+					states = groups.get(0).getStates();
+				}
+				Map<String, Object> groupRow = createGroupRow(new HashMap<String, Object>(),
+					functions, states);
+
+				/*
+				 * Aggregate functions are not given any rows themselves, so
+				 * keep their states to find the data types of the results.
+				 */
+				this.parallelAggregateStates = groupRow.get(AggregateFunction.GROUP_STATES_COLUMN_NAME);
+				if ((limit < 0 || limit > 0) && sqlOffset == 0)
+					bufferedRecordEnvironments.add(groupRow);
+			}
+		}
+		finally
+		{
+			aggregator.close();
+		}
+
+		/*
+		 * Rewind back to before the row so we can read it.
+		 */
+		currentRow = 0;
+		nextResult = true;
+		recordEnvironment = null;
+		updateRecordEnvironment(false);
+		hitTail = true;
+	}
+
+	private Map<String, Object> createGroupRow(Map<String, Object> firstRow,
+		List<AggregateFunction> functions, AggregateState[] states)
+	{
+		Map<String, Object> groupRow = new HashMap<String, Object>(firstRow);
+		IdentityHashMap<AggregateFunction, AggregateState> groupStates =
+			new IdentityHashMap<AggregateFunction, AggregateState>();
+		for (int i = 0; i < states.length; i++)
+			groupStates.put(functions.get(i), states[i]);
+		groupRow.put(AggregateFunction.GROUP_STATES_COLUMN_NAME, groupStates);
+		if (converter != null)
+			groupRow.put(StringConverter.COLUMN_NAME, converter);
+		return groupRow;
+	}
+
 	private boolean isScrollable()
 	{
 		return (this.resultSetType == ResultSet.TYPE_SCROLL_INSENSITIVE ||
@@ -782,35 +1303,159 @@ public class CsvResultSet implements ResultSet
 				hasAggregateFunctions = true;
 			if (!hasAggregateFunctions)
 			{
-				this.distinctValues = new HashSet<ArrayList<Object>>();
+				this.distinctValues = new DistinctSet(((CsvConnection)statement.getConnection()).getMemoryLimit());
 				this.distinctColumns = new ArrayList<Expression>(this.groupByColumns);
 				this.groupByColumns = null;
 			}
 		}
 	}
 
-	private void sortRows(int sqlOffset) throws SQLException
+	/**
+	 * Evaluate ORDER BY expressions for a row, so that sorting only compares values.
+	 */
+	private SortKey createSortKey(Map<String, Object> row) throws SQLException
+	{
+		checkCancelled();
+		recordEnvironment = row;
+		Map<String, Object> objectEnvironment = updateRecordEnvironment(true);
+		if (converter != null)
+			objectEnvironment.put(StringConverter.COLUMN_NAME, converter);
+		Object[] values = new Object[orderByColumns.size()];
+		for (int j = 0; j < values.length; j++)
+			values[j] = ((Expression)orderByColumns.get(j)[1]).eval(objectEnvironment);
+		return new SortKey(values, row);
+	}
+
+	private boolean isOverSortMemoryLimit(long memoryLimit)
+	{
+		int nRows = bufferedRecordEnvironments.size();
+		if (nRows == 0)
+			return false;
+		long rowMemory = SORT_ROW_OVERHEAD +
+			bufferedRecordEnvironments.get(0).size() * SORT_COLUMN_OVERHEAD;
+		return nRows * rowMemory > memoryLimit;
+	}
+
+	/**
+	 * Write buffered rows to sortRowFile, keeping only their ORDER BY
+	 * values and positions in the file in memory.
+	 */
+	private void moveRowsToFile() throws SQLException
 	{
-		Map<String, Object> []allRows = new Map[bufferedRecordEnvironments.size()];
-		for (int i = 0; i < allRows.length; i++)
-			allRows[i] = bufferedRecordEnvironments.get(i);
+		if (sortRowFile == null)
+		{
+			sortRowFile = new RowFile();
+			sortKeys = new ArrayList<SortKey>();
+		}
+		for (Map<String, Object> row : bufferedRecordEnvironments)
+		{
+			SortKey sortKey = createSortKey(row);
+			long position = sortRowFile.write(row);
+			if (position >= 0)
+			{
+				sortKey.recordEnvironment = null;
+				sortKey.position = position;
+			}
+			sortKeys.add(sortKey);
+		}
 		bufferedRecordEnvironments.clear();
-		try
+	}
+
+	private void sortRows(int sqlOffset) throws SQLException
+	{
+		int[] directions = new int[orderByColumns.size()];
+		for (int i = 0; i < directions.length; i++)
+			directions[i] = ((Integer)orderByColumns.get(i)[0]).intValue();
+
+		SortKey []allRows;
+		if (sortRowFile != null)
 		{
-		Arrays.sort(allRows, new OrderByComparator());
+			moveRowsToFile();
+			allRows = sortKeys.toArray(new SortKey[sortKeys.size()]);
+			sortKeys = null;
 		}
-		catch (OrderByException e)
+		else
 		{
-			throw new SQLException(e.getMessage());
+			allRows = new SortKey[bufferedRecordEnvironments.size()];
+			for (int i = 0; i < allRows.length; i++)
+				allRows[i] = createSortKey(bufferedRecordEnvironments.get(i));
+			bufferedRecordEnvironments.clear();
 		}
+		ParallelSorter.sort(allRows, new OrderByComparator(directions),
+			((CsvConnection)statement.getConnection()).getSortThreads());
 		int rowLimit = allRows.length;
 		if (maxRows != 0 && maxRows < rowLimit)
 			rowLimit = maxRows;
 		if (limit >= 0 && sqlOffset + limit < rowLimit)
 			rowLimit = sqlOffset + limit;
 
+		if (sortRowFile != null)
+		{
+			/*
+			 * Records are read from the file as they are returned by next().
+			 */
+			sortedRows = allRows;
+			sortedRowIndex = sqlOffset;
+			sortedRowEnd = rowLimit;
+			return;
+		}
 		for (int i = sqlOffset; i < rowLimit; i++)
-			bufferedRecordEnvironments.add(allRows[i]);
+			bufferedRecordEnvironments.add(allRows[i].recordEnvironment);
+	}
+
+	/**
+	 * Move to next sorted record, reading records from sortRowFile in advance.
+	 */
+	private boolean nextSortedRow() throws SQLException
+	{
+		if (sortedRowIndex >= sortedRowEnd)
+		{
+			sortRowFile.close();
+			recordEnvironment = null;
+			updateRecordEnvironment(false);
+			return false;
+		}
+
+		if (fetchedRows == null || fetchedRowIndex >= fetchedRows.length)
+		{
+			int nRows = Math.min(fetchSize > 0 ? fetchSize : SORT_READ_AHEAD,
+				sortedRowEnd - sortedRowIndex);
+			fetchedRows = new Map[nRows];
+			int nPositions = 0;
+			for (int i = 0; i < nRows; i++)
+			{
+				if (sortedRows[sortedRowIndex + i].position >= 0)
+					nPositions++;
+			}
+			long[] positions = new long[nPositions];
+			nPositions = 0;
+			for (int i = 0; i < nRows; i++)
+			{
+				SortKey sortKey = sortedRows[sortedRowIndex + i];
+				if (sortKey.position >= 0)
+					positions[nPositions++] = sortKey.position;
+				else
+					fetchedRows[i] = sortKey.recordEnvironment;
+			}
+			Map<String, Object>[] rows = sortRowFile.read(positions);
+			nPositions = 0;
+			for (int i = 0; i < nRows; i++)
+			{
+				if (fetchedRows[i] == null)
+					fetchedRows[i] = rows[nPositions++];
+			}
+			fetchedRowIndex = 0;
+		}
+
+		/*
+		 * Release records as they are returned.
+		 */
+		recordEnvironment = fetchedRows[fetchedRowIndex];
+		fetchedRows[fetchedRowIndex++] = null;
+		sortedRows[sortedRowIndex++] = null;
+		currentRow++;
+		updateRecordEnvironment(true);
+		return true;
 	}
 
 	private void checkOpen() throws SQLException
@@ -825,6 +1470,19 @@ public class CsvResultSet implements ResultSet
 		boolean thereWasAnAnswer;
 
 		checkOpen();
+		checkCancelled();
+
+		if (this.sortedGroupByColumns != null || this.groupAggregator != null)
+		{
+			nextResult = nextGroup();
+			return nextResult;
+		}
+
+		if (this.sortedRows != null)
+		{
+			nextResult = nextSortedRow();
+			return nextResult;
+		}
 
 		if ((this.groupByColumns != null ||
 		this.aggregateFunctions.size() > 0 ||
@@ -851,9 +1509,13 @@ public class CsvResultSet implements ResultSet
 			{
 				thereWasAnAnswer = false;
 			}
+			else if (distinctValues != null && distinctValues.isSpilled() && readerFinished)
+			{
+				thereWasAnAnswer = false;
+			}
 			else
 			{
-				thereWasAnAnswer = reader.next();
+				thereWasAnAnswer = nextReaderRow();
 			}
 
 			if(thereWasAnAnswer)
@@ -887,7 +1549,7 @@ public class CsvResultSet implements ResultSet
 							}
 						}
 					}
-					thereWasAnAnswer = reader.next();
+					thereWasAnAnswer = nextReaderRow();
 					if(thereWasAnAnswer)
 					{
 						recordEnvironment = reader.getEnvironment();
@@ -899,6 +1561,24 @@ public class CsvResultSet implements ResultSet
 					}
 					objectEnvironment = updateRecordEnvironment(thereWasAnAnswer);
 				}
+
+				/*
+				 * After the last row, return rows that were written to
+				 * temporary files because there were too many distinct rows
+				 * to keep in memory.
+				 */
+				if (!thereWasAnAnswer && distinctValues != null && distinctValues.isSpilled() &&
+					!hitTail && (maxRows == 0 || currentRow < maxRows) && (limit < 0 || currentRow < limit))
+				{
+					readerFinished = true;
+					if (distinctValues.nextSpilledRow())
+					{
+						thereWasAnAnswer = true;
+						recordEnvironment = new HashMap<String, Object>();
+						rowValues = distinctValues.getSpilledRow();
+						rowValuesEnvironment = recordEnvironment;
+					}
+				}
 			}
 			if (this.orderByColumns != null || isScrollable())
 			{
@@ -936,11 +1616,17 @@ public class CsvResultSet implements ResultSet
 			recordEnvironment = null;
 			return objectEnvironment;
 		}
+		Object[] values = getRowValues();
 		for (int i = 0; i < queryEnvironment.size(); i++)
 		{
 			Object[] o = queryEnvironment.get(i);
 			String key = (String) o[0];
-			Object value = ((Expression) o[1]).eval(recordEnvironment);
+			Object value = values[i];
+			if (value == UNEVALUATED)
+			{
+				value = ((Expression) o[1]).eval(recordEnvironment);
+				values[i] = value;
+			}
 			objectEnvironment.put(key.toUpperCase(), value);
 		}
 		for (int i=0; i<usedColumns.size(); i++)
@@ -961,6 +1647,10 @@ public class CsvResultSet implements ResultSet
 		Object groupRows = recordEnvironment.get(key);
 		if (groupRows != null)
 			objectEnvironment.put(key, groupRows);
+		key = AggregateFunction.GROUP_STATES_COLUMN_NAME;
+		Object groupStates = recordEnvironment.get(key);
+		if (groupStates != null)
+			objectEnvironment.put(key, groupStates);
 
 		/*
 		 * Always include the data type converter object so we can correctly
@@ -983,6 +1673,48 @@ public class CsvResultSet implements ResultSet
 		return objectEnvironment;
 	}
 
+	/**
+	 * Read next row from reader, unless the statement has been cancelled
+	 * or timed out, in which case the ResultSet is closed.
+	 */
+	private boolean nextReaderRow() throws SQLException
+	{
+		checkCancelled();
+		return reader.next();
+	}
+
+	private void checkCancelled() throws SQLException
+	{
+		try
+		{
+			statement.checkCancelled();
+		}
+		catch (SQLException e)
+		{
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Get array holding values of query expressions for the current row,
+	 * so that each expression is evaluated at most once for each row.
+	 */
+	private Object[] getRowValues()
+	{
+		if (rowValues == null || rowValues.length != queryEnvironment.size())
+		{
+			rowValues = new Object[queryEnvironment.size()];
+			rowValuesEnvironment = null;
+		}
+		if (rowValuesEnvironment != recordEnvironment)
+		{
+			Arrays.fill(rowValues, UNEVALUATED);
+			rowValuesEnvironment = recordEnvironment;
+		}
+		return rowValues;
+	}
+
 	private boolean addDistinctEnvironment(Map<String, Object> objectEnvironment) throws SQLException
 	{
 		boolean isDistinct;
@@ -1015,7 +1747,7 @@ public class CsvResultSet implements ResultSet
 		/*
 		 * Has this list of values been read before for this query?
 		 */
-		isDistinct = distinctValues.add(environment);
+		isDistinct = distinctValues.add(environment, getRowValues());
 		return isDistinct;
 	}
 
@@ -1024,6 +1756,12 @@ public class CsvResultSet implements ResultSet
 	{
 		isClosed = true;
 		reader.close();
+		if (distinctValues != null)
+			distinctValues.close();
+		if (groupAggregator != null)
+			groupAggregator.close();
+		if (sortRowFile != null)
+			sortRowFile.close();
 	}
 
 	@Override
@@ -1031,7 +1769,7 @@ public class CsvResultSet implements ResultSet
 	{
 		if(lastIndexRead >= 0)
 		{
-			return getString(lastIndexRead) == null;
+			return lastValueWasNull;
 		}
 		else
 		{
@@ -1052,13 +1790,60 @@ public class CsvResultSet implements ResultSet
 		return null;
 	}
 
+	/**
+	 * Get value of a column as an integer, using the value directly if it
+	 * is already a number.
+	 *
+	 * @return value, or 0 if value is null, not a number or not within range.
+	 */
+	private long getIntegral(int columnIndex, long minValue, long maxValue) throws SQLException
+	{
+		Object o = getObject(columnIndex);
+		if (o == null)
+			return 0;
+
+		if (o instanceof Integer || o instanceof Long || o instanceof Short || o instanceof Byte)
+		{
+			long l = ((Number)o).longValue();
+			if (l >= minValue && l <= maxValue)
+				return l;
+		}
+		else if (o instanceof Double || o instanceof Float)
+		{
+			/*
+			 * Narrow floating point values by dropping the fraction.
+			 */
+			double d = ((Number)o).doubleValue();
+			if (d >= minValue && d <= maxValue)
+				return (long)d;
+		}
+		else if (o instanceof BigDecimal)
+		{
+			BigDecimal bd = (BigDecimal)o;
+			if (bd.compareTo(BigDecimal.valueOf(minValue)) >= 0 &&
+				bd.compareTo(BigDecimal.valueOf(maxValue)) <= 0)
+			{
+				return bd.longValue();
+			}
+		}
+		else
+		{
+			Long l = converter.parseLong(o.toString());
+			if (l != null && l.longValue() >= minValue && l.longValue() <= maxValue)
+				return l.longValue();
+		}
+		return 0;
+	}
+
 	@Override
 	public boolean getBoolean(int columnIndex) throws SQLException
 	{
-		String s = getString(columnIndex);
-		if (s != null)
+		Object o = getObject(columnIndex);
+		if (o instanceof Boolean)
+			return ((Boolean)o).booleanValue();
+		if (o != null)
 		{
-			Boolean b = converter.parseBoolean(s);
+			Boolean b = converter.parseBoolean(o.toString());
 			if (b != null)
 				return b.booleanValue();
 		}
@@ -1068,62 +1853,36 @@ public class CsvResultSet implements ResultSet
 	@Override
 	public byte getByte(int columnIndex) throws SQLException
 	{
-		String s = getString(columnIndex);
-		if (s != null)
-		{
-			Byte b = converter.parseByte(s);
-			if (b != null)
-				return b.byteValue();
-		}
-		return 0;
+		return (byte)getIntegral(columnIndex, Byte.MIN_VALUE, Byte.MAX_VALUE);
 	}
 
 	@Override
 	public short getShort(int columnIndex) throws SQLException
 	{
-		String s = getString(columnIndex);
-		if (s != null)
-		{
-			Short n = converter.parseShort(s);
-			if (n != null)
-				return n.shortValue();
-		}
-		return 0;
+		return (short)getIntegral(columnIndex, Short.MIN_VALUE, Short.MAX_VALUE);
 	}
 
 	@Override
 	public int getInt(int columnIndex) throws SQLException
 	{
-		String s = getString(columnIndex);
-		if (s != null)
-		{
-			Integer i = converter.parseInt(s);
-			if (i != null)
-				return i.intValue();
-		}
-		return 0;
+		return (int)getIntegral(columnIndex, Integer.MIN_VALUE, Integer.MAX_VALUE);
 	}
 
 	@Override
 	public long getLong(int columnIndex) throws SQLException
 	{
-		String s = getString(columnIndex);
-		if (s != null)
-		{
-			Long l = converter.parseLong(s);
-			if (l != null)
-				return l.longValue();
-		}
-		return 0;
+		return getIntegral(columnIndex, Long.MIN_VALUE, Long.MAX_VALUE);
 	}
 
 	@Override
 	public float getFloat(int columnIndex) throws SQLException
 	{
-		String s = getString(columnIndex);
-		if (s != null)
+		Object o = getObject(columnIndex);
+		if (o instanceof Number)
+			return ((Number)o).floatValue();
+		if (o != null)
 		{
-			Float f = converter.parseFloat(s);
+			Float f = converter.parseFloat(o.toString());
 			if (f != null)
 				return f.floatValue();
 		}
@@ -1133,10 +1892,12 @@ public class CsvResultSet implements ResultSet
 	@Override
 	public double getDouble(int columnIndex) throws SQLException
 	{
-		String s = getString(columnIndex);
-		if (s != null)
+		Object o = getObject(columnIndex);
+		if (o instanceof Number)
+			return ((Number)o).doubleValue();
+		if (o != null)
 		{
-			Double d = converter.parseDouble(s);
+			Double d = converter.parseDouble(o.toString());
 			if (d != null)
 				return d.doubleValue();
 		}
@@ -1164,13 +1925,23 @@ public class CsvResultSet implements ResultSet
 	@Override
 	public Date getDate(int columnIndex) throws SQLException
 	{
-		return (Date) getObject(columnIndex);
+		Object o = getObject(columnIndex);
+		if (o instanceof Timestamp)
+			o = new Date(((Timestamp)o).getTime());
+		else if (o instanceof String)
+			o = converter.parseDate((String)o);
+		return (Date) o;
 	}
 
 	@Override
 	public Time getTime(int columnIndex) throws SQLException
 	{
-		return (Time) getObject(columnIndex);
+		Object o = getObject(columnIndex);
+		if (o instanceof Timestamp)
+			o = new Time(((Timestamp)o).getTime());
+		else if (o instanceof String)
+			o = converter.parseTime((String)o);
+		return (Time) o;
 	}
 
 	@Override
@@ -1179,6 +1950,8 @@ public class CsvResultSet implements ResultSet
 		Object o = getObject(columnIndex);
 		if (o instanceof Date)
 			o = new Timestamp(((Date)o).getTime());
+		else if (o instanceof String)
+			o = converter.parseTimestamp((String)o);
 		return (Timestamp) o;
 	}
 
@@ -1365,6 +2138,8 @@ public class CsvResultSet implements ResultSet
 			if (converter != null)
 				env.put(StringConverter.COLUMN_NAME, converter);
 			env.put(CsvStatement.STATEMENT_COLUMN_NAME, statement);
+			if (parallelAggregateStates != null)
+				env.put(AggregateFunction.GROUP_STATES_COLUMN_NAME, parallelAggregateStates);
 
 			for(int i=0; i<columnCount; i++)
 			{
@@ -1418,10 +2193,20 @@ public class CsvResultSet implements ResultSet
 		// perform pre-accessor method processing
 		preAccessor(columnIndex);
 
-		Object[] o = queryEnvironment.get(columnIndex-1);
+		Object value = null;
 		if (recordEnvironment != null)
-			return ((Expression) o[1]).eval(recordEnvironment);
-		return null;
+		{
+			Object[] values = getRowValues();
+			value = values[columnIndex - 1];
+			if (value == UNEVALUATED)
+			{
+				Object[] o = queryEnvironment.get(columnIndex - 1);
+				value = ((Expression) o[1]).eval(recordEnvironment);
+				values[columnIndex - 1] = value;
+			}
+		}
+		lastValueWasNull = (value == null);
+		return value;
 	}
 
 	@Override
@@ -1454,9 +2239,18 @@ public class CsvResultSet implements ResultSet
 	public BigDecimal getBigDecimal(int columnIndex) throws SQLException
 	{
 		BigDecimal retval = null;
-		String str = getString(columnIndex);
-		if(str != null)
+		Object o = getObject(columnIndex);
+		if (o instanceof BigDecimal)
+		{
+			retval = (BigDecimal)o;
+		}
+		else if (o instanceof Integer || o instanceof Long || o instanceof Short || o instanceof Byte)
 		{
+			retval = BigDecimal.valueOf(((Number)o).longValue());
+		}
+		else if (o != null)
+		{
+			String str = o.toString();
 			try
 			{
 				retval = new BigDecimal(str);
@@ -2598,6 +3392,28 @@ public class CsvResultSet implements ResultSet
 
 		if (columnLabel.equals(""))
 			throw new SQLException(CsvResources.getString("invalidColumnName") + ": " + columnLabel);
+
+		if (columnLabelIndexes == null)
+		{
+			/*
+			 * Map each label to the first column with that label.
+			 */
+			columnLabelIndexes = new HashMap<String, Integer>();
+			for (int i = 0; i < this.queryEnvironment.size(); i++)
+			{
+				String label = ((String)this.queryEnvironment.get(i)[0]).toUpperCase();
+				if (!columnLabelIndexes.containsKey(label))
+					columnLabelIndexes.put(label, Integer.valueOf(i + 1));
+			}
+		}
+		Integer index = columnLabelIndexes.get(columnLabel.toUpperCase());
+		if (index != null)
+			return index.intValue();
+
+		/*
+		 * Fall back to comparing each label, for the few characters where
+		 * converting to upper case differs from a case-insensitive comparison.
+		 */
 		for (int i = 0; i < this.queryEnvironment.size(); i++)
 		{
 			Object[] queryEnvEntry = this.queryEnvironment.get(i);
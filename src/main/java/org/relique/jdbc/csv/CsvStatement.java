@@ -18,8 +18,10 @@
  */
 package org.relique.jdbc.csv;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -27,16 +29,20 @@ import java.io.LineNumberReader;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.SQLWarning;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.relique.io.CryptoFilter;
 import org.relique.io.DataReader;
 import org.relique.io.EncryptedFileInputStream;
 import org.relique.io.FileSetInputStream;
 import org.relique.io.ListDataReader;
+import org.relique.io.ParallelGzipInputStream;
 import org.relique.io.TableReader;
 import org.relique.jdbc.dbf.DbfReader;
 
@@ -56,10 +62,16 @@ public class CsvStatement implements Statement
 	protected List<SqlParser> multipleParsers = null;
 	private int maxRows = 0;
 	private int fetchSize = 1;
-	private int queryTimeout = Integer.MAX_VALUE;
+	private int queryTimeout = 0;
 	private int fetchDirection = ResultSet.FETCH_FORWARD;
 	private boolean closed;
 
+	/** Set by another thread to stop the query being executed */
+	private volatile boolean cancelled = false;
+
+	/** Time when query times out, or zero if there is no timeout */
+	private volatile long queryDeadline = 0;
+
 	protected int resultSetType = ResultSet.TYPE_SCROLL_INSENSITIVE;
 
 	/**
@@ -111,6 +123,10 @@ public class CsvStatement implements Statement
 	@Override
 	public void setQueryTimeout(int seconds) throws SQLException
 	{
+		checkOpen();
+
+		if (seconds < 0)
+			throw new SQLException(CsvResources.getString("invalidQueryTimeout") + ": " + seconds);
 		queryTimeout = seconds;
 	}
 
@@ -301,8 +317,316 @@ public class CsvStatement implements Statement
 		return executeParsedQuery(parser);
 	}
 
+	private LineNumberReader createLineNumberReader(InputStream in)
+		throws IOException
+	{
+		if (connection.getCharset() != null)
+			return new LineNumberReader(new InputStreamReader(in, connection.getCharset()));
+		else
+			return new LineNumberReader(new InputStreamReader(in));
+	}
+
+	/**
+	 * Open a CSV file, decompressing it if it is a gzip file.
+	 */
+	private InputStream openTableFile(File sourceFile) throws IOException
+	{
+		InputStream in = new FileInputStream(sourceFile);
+		if (ParallelGzipInputStream.isGzipFileName(sourceFile.getName()))
+		{
+			in = new ParallelGzipInputStream(new BufferedInputStream(in),
+				connection.getDecompressionThreads());
+		}
+		return in;
+	}
+
+	private CsvRawReader createRawReader(LineNumberReader input,
+		String tableName, String tableAlias) throws IOException, SQLException
+	{
+		return new CsvRawReader(input,
+			tableName,
+			tableAlias,
+			connection.getSeparator(),
+			connection.isSuppressHeaders(),
+			connection.isHeaderFixedWidth(),
+			connection.getQuotechar(),
+			connection.getCommentChar(),
+			connection.getHeaderline(tableName),
+			connection.getTrimHeaders(),
+			connection.getTrimValues(),
+			connection.getSkipLeadingLines(),
+			connection.isIgnoreUnparseableLines(),
+			connection.isDefectiveHeaders(),
+			connection.getSkipLeadingDataLines(),
+			connection.getQuoteStyle(),
+			connection.getFixedWidthColumns());
+	}
+
+	private CsvReader createCsvReader(LineNumberReader input,
+		String tableName, String tableAlias) throws IOException, SQLException
+	{
+		CsvRawReader rawReader = createRawReader(input, tableName, tableAlias);
+		return new CsvReader(rawReader,
+			connection.getTransposedLines(),
+			connection.getTransposedFieldsToSkip(),
+			connection.getHeaderline(tableName));
+	}
+
+	/**
+	 * Create reader for a CSV file, with column types guessed from
+	 * rows read in advance if the connection is configured to do so.
+	 */
+	private CsvReader createFileCsvReader(File sourceFile, String tableName,
+		String tableAlias) throws IOException, SQLException
+	{
+		CsvReader csvReader = createCsvReader(createLineNumberReader(openTableFile(sourceFile)),
+			tableName, tableAlias);
+		setInferredColumnTypes(csvReader, sourceFile, tableName);
+		return csvReader;
+	}
+
+	/**
+	 * Set column types guessed from a sample of rows of a CSV file, using
+	 * the column types found by an earlier query of the file if possible.
+	 */
+	private void setInferredColumnTypes(CsvReader csvReader, File sourceFile,
+		String tableName) throws IOException, SQLException
+	{
+		int sampleRows = connection.getColumnTypesSampleRows();
+		if (sampleRows < 0 || !"".equals(connection.getColumnTypes(tableName)) ||
+			connection.getTransposedLines() > 0 || connection.getTransposedFieldsToSkip() > 0)
+		{
+			return;
+		}
+
+		String format = ColumnarCacheReader.getFormatDescription(connection, tableName);
+		String key = TableCache.getKey(sourceFile, format);
+		String[] typeNames = ColumnTypeInference.get(key);
+		if (typeNames == null)
+		{
+			CsvRawReader rawReader = createRawReader(createLineNumberReader(openTableFile(sourceFile)),
+				tableName, null);
+			try
+			{
+				typeNames = ColumnTypeInference.inferColumnTypes(rawReader,
+					createConverter(), sampleRows);
+			}
+			finally
+			{
+				rawReader.close();
+			}
+			if (typeNames == null)
+				return;
+			ColumnTypeInference.put(key, typeNames);
+
+			if (sampleRows > 0 && connection.isColumnTypesFullScan())
+			{
+				rawReader = createRawReader(createLineNumberReader(openTableFile(sourceFile)),
+					tableName, null);
+				ColumnTypeInference.startFullScan(key, rawReader, createConverter());
+			}
+		}
+		csvReader.setInferredColumnTypes(typeNames);
+	}
+
+	private StringConverter createConverter()
+	{
+		return new StringConverter(connection.getDateFormat(),
+			connection.getTimeFormat(), connection.getTimestampFormat(),
+			connection.getTimeZoneName(), connection.getLocale());
+	}
+
+	/**
+	 * Get reader for a CSV file from the rows held in TableCache, reading
+	 * the rows into the cache if they are not already there.
+	 *
+	 * @return cache reader, or CSV file reader if the file cannot be cached.
+	 */
+	private DataReader getTableCacheReader(String fileName, String tableName,
+		String tableAlias) throws IOException, SQLException
+	{
+		File sourceFile = new File(fileName);
+		String format = ColumnarCacheReader.getFormatDescription(connection, tableName);
+		String key = TableCache.getKey(sourceFile, format);
+		TableCache.CachedTable table = TableCache.get(key);
+		if (table == null)
+		{
+			CsvReader csvReader = createFileCsvReader(sourceFile,
+				tableName, tableAlias);
+			csvReader.setConverter(createConverter());
+			String columnTypes = connection.getColumnTypes(tableName);
+			try
+			{
+				if (!"".equals(columnTypes))
+					csvReader.setColumnTypes(columnTypes);
+				table = TableCache.load(csvReader);
+			}
+			catch (SQLException e)
+			{
+				/*
+				 * Report the error when the query reads the CSV file instead.
+				 */
+				CsvDriver.writeLog("Cannot cache table " + tableName + ": " + e);
+			}
+			finally
+			{
+				csvReader.close();
+			}
+
+			/*
+			 * Do not cache rows if file changed while we were reading it.
+			 */
+			if (table != null && TableCache.getKey(sourceFile, format).equals(key))
+				TableCache.put(key, table);
+		}
+
+		if (table != null)
+			return new ColumnarCacheReader(table, tableName, tableAlias);
+		else if (connection.isColumnarCache())
+			return getColumnarCacheReader(fileName, tableName, tableAlias);
+		else
+			return createFileCsvReader(sourceFile,
+				tableName, tableAlias);
+	}
+
+	/**
+	 * Get reader for a CSV file from its cache file, creating the cache
+	 * file if it is missing or out of date.
+	 *
+	 * @return cache reader, or CSV file reader if the file cannot be cached.
+	 */
+	private DataReader getColumnarCacheReader(String fileName, String tableName,
+		String tableAlias) throws IOException, SQLException
+	{
+		File sourceFile = new File(fileName);
+		File cacheFile = ColumnarCacheReader.getCacheFile(sourceFile,
+			connection.getColumnarCacheDirectory());
+		String format = ColumnarCacheReader.getFormatDescription(connection, tableName);
+		DataReader reader = null;
+		try
+		{
+			reader = ColumnarCacheReader.open(cacheFile, sourceFile, format,
+				tableName, tableAlias);
+		}
+		catch (IOException e)
+		{
+			CsvDriver.writeLog("Ignoring invalid cache file " + cacheFile + ": " + e);
+		}
+
+		File cacheDir = cacheFile.getAbsoluteFile().getParentFile();
+		if (reader == null && cacheDir.canWrite())
+		{
+			CsvReader csvReader = createFileCsvReader(sourceFile,
+				tableName, tableAlias);
+			csvReader.setConverter(createConverter());
+			String columnTypes = connection.getColumnTypes(tableName);
+			boolean isWritten = false;
+			try
+			{
+				if (!"".equals(columnTypes))
+					csvReader.setColumnTypes(columnTypes);
+				isWritten = ColumnarCacheReader.write(cacheFile, sourceFile, format, csvReader);
+			}
+			catch (IOException e)
+			{
+				CsvDriver.writeLog("Cannot write cache file " + cacheFile + ": " + e);
+			}
+			catch (SQLException e)
+			{
+				/*
+				 * Report the error when the query reads the CSV file instead.
+				 */
+				CsvDriver.writeLog("Cannot write cache file " + cacheFile + ": " + e);
+			}
+			finally
+			{
+				csvReader.close();
+			}
+			if (isWritten)
+			{
+				reader = ColumnarCacheReader.open(cacheFile, sourceFile, format,
+					tableName, tableAlias);
+			}
+		}
+
+		if (reader == null)
+		{
+			reader = createFileCsvReader(sourceFile,
+				tableName, tableAlias);
+		}
+		return reader;
+	}
+
+	/**
+	 * Create filter to skip files of an indexedFiles table that cannot
+	 * contain any rows matching the WHERE clause.
+	 *
+	 * @return filter, or null if all files must be read.
+	 */
+	private FilenameFilter createIndexedFilesFilter(SqlParser parser,
+		String fileNamePattern) throws IOException, SQLException
+	{
+		LogicalExpression whereClause = parser.getWhereClause();
+		if (whereClause == null ||
+			(connection.getNameParts() == null && connection.getBloomFilterColumns() == null))
+		{
+			return null;
+		}
+
+		/*
+		 * Read header of first file to find the positions of columns.
+		 */
+		String tableName = parser.getTableName();
+		InputStream in = new FileSetInputStream(connection.getPath(),
+			fileNamePattern,
+			connection.getNameParts(),
+			connection.getSeparator(),
+			connection.isFileTailPrepend(),
+			connection.isSuppressHeaders(),
+			null,
+			connection.getSkipLeadingDataLines(),
+			null,
+			connection.getDecompressionThreads());
+		CsvRawReader rawReader = createRawReader(createLineNumberReader(in),
+			tableName, parser.getTableAlias());
+		String[] columnNames = rawReader.getColumnNames();
+		rawReader.close();
+
+		Map<String, Object> placeholders;
+		if (whereClause instanceof ParsedExpression)
+			placeholders = ((ParsedExpression)whereClause).getPlaceholders();
+		else
+			placeholders = new HashMap<String, Object>();
+		IndexedFilesFilter fileFilter = new IndexedFilesFilter(connection,
+			tableName, parser.getTableAlias(), fileNamePattern, columnNames,
+			whereClause, placeholders, this);
+		if (!fileFilter.isFiltering())
+			return null;
+		return fileFilter;
+	}
+
 	protected ResultSet executeParsedQuery(SqlParser parser)
 			throws SQLException
+	{
+		cancelled = false;
+		if (queryTimeout > 0)
+			queryDeadline = System.currentTimeMillis() + queryTimeout * 1000L;
+		try
+		{
+			return createResultSet(parser);
+		}
+		finally
+		{
+			/*
+			 * Timeout only applies to executing the query, not to
+			 * reading rows from the ResultSet afterwards.
+			 */
+			queryDeadline = 0;
+		}
+	}
+
+	private ResultSet createResultSet(SqlParser parser)
+			throws SQLException
 	{
 		String path = connection.getPath();
 		TableReader tableReader = connection.getTableReader();
@@ -337,6 +661,15 @@ public class CsvStatement implements Statement
 
 				File checkFile = new File(fileName);
 
+				/*
+				 * Read compressed file if there is no uncompressed file.
+				 */
+				if (!checkFile.exists() && new File(fileName + ".gz").exists())
+				{
+					fileName = fileName + ".gz";
+					checkFile = new File(fileName);
+				}
+
 				if (!checkFile.exists())
 				{
 					throw new SQLException(CsvResources.getString("fileNotFound") + ": " + fileName);
@@ -354,6 +687,18 @@ public class CsvStatement implements Statement
 				{
 					reader = new DbfReader(fileName, tableName, parser.getTableAlias(), connection.getCharset());
 				}
+				else if (fileName != null && connection.isTableCache() &&
+					connection.getDecryptingCodec() == null)
+				{
+					reader = getTableCacheReader(fileName, tableName,
+						parser.getTableAlias());
+				}
+				else if (fileName != null && connection.isColumnarCache() &&
+					connection.getDecryptingCodec() == null)
+				{
+					reader = getColumnarCacheReader(fileName, tableName,
+						parser.getTableAlias());
+				}
 				else
 				{
 					LineNumberReader input;
@@ -368,6 +713,9 @@ public class CsvStatement implements Statement
 								connection.getExtension();
 							String[] nameParts = connection.getNameParts();
 							String dirName = connection.getPath();
+							FilenameFilter fileFilter = null;
+							if (filter == null && connection.getTransposedLines() == 0)
+								fileFilter = createIndexedFilesFilter(parser, fileNamePattern);
 							in = new FileSetInputStream(dirName,
 								fileNamePattern,
 								nameParts,
@@ -375,25 +723,22 @@ public class CsvStatement implements Statement
 								connection.isFileTailPrepend(),
 								connection.isSuppressHeaders(),
 								filter,
-								connection.getSkipLeadingDataLines() + connection.getTransposedLines());
+								connection.getSkipLeadingDataLines() + connection.getTransposedLines(),
+								fileFilter,
+								connection.getDecompressionThreads());
 						}
 						else if (filter == null)
 						{
-							in = new FileInputStream(fileName);
+							in = openTableFile(new File(fileName));
 						}
 						else
 						{
 							filter.reset();
 							in = new EncryptedFileInputStream(fileName, filter);
+							if (ParallelGzipInputStream.isGzipFileName(fileName))
+								in = new ParallelGzipInputStream(in, connection.getDecompressionThreads());
 						}
-						if (connection.getCharset() != null)
-						{
-							input = new LineNumberReader(new InputStreamReader(in, connection.getCharset()));
-						}
-						else
-						{
-							input = new LineNumberReader(new InputStreamReader(in));
-						}
+						input = createLineNumberReader(in);
 					}
 					else
 					{
@@ -403,28 +748,13 @@ public class CsvStatement implements Statement
 						input = new LineNumberReader(tableReader.getReader(this, tableName));
 					}
 
-					String headerline = connection.getHeaderline(tableName);
-					CsvRawReader rawReader = new CsvRawReader(input,
-						tableName,
-						parser.getTableAlias(),
-						connection.getSeparator(),
-						connection.isSuppressHeaders(),
-						connection.isHeaderFixedWidth(),
-						connection.getQuotechar(),
-						connection.getCommentChar(),
-						headerline,
-						connection.getTrimHeaders(),
-						connection.getTrimValues(),
-						connection.getSkipLeadingLines(),
-						connection.isIgnoreUnparseableLines(),
-						connection.isDefectiveHeaders(),
-						connection.getSkipLeadingDataLines(),
-						connection.getQuoteStyle(),
-						connection.getFixedWidthColumns());
-					reader = new CsvReader(rawReader,
-						connection.getTransposedLines(),
-						connection.getTransposedFieldsToSkip(),
-						headerline);
+					CsvReader csvReader = createCsvReader(input, tableName, parser.getTableAlias());
+					if (tableReader == null && !connection.isIndexedFiles() &&
+						connection.getDecryptingCodec() == null)
+					{
+						setInferredColumnTypes(csvReader, new File(fileName), tableName);
+					}
+					reader = csvReader;
 				}
 			}
 			catch (IOException e)
@@ -442,6 +772,12 @@ public class CsvStatement implements Statement
 			}
 		}
 
+		if (connection.isReadAhead() && reader instanceof CsvReader)
+		{
+			((CsvReader)reader).setReadAhead(fetchSize > 1 ?
+				fetchSize : ReadAheadPipeline.DEFAULT_BATCH_ROWS);
+		}
+
 		CsvResultSet resultSet = null;
 		try
 		{
@@ -495,7 +831,23 @@ public class CsvStatement implements Statement
 	@Override
 	public void cancel() throws SQLException
 	{
-		throw new SQLException(CsvResources.getString("methodNotSupported") + ": Statement.cancel()");
+		/*
+		 * The thread executing the query checks this flag as it reads each row.
+		 */
+		cancelled = true;
+	}
+
+	/**
+	 * Check whether the query has been cancelled or has run for longer
+	 * than the query timeout.
+	 */
+	protected void checkCancelled() throws SQLException
+	{
+		if (cancelled)
+			throw new SQLException(CsvResources.getString("queryCancelled"));
+		long deadline = queryDeadline;
+		if (deadline != 0 && System.currentTimeMillis() > deadline)
+			throw new SQLTimeoutException(CsvResources.getString("queryTimedOut") + ": " + queryTimeout);
 	}
 
 	@Override
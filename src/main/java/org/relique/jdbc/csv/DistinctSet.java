@@ -0,0 +1,448 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2001  Jonathan Ackerman
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Set of rows already returned for a SELECT DISTINCT query, or a GROUP BY
+ * query without aggregate functions.
+ *
+ * Rows are stored as encoded keys. When the keys use more memory than
+ * allowed, they are written to temporary files, partitioned by hash code.
+ * All later rows are also written to these files and are returned after
+ * the last row has been read, reading each partition in turn.
+ *
+ * Rows with a single integer key are stored in a LongHashSet instead,
+ * without encoding them, until keys are written to files.
+ */
+class DistinctSet
+{
+	/** Estimated bytes of memory used by each key in addition to the encoded bytes */
+	private static final int KEY_OVERHEAD = 96;
+
+	/** Estimated bytes of memory used by each key in a LongHashSet */
+	private static final int LONG_KEY_OVERHEAD = 16;
+
+	private static final int PARTITION_BITS = 6;
+	private static final int N_PARTITIONS = 1 << PARTITION_BITS;
+
+	/** Partitions are split again at most this many times */
+	private static final int MAX_LEVEL = 4;
+
+	/** Record types in a partition file */
+	private static final byte SEEN_KEY = 0;
+	private static final byte PENDING_ROW = 1;
+
+	private final long memoryLimit;
+	private final int level;
+	private boolean canSpill;
+
+	private RowEncoder encoder = new RowEncoder();
+	private HashSet<Object> keys = new HashSet<Object>();
+	private LongHashSet longKeys = new LongHashSet();
+	private Class<?> longKeyClass = null;
+	private long memoryUsed = 0;
+
+	private File[] partitionFiles;
+	private DataOutputStream[] partitionOutputs;
+	private long[] partitionRecordCounts;
+
+	/** Partition currently being read after last row, and the rows it returned */
+	private int currentPartition = -1;
+	private DataInputStream partitionInput;
+	private long partitionRecordsLeft;
+	private DistinctSet partitionSet;
+	private Object[] spilledRow;
+
+	/**
+	 * @param memoryLimit bytes of memory to use before writing to temporary files,
+	 * or zero or negative to keep all keys in memory.
+	 */
+	public DistinctSet(long memoryLimit)
+	{
+		this(memoryLimit, 0);
+	}
+
+	private DistinctSet(long memoryLimit, int level)
+	{
+		this.memoryLimit = memoryLimit;
+		this.level = level;
+		this.canSpill = (level > 0 && level <= MAX_LEVEL);
+	}
+
+	/**
+	 * Set whether rows may be written to files and returned after the
+	 * last row, which is not possible if the rows must be sorted or
+	 * buffered by the ResultSet.
+	 */
+	public void setCanSpill(boolean canSpill)
+	{
+		this.canSpill = canSpill;
+	}
+
+	/**
+	 * Add a row to the set.
+	 *
+	 * @param keyValues values identifying distinct rows.
+	 * @param rowValues values of row returned by query.
+	 * @return true if row should be returned now, false if it is a
+	 * duplicate or is written to a file to be returned later.
+	 */
+	public boolean add(List<Object> keyValues, Object[] rowValues) throws SQLException
+	{
+		if (keyValues.size() == 1 && partitionFiles == null)
+		{
+			Object value = keyValues.get(0);
+			Class<?> integralClass = LongHashSet.getIntegralClass(value);
+			if (integralClass != null && longKeyClass == null)
+				longKeyClass = integralClass;
+			if (integralClass != null && integralClass == longKeyClass)
+			{
+				boolean isDistinct = longKeys.add(((Number)value).longValue());
+				if (isDistinct)
+				{
+					memoryUsed += LONG_KEY_OVERHEAD;
+					if (isOverMemoryLimit())
+					{
+						if (encoder.encode(rowValues) == null)
+							canSpill = false;
+						else
+							spill();
+					}
+				}
+				return isDistinct;
+			}
+		}
+
+		byte[] bytes = encoder.encode(keyValues);
+		if (bytes == null)
+		{
+			/*
+			 * Keys with values we cannot encode are always kept in memory.
+			 */
+			if (partitionFiles != null)
+				throw new SQLException(CsvResources.getString("distinctSpillFailed"));
+			canSpill = false;
+			return keys.add(new ArrayList<Object>(keyValues));
+		}
+		RowEncoder.Key key = new RowEncoder.Key(bytes);
+
+		if (partitionFiles != null)
+		{
+			byte[] rowBytes = encoder.encode(rowValues);
+			if (rowBytes == null)
+				throw new SQLException(CsvResources.getString("distinctSpillFailed"));
+			writeRecord(PENDING_ROW, key, rowBytes);
+			return false;
+		}
+
+		boolean isDistinct = keys.add(key);
+		if (isDistinct)
+		{
+			memoryUsed += bytes.length + KEY_OVERHEAD;
+			if (isOverMemoryLimit())
+			{
+				/*
+				 * Check that this row can be written before writing any keys.
+				 */
+				if (encoder.encode(rowValues) == null)
+					canSpill = false;
+				else
+					spill();
+			}
+		}
+		return isDistinct;
+	}
+
+	private boolean isOverMemoryLimit()
+	{
+		return canSpill && memoryLimit > 0 && memoryUsed > memoryLimit;
+	}
+
+	/**
+	 * Write all keys in memory to temporary files.
+	 */
+	private void spill() throws SQLException
+	{
+		partitionFiles = new File[N_PARTITIONS];
+		partitionOutputs = new DataOutputStream[N_PARTITIONS];
+		partitionRecordCounts = new long[N_PARTITIONS];
+		try
+		{
+			for (int i = 0; i < N_PARTITIONS; i++)
+			{
+				partitionFiles[i] = File.createTempFile("csvjdbc", ".distinct");
+				partitionOutputs[i] = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(partitionFiles[i])));
+			}
+		}
+		catch (IOException e)
+		{
+			close();
+			throw new SQLException(CsvResources.getString("distinctSpillFailed") + ": " + e);
+		}
+		for (Object key : keys)
+			writeRecord(SEEN_KEY, (RowEncoder.Key)key, null);
+		keys.clear();
+
+		/*
+		 * Encode integer keys the same way as all later rows.
+		 */
+		long[] values = longKeys.toArray();
+		for (int i = 0; i < values.length; i++)
+		{
+			List<Object> keyValues = Collections.singletonList(LongHashSet.box(values[i], longKeyClass));
+			writeRecord(SEEN_KEY, new RowEncoder.Key(encoder.encode(keyValues)), null);
+		}
+		longKeys.clear();
+		memoryUsed = 0;
+	}
+
+	private void writeRecord(byte recordType, RowEncoder.Key key, byte[] rowBytes) throws SQLException
+	{
+		int partition = key.getPartition(level, PARTITION_BITS);
+		DataOutputStream out = partitionOutputs[partition];
+		try
+		{
+			out.writeByte(recordType);
+			out.writeInt(key.bytes.length);
+			out.write(key.bytes);
+			if (rowBytes != null)
+			{
+				out.writeInt(rowBytes.length);
+				out.write(rowBytes);
+			}
+		}
+		catch (IOException e)
+		{
+			close();
+			throw new SQLException(CsvResources.getString("distinctSpillFailed") + ": " + e);
+		}
+		partitionRecordCounts[partition]++;
+	}
+
+	/**
+	 * Add a key for a row already returned.
+	 */
+	private void addSeenKey(RowEncoder.Key key) throws SQLException
+	{
+		if (partitionFiles != null)
+		{
+			writeRecord(SEEN_KEY, key, null);
+		}
+		else if (keys.add(key))
+		{
+			memoryUsed += key.bytes.length + KEY_OVERHEAD;
+			if (isOverMemoryLimit())
+				spill();
+		}
+	}
+
+	/**
+	 * Add a row written to a file by the parent set.
+	 */
+	private boolean addPendingRow(RowEncoder.Key key, byte[] rowBytes) throws SQLException
+	{
+		if (partitionFiles != null)
+		{
+			writeRecord(PENDING_ROW, key, rowBytes);
+			return false;
+		}
+
+		boolean isDistinct = keys.add(key);
+		if (isDistinct)
+		{
+			memoryUsed += key.bytes.length + KEY_OVERHEAD;
+			if (isOverMemoryLimit())
+				spill();
+		}
+		return isDistinct;
+	}
+
+	/**
+	 * Have rows been written to temporary files?
+	 */
+	public boolean isSpilled()
+	{
+		return partitionFiles != null;
+	}
+
+	/**
+	 * Move to next row written to temporary files that is distinct from
+	 * all rows already returned. Only called after last row has been added.
+	 *
+	 * @return true if there is another row.
+	 */
+	public boolean nextSpilledRow() throws SQLException
+	{
+		if (partitionFiles == null || currentPartition >= N_PARTITIONS)
+			return false;
+
+		try
+		{
+			while (true)
+			{
+				if (partitionInput != null)
+				{
+					while (partitionRecordsLeft > 0)
+					{
+						partitionRecordsLeft--;
+						byte recordType = partitionInput.readByte();
+						byte[] keyBytes = new byte[partitionInput.readInt()];
+						partitionInput.readFully(keyBytes);
+						RowEncoder.Key key = new RowEncoder.Key(keyBytes);
+						if (recordType == SEEN_KEY)
+						{
+							partitionSet.addSeenKey(key);
+						}
+						else
+						{
+							byte[] rowBytes = new byte[partitionInput.readInt()];
+							partitionInput.readFully(rowBytes);
+							if (partitionSet.addPendingRow(key, rowBytes))
+							{
+								spilledRow = RowEncoder.decode(rowBytes);
+								return true;
+							}
+						}
+					}
+					partitionInput.close();
+					partitionInput = null;
+				}
+
+				/*
+				 * Partition has been read, continue with any rows it had
+				 * to write to its own files.
+				 */
+				if (partitionSet != null)
+				{
+					if (partitionSet.nextSpilledRow())
+					{
+						spilledRow = partitionSet.spilledRow;
+						return true;
+					}
+					partitionSet.close();
+					partitionSet = null;
+				}
+
+				if (currentPartition < 0)
+				{
+					for (int i = 0; i < N_PARTITIONS; i++)
+					{
+						partitionOutputs[i].close();
+						partitionOutputs[i] = null;
+					}
+				}
+				else
+				{
+					deletePartition(currentPartition);
+				}
+				currentPartition++;
+				if (currentPartition >= N_PARTITIONS)
+				{
+					close();
+					return false;
+				}
+				partitionInput = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(partitionFiles[currentPartition])));
+				partitionRecordsLeft = partitionRecordCounts[currentPartition];
+				partitionSet = new DistinctSet(memoryLimit, level + 1);
+			}
+		}
+		catch (IOException e)
+		{
+			close();
+			throw new SQLException(CsvResources.getString("distinctSpillFailed") + ": " + e);
+		}
+	}
+
+	/**
+	 * Get values of row found by nextSpilledRow().
+	 */
+	public Object[] getSpilledRow()
+	{
+		return spilledRow;
+	}
+
+	private void deletePartition(int partition)
+	{
+		if (partitionFiles[partition] != null)
+		{
+			partitionFiles[partition].delete();
+			partitionFiles[partition] = null;
+		}
+	}
+
+	/**
+	 * Delete any temporary files.
+	 */
+	public void close()
+	{
+		if (partitionSet != null)
+		{
+			partitionSet.close();
+			partitionSet = null;
+		}
+		if (partitionInput != null)
+		{
+			try
+			{
+				partitionInput.close();
+			}
+			catch (IOException e)
+			{
+			}
+			partitionInput = null;
+		}
+		if (partitionFiles != null)
+		{
+			for (int i = 0; i < N_PARTITIONS; i++)
+			{
+				if (partitionOutputs[i] != null)
+				{
+					try
+					{
+						partitionOutputs[i].close();
+					}
+					catch (IOException e)
+					{
+					}
+					partitionOutputs[i] = null;
+				}
+				deletePartition(i);
+			}
+			currentPartition = N_PARTITIONS;
+		}
+		keys.clear();
+		longKeys.clear();
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2008  Mario Frasca
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.util.HashSet;
+
+/**
+ * Set of values for COUNT(DISTINCT), SUM(DISTINCT) and AVG(DISTINCT).
+ *
+ * Integer values, which are the most common, are stored in a LongHashSet
+ * without creating an object for each value.  Values of all other classes,
+ * and integers of a different class to the first integer added, are
+ * stored in a HashSet, so values are distinct exactly as in a HashSet.
+ */
+class DistinctValueSet
+{
+	private LongHashSet longValues = new LongHashSet();
+	private Class<?> longClass = null;
+	private HashSet<Object> otherValues = new HashSet<Object>();
+
+	/**
+	 * Add a value to the set.
+	 *
+	 * @return true if value was not already in the set.
+	 */
+	public boolean add(Object value)
+	{
+		Class<?> integralClass = LongHashSet.getIntegralClass(value);
+		if (integralClass != null)
+		{
+			if (longClass == null)
+				longClass = integralClass;
+			if (integralClass == longClass)
+				return longValues.add(((Number)value).longValue());
+		}
+		return otherValues.add(value);
+	}
+
+	/**
+	 * Add all values from another set.
+	 */
+	public void addAll(DistinctValueSet other)
+	{
+		if (other.longValues.size() > 0)
+		{
+			long[] values = other.longValues.toArray();
+			if (longClass == null)
+				longClass = other.longClass;
+			if (other.longClass == longClass)
+			{
+				for (int i = 0; i < values.length; i++)
+					longValues.add(values[i]);
+			}
+			else
+			{
+				for (int i = 0; i < values.length; i++)
+					add(LongHashSet.box(values[i], other.longClass));
+			}
+		}
+		for (Object value : other.otherValues)
+			add(value);
+	}
+
+	public int size()
+	{
+		return longValues.size() + otherValues.size();
+	}
+
+	/**
+	 * Add all values in the set to a sum.
+	 */
+	public void addTo(SumAccumulator sum)
+	{
+		long[] values = longValues.toArray();
+		for (int i = 0; i < values.length; i++)
+			sum.addLong(values[i]);
+		for (Object value : otherValues)
+			sum.add(value);
+	}
+}
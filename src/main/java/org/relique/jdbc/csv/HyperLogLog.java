@@ -0,0 +1,189 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2001  Jonathan Ackerman
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.math.BigDecimal;
+
+/**
+ * HyperLogLog sketch estimating the number of distinct values added to it,
+ * using a fixed amount of memory of 2^precision bytes.
+ *
+ * The standard error of the estimate is about 1.04 / sqrt(2^precision),
+ * for example 0.8% with the default precision of 14.
+ */
+class HyperLogLog
+{
+	public static final int MIN_PRECISION = 4;
+	public static final int MAX_PRECISION = 18;
+	public static final int DEFAULT_PRECISION = 14;
+
+	private final int precision;
+	private final byte[] registers;
+
+	public HyperLogLog(int precision)
+	{
+		if (precision < MIN_PRECISION || precision > MAX_PRECISION)
+			throw new IllegalArgumentException("precision: " + precision);
+		this.precision = precision;
+		this.registers = new byte[1 << precision];
+	}
+
+	public int getPrecision()
+	{
+		return precision;
+	}
+
+	/**
+	 * Add a value to the sketch. Null values are ignored.
+	 */
+	public void add(Object value)
+	{
+		if (value != null)
+			addHash(hash(value));
+	}
+
+	/**
+	 * Add a value given as a 64-bit hash with well mixed bits.
+	 */
+	public void addHash(long hash)
+	{
+		/*
+		 * First bits select a register, the register keeps the highest
+		 * position of the first one bit seen in the remaining bits.
+		 */
+		int index = (int)(hash >>> (64 - precision));
+		long remaining = (hash << precision) | (1L << (precision - 1));
+		int rank = Long.numberOfLeadingZeros(remaining) + 1;
+		if (rank > registers[index])
+			registers[index] = (byte)rank;
+	}
+
+	/**
+	 * Combine another sketch into this one, so that this sketch estimates
+	 * the number of distinct values added to either sketch.
+	 */
+	public void merge(HyperLogLog other)
+	{
+		if (other.precision != precision)
+			throw new IllegalArgumentException("precision: " + other.precision);
+		for (int i = 0; i < registers.length; i++)
+		{
+			if (other.registers[i] > registers[i])
+				registers[i] = other.registers[i];
+		}
+	}
+
+	/**
+	 * Get estimated number of distinct values.
+	 */
+	public long estimate()
+	{
+		int m = registers.length;
+		double sum = 0;
+		int nZeroRegisters = 0;
+		for (int i = 0; i < m; i++)
+		{
+			sum += 1.0 / (1L << registers[i]);
+			if (registers[i] == 0)
+				nZeroRegisters++;
+		}
+
+		double alpha;
+		if (m == 16)
+			alpha = 0.673;
+		else if (m == 32)
+			alpha = 0.697;
+		else if (m == 64)
+			alpha = 0.709;
+		else
+			alpha = 0.7213 / (1 + 1.079 / m);
+		double estimate = alpha * m * m / sum;
+
+		/*
+		 * Small counts are more accurately estimated from the number of
+		 * registers that are still empty. With 64-bit hashes no correction
+		 * is needed for large counts.
+		 */
+		if (estimate <= 2.5 * m && nZeroRegisters > 0)
+			estimate = m * Math.log((double)m / nZeroRegisters);
+		return Math.round(estimate);
+	}
+
+	/**
+	 * Calculate a 64-bit hash of a value, so that equal values have
+	 * equal hashes.
+	 */
+	static long hash(Object value)
+	{
+		long h;
+		if (value instanceof String)
+		{
+			/*
+			 * 64-bit FNV-1a hash of characters, because String.hashCode()
+			 * has too many collisions for hundreds of millions of values.
+			 */
+			String str = (String)value;
+			h = 0xCBF29CE484222325L;
+			for (int i = 0; i < str.length(); i++)
+			{
+				h ^= str.charAt(i);
+				h *= 0x100000001B3L;
+			}
+		}
+		else if (value instanceof Long || value instanceof Integer ||
+			value instanceof Short || value instanceof Byte)
+		{
+			h = ((Number)value).longValue();
+		}
+		else if (value instanceof Double || value instanceof Float)
+		{
+			h = Double.doubleToLongBits(((Number)value).doubleValue());
+		}
+		else if (value instanceof BigDecimal)
+		{
+			/*
+			 * Use same hash for equal values with different scales.
+			 */
+			BigDecimal decimal = ((BigDecimal)value).stripTrailingZeros();
+			h = decimal.unscaledValue().hashCode() * 31L + decimal.scale();
+		}
+		else if (value instanceof java.util.Date)
+		{
+			h = ((java.util.Date)value).getTime();
+			if (value instanceof java.sql.Timestamp)
+				h = h * 31 + ((java.sql.Timestamp)value).getNanos();
+		}
+		else
+		{
+			h = value.hashCode();
+		}
+
+		/*
+		 * Mix bits so that similar values give very different hashes,
+		 * adding a constant first so that zero does not hash to zero.
+		 */
+		h += 0x9E3779B97F4A7C15L;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,649 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2001  Jonathan Ackerman
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.relique.io.ParallelGzipInputStream;
+
+/**
+ * Decides which of the files making up an indexedFiles table need to be
+ * read to answer a query, so that files that cannot contain any matching
+ * rows are skipped.
+ *
+ * Conditions in the WHERE clause that only use columns taken from the file
+ * name are checked against the file name before the file is opened.
+ *
+ * For columns listed in the bloomFilterColumns property, a Bloom filter of
+ * the column values is kept for each file in a file next to it, with
+ * extension .bloom.  The Bloom filters are rebuilt whenever the file
+ * modification time or length changes.  Files are skipped when the WHERE
+ * clause requires a column to be equal to a value that is not in the Bloom
+ * filter for that file.
+ */
+class IndexedFilesFilter implements FilenameFilter
+{
+	public static final String BLOOM_FILTER_EXTENSION = ".bloom";
+
+	private static final int BLOOM_FILTER_FILE_MAGIC = 0x43534246;
+
+	private CsvConnection connection;
+
+	private String tableName;
+
+	/** Upper case names, file column indexes and SQL types of columns with Bloom filters */
+	private List<String> bloomColumnNames = new ArrayList<String>();
+	private List<Integer> bloomColumnIndexes = new ArrayList<Integer>();
+	private List<String> bloomColumnTypes = new ArrayList<String>();
+
+	/** Values from WHERE clause that each column must be equal to */
+	private Map<Integer, List<String>> requiredKeys = new HashMap<Integer, List<String>>();
+
+	/** Regular expression matching file names, with a group for each file name column */
+	private Pattern fileNamePattern;
+
+	/** Environment keys and SQL types of columns taken from file names */
+	private List<String[]> namePartKeys = new ArrayList<String[]>();
+	private List<String> namePartTypes = new ArrayList<String>();
+
+	/** Conditions from WHERE clause using only columns from file names */
+	private List<LogicalExpression> namePartConditions = new ArrayList<LogicalExpression>();
+
+	private Map<String, Object> environment = new HashMap<String, Object>();
+
+	private StringConverter converter;
+
+	/**
+	 * @param connection connection with properties describing the files.
+	 * @param tableName table being queried.
+	 * @param tableAlias alias of table in query, or null.
+	 * @param fileNamePattern regular expression matching file names.
+	 * @param columnNames names of table columns, including columns from file names.
+	 * @param whereClause WHERE clause of query, or null.
+	 * @param placeholders prepared statement parameter values.
+	 * @param statement statement executing query.
+	 */
+	public IndexedFilesFilter(CsvConnection connection, String tableName,
+		String tableAlias, String fileNamePattern, String[] columnNames,
+		LogicalExpression whereClause, Map<String, Object> placeholders,
+		CsvStatement statement)
+	{
+		this.connection = connection;
+		this.tableName = tableName;
+		this.fileNamePattern = Pattern.compile(fileNamePattern);
+		if (whereClause == null)
+			return;
+
+		/*
+		 * Column types are needed to convert values in the same way as
+		 * the query does, so we cannot skip files when column types
+		 * are inferred from the data.
+		 */
+		String columnTypes = connection.getColumnTypes(tableName);
+		if (columnTypes == null || columnTypes.length() == 0)
+			return;
+		String[] typeNames = columnTypes.split(",");
+
+		this.converter = createConverter();
+		environment.putAll(placeholders);
+		environment.put(StringConverter.COLUMN_NAME, converter);
+		environment.put(CsvStatement.STATEMENT_COLUMN_NAME, statement);
+
+		List<LogicalExpression> conditions = new ArrayList<LogicalExpression>();
+		addConjuncts(whereClause, conditions);
+
+		initNamePartConditions(tableAlias, columnNames, typeNames, conditions);
+		initBloomFilters(tableAlias, columnNames, typeNames, conditions);
+	}
+
+	/**
+	 * Find conditions in WHERE clause that can be checked using only the
+	 * columns taken from the file name.
+	 */
+	private void initNamePartConditions(String tableAlias, String[] columnNames,
+		String[] typeNames, List<LogicalExpression> conditions)
+	{
+		String[] nameParts = connection.getNameParts();
+		if (nameParts == null)
+			return;
+
+		int firstNamePartColumn = connection.isFileTailPrepend() ? 0 : columnNames.length - nameParts.length;
+		if (firstNamePartColumn < 0)
+			return;
+		Set<String> keys = new HashSet<String>();
+		for (int i = 0; i < nameParts.length; i++)
+		{
+			int columnIndex = firstNamePartColumn + i;
+			String upperColumnName = columnNames[columnIndex].toUpperCase();
+			String []columnKeys;
+			if (tableAlias != null)
+				columnKeys = new String[]{upperColumnName, tableName.toUpperCase() + "." + upperColumnName, tableAlias + "." + upperColumnName};
+			else
+				columnKeys = new String[]{upperColumnName, tableName.toUpperCase() + "." + upperColumnName};
+			namePartKeys.add(columnKeys);
+			namePartTypes.add(typeNames[Math.min(columnIndex, typeNames.length - 1)].trim());
+			for (int j = 0; j < columnKeys.length; j++)
+				keys.add(columnKeys[j]);
+		}
+
+		for (LogicalExpression condition : conditions)
+		{
+			List<String> usedColumns = condition.usedColumns();
+			if (!usedColumns.isEmpty() && keys.containsAll(usedColumns) &&
+				condition.aggregateFunctions().isEmpty())
+			{
+				namePartConditions.add(condition);
+			}
+		}
+	}
+
+	/**
+	 * Find conditions in WHERE clause that can be checked using Bloom filters.
+	 */
+	private void initBloomFilters(String tableAlias, String[] columnNames,
+		String[] typeNames, List<LogicalExpression> conditions)
+	{
+		String[] bloomFilterColumns = connection.getBloomFilterColumns();
+		if (bloomFilterColumns == null)
+			return;
+
+		String[] nameParts = connection.getNameParts();
+		int namePartsCount = (nameParts != null) ? nameParts.length : 0;
+		int firstFileColumn = connection.isFileTailPrepend() ? namePartsCount : 0;
+		int fileColumnCount = columnNames.length - namePartsCount;
+
+		for (int i = 0; i < bloomFilterColumns.length; i++)
+		{
+			String bloomColumnName = bloomFilterColumns[i].trim().toUpperCase();
+			for (int j = 0; j < columnNames.length; j++)
+			{
+				int fileIndex = j - firstFileColumn;
+				if (columnNames[j].trim().toUpperCase().equals(bloomColumnName) &&
+					fileIndex >= 0 && fileIndex < fileColumnCount)
+				{
+					String typeName = typeNames[Math.min(j, typeNames.length - 1)].trim();
+					Class<?> typeClass = converter.forSQLName(typeName);
+
+					/*
+					 * Bloom filters are only kept for columns that we can
+					 * compare exactly as strings or as numbers.
+					 */
+					if (typeClass != null && (typeClass.equals(String.class) ||
+						Number.class.isAssignableFrom(typeClass)))
+					{
+						bloomColumnNames.add(bloomColumnName);
+						bloomColumnIndexes.add(Integer.valueOf(fileIndex));
+						bloomColumnTypes.add(typeName);
+					}
+					break;
+				}
+			}
+		}
+
+		for (LogicalExpression condition : conditions)
+		{
+			if (condition instanceof RelopExpression)
+			{
+				RelopExpression relop = (RelopExpression)condition;
+				if (relop.op.equals("="))
+				{
+					if (!addRequiredKey(relop.left, relop.right, tableAlias))
+						addRequiredKey(relop.right, relop.left, tableAlias);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Split WHERE clause into conditions that must all be true.
+	 */
+	static void addConjuncts(Expression expression, List<LogicalExpression> conditions)
+	{
+		if (expression instanceof ParsedExpression)
+		{
+			addConjuncts(((ParsedExpression)expression).content, conditions);
+		}
+		else if (expression instanceof AndExpression)
+		{
+			AndExpression andExpression = (AndExpression)expression;
+			addConjuncts(andExpression.left, conditions);
+			addConjuncts(andExpression.right, conditions);
+		}
+		else if (expression instanceof LogicalExpression)
+		{
+			conditions.add((LogicalExpression)expression);
+		}
+	}
+
+	/**
+	 * Record value required for a column with a Bloom filter, for a condition
+	 * column = value.
+	 *
+	 * @return true if condition is usable with a Bloom filter.
+	 */
+	private boolean addRequiredKey(Expression column, Expression value,
+		String tableAlias)
+	{
+		if (!(column instanceof ColumnName))
+			return false;
+		if (!value.usedColumns().isEmpty() || !value.aggregateFunctions().isEmpty())
+			return false;
+
+		String columnName = ((ColumnName)column).columnName;
+		String upperTableName = tableName.toUpperCase();
+		if (columnName.startsWith(upperTableName + "."))
+			columnName = columnName.substring(upperTableName.length() + 1);
+		else if (tableAlias != null && columnName.startsWith(tableAlias.toUpperCase() + "."))
+			columnName = columnName.substring(tableAlias.length() + 1);
+
+		int bloomIndex = bloomColumnNames.indexOf(columnName);
+		if (bloomIndex < 0)
+			return false;
+
+		Object constant;
+		try
+		{
+			constant = value.eval(environment);
+		}
+		catch (SQLException e)
+		{
+			return false;
+		}
+
+		/*
+		 * A string column is never equal to a number, and a number column
+		 * is never equal to a string, but we only skip files in the simple
+		 * cases where types match.
+		 */
+		boolean isStringColumn = bloomColumnTypes.get(bloomIndex).equalsIgnoreCase("String");
+		if (isStringColumn != (constant instanceof String))
+			return false;
+		String key = getKey(constant);
+		if (key == null)
+			return false;
+
+		Integer mapKey = Integer.valueOf(bloomIndex);
+		List<String> keys = requiredKeys.get(mapKey);
+		if (keys == null)
+		{
+			keys = new ArrayList<String>();
+			requiredKeys.put(mapKey, keys);
+		}
+		keys.add(key);
+		return true;
+	}
+
+	/**
+	 * Get key for Bloom filter that is the same for any two values that
+	 * compare as equal in an SQL expression.
+	 */
+	private static String getKey(Object value)
+	{
+		if (value instanceof String)
+			return "S" + value;
+		if (value instanceof Number)
+		{
+			/*
+			 * Numbers of different types are compared as doubles.
+			 */
+			try
+			{
+				return "N" + Double.valueOf(value.toString());
+			}
+			catch (NumberFormatException e)
+			{
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if this filter may skip some files.
+	 */
+	public boolean isFiltering()
+	{
+		return !(requiredKeys.isEmpty() && namePartConditions.isEmpty());
+	}
+
+	private StringConverter createConverter()
+	{
+		return new StringConverter(connection.getDateFormat(),
+			connection.getTimeFormat(), connection.getTimestampFormat(),
+			connection.getTimeZoneName(), connection.getLocale());
+	}
+
+	@Override
+	public boolean accept(File dir, String name)
+	{
+		if (!namePartConditions.isEmpty() && !acceptNameParts(name))
+			return false;
+
+		if (requiredKeys.isEmpty())
+			return true;
+
+		File file = new File(dir, name);
+		BloomFilter[] bloomFilters;
+		try
+		{
+			bloomFilters = getBloomFilters(file);
+		}
+		catch (IOException e)
+		{
+			CsvDriver.writeLog("Cannot create Bloom filters for " + file + ": " + e);
+			return true;
+		}
+		catch (SQLException e)
+		{
+			CsvDriver.writeLog("Cannot create Bloom filters for " + file + ": " + e);
+			return true;
+		}
+
+		for (Map.Entry<Integer, List<String>> entry : requiredKeys.entrySet())
+		{
+			BloomFilter bloomFilter = bloomFilters[entry.getKey().intValue()];
+			for (String key : entry.getValue())
+			{
+				if (!bloomFilter.mightContain(key))
+				{
+					CsvDriver.writeLog("Skipping file " + file + " with no " +
+						bloomColumnNames.get(entry.getKey().intValue()) + " = " + key.substring(1));
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check conditions using columns taken from file name.
+	 *
+	 * @return false if no rows of file can match WHERE clause.
+	 */
+	private boolean acceptNameParts(String name)
+	{
+		Matcher m = fileNamePattern.matcher(name);
+		if (!m.matches())
+			return true;
+
+		/*
+		 * Put column values from file name in environment, in the same way
+		 * as CsvReader does.
+		 */
+		Map<String, Object> env = new HashMap<String, Object>(environment);
+		for (int i = 0; i < namePartKeys.size(); i++)
+		{
+			String value = null;
+			if (i < m.groupCount())
+			{
+				value = m.group(i + 1);
+				if (value != null && connection.getTrimValues())
+					value = value.trim();
+			}
+			Object convertedValue = converter.convert(namePartTypes.get(i), value);
+			String[] keys = namePartKeys.get(i);
+			for (int j = 0; j < keys.length; j++)
+				env.put(keys[j], convertedValue);
+		}
+
+		try
+		{
+			for (LogicalExpression condition : namePartConditions)
+			{
+				if (!condition.isTrue(env))
+				{
+					CsvDriver.writeLog("Skipping file " + name + " not matching " + condition);
+					return false;
+				}
+			}
+		}
+		catch (SQLException e)
+		{
+			/*
+			 * Read the file and let the query report the error.
+			 */
+		}
+		return true;
+	}
+
+	/**
+	 * Describes everything that affects the values we read from a file.
+	 */
+	private String getFormatDescription()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(connection.getSeparator()).append('|');
+		sb.append(connection.getQuotechar()).append('|');
+		sb.append(connection.getQuoteStyle()).append('|');
+		sb.append(connection.getCommentChar()).append('|');
+		sb.append(connection.getSkipLeadingLines()).append('|');
+		sb.append(connection.getTrimValues()).append('|');
+		sb.append(connection.isIgnoreUnparseableLines()).append('|');
+		sb.append(connection.getCharset()).append('|');
+		sb.append(connection.getLocale()).append('|');
+		if (connection.getFixedWidthColumns() != null)
+		{
+			for (int[] columnRange : connection.getFixedWidthColumns())
+				sb.append(columnRange[0]).append('-').append(columnRange[1]).append(',');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Read Bloom filters for a file, creating them if they are missing or
+	 * out of date.
+	 */
+	private BloomFilter[] getBloomFilters(File file) throws IOException, SQLException
+	{
+		File bloomFile = new File(file.getPath() + BLOOM_FILTER_EXTENSION);
+		String format = getFormatDescription();
+		BloomFilter[] bloomFilters = null;
+		if (bloomFile.exists())
+		{
+			try
+			{
+				bloomFilters = readBloomFilters(file, bloomFile, format);
+			}
+			catch (IOException e)
+			{
+				CsvDriver.writeLog("Ignoring invalid Bloom filter file " + bloomFile + ": " + e);
+			}
+		}
+
+		if (bloomFilters == null)
+		{
+			/*
+			 * Create Bloom filters for all configured columns, so the file
+			 * is useful for other queries too.
+			 */
+			long lastModified = file.lastModified();
+			long length = file.length();
+			bloomFilters = createBloomFilters(file);
+			try
+			{
+				writeBloomFilters(bloomFile, bloomFilters, lastModified, length, format);
+			}
+			catch (IOException e)
+			{
+				/*
+				 * Directory is probably read-only, just use Bloom filters for
+				 * this query.
+				 */
+				CsvDriver.writeLog("Cannot write Bloom filter file " + bloomFile + ": " + e);
+				bloomFile.delete();
+			}
+		}
+		return bloomFilters;
+	}
+
+	private BloomFilter[] readBloomFilters(File file, File bloomFile, String format)
+		throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(bloomFile)));
+		try
+		{
+			if (in.readInt() != BLOOM_FILTER_FILE_MAGIC)
+				return null;
+			if (in.readLong() != file.lastModified() || in.readLong() != file.length())
+				return null;
+			if (!in.readUTF().equals(format))
+				return null;
+
+			BloomFilter[] bloomFilters = new BloomFilter[bloomColumnNames.size()];
+			int nColumns = in.readInt();
+			for (int i = 0; i < nColumns; i++)
+			{
+				String columnName = in.readUTF();
+				String typeName = in.readUTF();
+				int fileIndex = in.readInt();
+				BloomFilter bloomFilter = BloomFilter.read(in);
+				int bloomIndex = bloomColumnNames.indexOf(columnName);
+				if (bloomIndex >= 0 &&
+					bloomColumnTypes.get(bloomIndex).equalsIgnoreCase(typeName) &&
+					bloomColumnIndexes.get(bloomIndex).intValue() == fileIndex)
+				{
+					bloomFilters[bloomIndex] = bloomFilter;
+				}
+			}
+			for (int i = 0; i < bloomFilters.length; i++)
+			{
+				if (bloomFilters[i] == null)
+					return null;
+			}
+			return bloomFilters;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private void writeBloomFilters(File bloomFile, BloomFilter[] bloomFilters,
+		long lastModified, long length, String format) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(bloomFile)));
+		try
+		{
+			out.writeInt(BLOOM_FILTER_FILE_MAGIC);
+			out.writeLong(lastModified);
+			out.writeLong(length);
+			out.writeUTF(format);
+			out.writeInt(bloomFilters.length);
+			for (int i = 0; i < bloomFilters.length; i++)
+			{
+				out.writeUTF(bloomColumnNames.get(i));
+				out.writeUTF(bloomColumnTypes.get(i));
+				out.writeInt(bloomColumnIndexes.get(i).intValue());
+				bloomFilters[i].write(out);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Read all values in a file and add them to new Bloom filters.
+	 */
+	private BloomFilter[] createBloomFilters(File file) throws IOException, SQLException
+	{
+		CsvDriver.writeLog("Creating Bloom filters for " + file);
+
+		InputStream in = new FileInputStream(file);
+		if (ParallelGzipInputStream.isGzipFileName(file.getName()))
+		{
+			in = new ParallelGzipInputStream(new BufferedInputStream(in),
+				connection.getDecompressionThreads());
+		}
+		LineNumberReader input;
+		if (connection.getCharset() != null)
+			input = new LineNumberReader(new InputStreamReader(in, connection.getCharset()));
+		else
+			input = new LineNumberReader(new InputStreamReader(in));
+
+		/*
+		 * Read every line as data.  Any header line just adds values to the
+		 * Bloom filters that are never looked up.
+		 */
+		CsvRawReader rawReader = new CsvRawReader(input, tableName, null,
+			connection.getSeparator(), true, connection.isHeaderFixedWidth(),
+			connection.getQuotechar(), connection.getCommentChar(), null,
+			connection.getTrimHeaders(), connection.getTrimValues(),
+			connection.getSkipLeadingLines(), connection.isIgnoreUnparseableLines(),
+			false, 0, connection.getQuoteStyle(), connection.getFixedWidthColumns());
+
+		StringConverter converter = createConverter();
+		List<Set<String>> columnKeys = new ArrayList<Set<String>>();
+		for (int i = 0; i < bloomColumnNames.size(); i++)
+			columnKeys.add(new HashSet<String>());
+		try
+		{
+			while (rawReader.next())
+			{
+				String[] fieldValues = rawReader.getFieldValues();
+				for (int i = 0; i < bloomColumnNames.size(); i++)
+				{
+					int fileIndex = bloomColumnIndexes.get(i).intValue();
+					if (fileIndex < fieldValues.length)
+					{
+						Object value = converter.convert(bloomColumnTypes.get(i), fieldValues[fileIndex]);
+						String key = getKey(value);
+						if (key != null)
+							columnKeys.get(i).add(key);
+					}
+				}
+			}
+		}
+		finally
+		{
+			rawReader.close();
+		}
+
+		BloomFilter[] bloomFilters = new BloomFilter[columnKeys.size()];
+		for (int i = 0; i < bloomFilters.length; i++)
+		{
+			Set<String> keys = columnKeys.get(i);
+			bloomFilters[i] = new BloomFilter(keys.size());
+			for (String key : keys)
+				bloomFilters[i].add(key);
+		}
+		return bloomFilters;
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2008  Mario Frasca
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+/**
+ * Map from long keys to objects using open addressing, without creating
+ * an object for each key as a HashMap with Long keys does.
+ */
+class LongHashMap<V>
+{
+	private static final int INITIAL_CAPACITY = 16;
+
+	/** Keys of hash table, with a null value marking an empty slot */
+	private long[] keys;
+	private Object[] values;
+	private int mask;
+	private int size = 0;
+
+	public LongHashMap()
+	{
+		keys = new long[INITIAL_CAPACITY];
+		values = new Object[INITIAL_CAPACITY];
+		mask = INITIAL_CAPACITY - 1;
+	}
+
+	/**
+	 * Get value for a key.
+	 *
+	 * @return value, or null if map does not contain key.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key)
+	{
+		int slot = LongHashSet.hash(key) & mask;
+		while (values[slot] != null)
+		{
+			if (keys[slot] == key)
+				return (V)values[slot];
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * Set value for a key.
+	 *
+	 * @param value value, which must not be null.
+	 */
+	public void put(long key, V value)
+	{
+		int slot = LongHashSet.hash(key) & mask;
+		while (values[slot] != null)
+		{
+			if (keys[slot] == key)
+			{
+				values[slot] = value;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		size++;
+
+		/*
+		 * Keep table at most three quarters full so that probe sequences stay short.
+		 */
+		if (size * 4L > keys.length * 3L)
+			resize();
+	}
+
+	private void resize()
+	{
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new Object[oldValues.length * 2];
+		mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (oldValues[i] != null)
+			{
+				int slot = LongHashSet.hash(oldKeys[i]) & mask;
+				while (values[slot] != null)
+					slot = (slot + 1) & mask;
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Get all keys in the map, in no particular order.
+	 */
+	public long[] keys()
+	{
+		long[] result = new long[size];
+		int n = 0;
+		for (int i = 0; i < keys.length; i++)
+		{
+			if (values[i] != null)
+				result[n++] = keys[i];
+		}
+		return result;
+	}
+
+	public void clear()
+	{
+		keys = new long[INITIAL_CAPACITY];
+		values = new Object[INITIAL_CAPACITY];
+		mask = INITIAL_CAPACITY - 1;
+		size = 0;
+	}
+}
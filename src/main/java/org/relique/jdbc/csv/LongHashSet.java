@@ -0,0 +1,181 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2008  Mario Frasca
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.util.Arrays;
+
+/**
+ * Set of long values using open addressing, without creating an object
+ * for each value as a HashSet of Long objects does.
+ */
+class LongHashSet
+{
+	private static final int INITIAL_CAPACITY = 16;
+
+	/** Slots of hash table, with zero marking an empty slot */
+	private long[] table;
+	private int mask;
+	private int size = 0;
+
+	/** Zero cannot be stored in the table, so it is recorded separately */
+	private boolean hasZero = false;
+
+	public LongHashSet()
+	{
+		table = new long[INITIAL_CAPACITY];
+		mask = INITIAL_CAPACITY - 1;
+	}
+
+	/**
+	 * Check if a value is an integer that can be stored as a long,
+	 * returning its class, or null if it cannot.
+	 */
+	static Class<?> getIntegralClass(Object value)
+	{
+		if (value instanceof Integer)
+			return Integer.class;
+		if (value instanceof Long)
+			return Long.class;
+		return null;
+	}
+
+	/**
+	 * Create object of class returned by getIntegralClass() from a long value.
+	 */
+	static Object box(long value, Class<?> integralClass)
+	{
+		if (integralClass == Integer.class)
+			return Integer.valueOf((int)value);
+		return Long.valueOf(value);
+	}
+
+	/**
+	 * Calculate hash code of a value, mixing all bits so that
+	 * sequential values are spread over the table.
+	 */
+	static int hash(long value)
+	{
+		long h = value * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	/**
+	 * Add a value to the set.
+	 *
+	 * @return true if value was not already in the set.
+	 */
+	public boolean add(long value)
+	{
+		if (value == 0)
+		{
+			if (hasZero)
+				return false;
+			hasZero = true;
+			size++;
+			return true;
+		}
+
+		int slot = hash(value) & mask;
+		while (table[slot] != 0)
+		{
+			if (table[slot] == value)
+				return false;
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = value;
+		size++;
+
+		/*
+		 * Keep table at most three quarters full so that probe sequences stay short.
+		 */
+		if (size * 4L > table.length * 3L)
+			resize();
+		return true;
+	}
+
+	public boolean contains(long value)
+	{
+		if (value == 0)
+			return hasZero;
+
+		int slot = hash(value) & mask;
+		while (table[slot] != 0)
+		{
+			if (table[slot] == value)
+				return true;
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	private void resize()
+	{
+		long[] oldTable = table;
+		table = new long[oldTable.length * 2];
+		mask = table.length - 1;
+		for (int i = 0; i < oldTable.length; i++)
+		{
+			long value = oldTable[i];
+			if (value != 0)
+			{
+				int slot = hash(value) & mask;
+				while (table[slot] != 0)
+					slot = (slot + 1) & mask;
+				table[slot] = value;
+			}
+		}
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Get all values in the set, in no particular order.
+	 */
+	public long[] toArray()
+	{
+		long[] values = new long[size];
+		int n = 0;
+		if (hasZero)
+			values[n++] = 0;
+		for (int i = 0; i < table.length; i++)
+		{
+			if (table[i] != 0)
+				values[n++] = table[i];
+		}
+		return values;
+	}
+
+	public void clear()
+	{
+		if (table.length > INITIAL_CAPACITY)
+		{
+			table = new long[INITIAL_CAPACITY];
+			mask = INITIAL_CAPACITY - 1;
+		}
+		else
+		{
+			Arrays.fill(table, 0);
+		}
+		size = 0;
+		hasZero = false;
+	}
+}
@@ -0,0 +1,389 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2001  Jonathan Ackerman
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+/**
+ * Parses numbers from a range of characters without creating any objects
+ * and without throwing exceptions for text that is not a number, which is
+ * slow when many values are empty or contain text like "N/A".
+ *
+ * Each parse method returns a status and leaves the parsed value in this
+ * object, to be read with getLong(), getDouble() or getScale().
+ */
+class NumberParser
+{
+	public static final int OK = 0;
+	public static final int EMPTY = 1;
+	public static final int INVALID = 2;
+	public static final int OUT_OF_RANGE = 3;
+
+	/** Maximum number of significant digits we accumulate in a long */
+	private static final int MAX_MANTISSA_DIGITS = 18;
+
+	/** Powers of ten that are exactly representable as a double */
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+		1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20,
+		1e21, 1e22
+	};
+
+	private long longValue;
+	private double doubleValue;
+	private int scale;
+
+	public long getLong()
+	{
+		return longValue;
+	}
+
+	public double getDouble()
+	{
+		return doubleValue;
+	}
+
+	public int getScale()
+	{
+		return scale;
+	}
+
+	/**
+	 * Parse an integer, accepting the same text as Long.parseLong().
+	 *
+	 * @return OK, EMPTY, INVALID or OUT_OF_RANGE.
+	 */
+	public int parseLong(CharSequence chars, int start, int end)
+	{
+		if (start >= end)
+			return EMPTY;
+
+		int i = start;
+		boolean negative = false;
+		char c = chars.charAt(i);
+		if (c == '-' || c == '+')
+		{
+			negative = (c == '-');
+			i++;
+			if (i == end)
+				return INVALID;
+		}
+
+		/*
+		 * Accumulate negative value so that Long.MIN_VALUE can be parsed.
+		 */
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long multiplyMin = limit / 10;
+		long result = 0;
+		int status = OK;
+		while (i < end)
+		{
+			int digit = Character.digit(chars.charAt(i), 10);
+			if (digit < 0)
+				return INVALID;
+			if (status == OK)
+			{
+				if (result < multiplyMin || result * 10 < limit + digit)
+					status = OUT_OF_RANGE;
+				else
+					result = result * 10 - digit;
+			}
+			i++;
+		}
+		if (status == OK)
+			longValue = negative ? result : -result;
+		return status;
+	}
+
+	/**
+	 * Parse an integer that must lie within a range.
+	 *
+	 * @return OK, EMPTY, INVALID or OUT_OF_RANGE.
+	 */
+	public int parseLong(CharSequence chars, int start, int end, long minValue, long maxValue)
+	{
+		int status = parseLong(chars, start, end);
+		if (status == OK && (longValue < minValue || longValue > maxValue))
+			status = OUT_OF_RANGE;
+		return status;
+	}
+
+	private static boolean isAsciiDigit(char c)
+	{
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	 * Parse a decimal number such as -12.50 into an unscaled long value and
+	 * a scale, as BigDecimal does, read with getLong() and getScale().
+	 *
+	 * @return OK, EMPTY, INVALID, or OUT_OF_RANGE if the number does not fit
+	 * in a long or is written in a form only new BigDecimal(String) handles,
+	 * such as with an exponent.
+	 */
+	public int parseScaledLong(CharSequence chars, int start, int end)
+	{
+		if (start >= end)
+			return EMPTY;
+
+		int i = start;
+		boolean negative = false;
+		char c = chars.charAt(i);
+		if (c == '-' || c == '+')
+		{
+			negative = (c == '-');
+			i++;
+		}
+		long result = 0;
+		int nDigits = 0;
+		int newScale = 0;
+		boolean hasPoint = false;
+		while (i < end)
+		{
+			c = chars.charAt(i);
+			if (isAsciiDigit(c))
+			{
+				if (result > (Long.MAX_VALUE - 9) / 10)
+					return OUT_OF_RANGE;
+				result = result * 10 + (c - '0');
+				nDigits++;
+				if (hasPoint)
+					newScale++;
+			}
+			else if (c == '.' && !hasPoint)
+			{
+				hasPoint = true;
+			}
+			else if (c == 'e' || c == 'E' || Character.isDigit(c))
+			{
+				return OUT_OF_RANGE;
+			}
+			else
+			{
+				return INVALID;
+			}
+			i++;
+		}
+		if (nDigits == 0)
+			return INVALID;
+		longValue = negative ? -result : result;
+		scale = newScale;
+		return OK;
+	}
+
+	/**
+	 * Parse a floating point number, accepting the same text as
+	 * Double.parseDouble().
+	 *
+	 * @param allowComma true if a comma may be used as the decimal point.
+	 * @return OK, EMPTY or INVALID.
+	 */
+	public int parseDouble(CharSequence chars, int start, int end, boolean allowComma)
+	{
+		/*
+		 * Leading and trailing whitespace is ignored, as in Double.parseDouble().
+		 */
+		while (start < end && chars.charAt(start) <= ' ')
+			start++;
+		while (end > start && chars.charAt(end - 1) <= ' ')
+			end--;
+		if (start >= end)
+			return EMPTY;
+
+		int i = start;
+		boolean negative = false;
+		char c = chars.charAt(i);
+		if (c == '-' || c == '+')
+		{
+			negative = (c == '-');
+			i++;
+		}
+		if (i < end)
+		{
+			c = chars.charAt(i);
+			if (c == 'N' || c == 'I' ||
+				(c == '0' && i + 1 < end && (chars.charAt(i + 1) == 'x' || chars.charAt(i + 1) == 'X')))
+			{
+				/*
+				 * NaN, Infinity and hexadecimal numbers are rare, let Java parse them.
+				 */
+				return parseDoubleSlowly(chars, start, end, allowComma);
+			}
+		}
+
+		long mantissa = 0;
+		int nMantissaDigits = 0;
+		int decimalExponent = 0;
+		boolean isExact = true;
+		boolean hasDigits = false;
+		while (i < end && isAsciiDigit(c = chars.charAt(i)))
+		{
+			hasDigits = true;
+			if (nMantissaDigits < MAX_MANTISSA_DIGITS)
+			{
+				mantissa = mantissa * 10 + (c - '0');
+				if (mantissa > 0)
+					nMantissaDigits++;
+			}
+			else
+			{
+				decimalExponent++;
+				isExact = false;
+			}
+			i++;
+		}
+		if (i < end && (c == '.' || (allowComma && c == ',')))
+		{
+			i++;
+			while (i < end && isAsciiDigit(c = chars.charAt(i)))
+			{
+				hasDigits = true;
+				if (nMantissaDigits < MAX_MANTISSA_DIGITS)
+				{
+					mantissa = mantissa * 10 + (c - '0');
+					if (mantissa > 0)
+						nMantissaDigits++;
+					decimalExponent--;
+				}
+				else
+				{
+					isExact = false;
+				}
+				i++;
+			}
+		}
+		if (!hasDigits)
+			return INVALID;
+
+		if (i < end && (c == 'e' || c == 'E'))
+		{
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && (chars.charAt(i) == '-' || chars.charAt(i) == '+'))
+			{
+				negativeExponent = (chars.charAt(i) == '-');
+				i++;
+			}
+			int exponent = 0;
+			boolean hasExponentDigits = false;
+			while (i < end && isAsciiDigit(c = chars.charAt(i)))
+			{
+				hasExponentDigits = true;
+				if (exponent < 100000)
+					exponent = exponent * 10 + (c - '0');
+				i++;
+			}
+			if (!hasExponentDigits)
+				return INVALID;
+			decimalExponent += negativeExponent ? -exponent : exponent;
+		}
+		if (i < end)
+		{
+			c = chars.charAt(i);
+			if (c == 'f' || c == 'F' || c == 'd' || c == 'D')
+				i++;
+		}
+		if (i != end)
+			return INVALID;
+
+		/*
+		 * A mantissa and power of ten that are both exact doubles give a
+		 * correctly rounded result with a single multiplication or division.
+		 */
+		if (isExact && mantissa < (1L << 53) &&
+			decimalExponent >= -22 && decimalExponent <= 22)
+		{
+			double value = mantissa;
+			if (decimalExponent > 0)
+				value = value * POWERS_OF_TEN[decimalExponent];
+			else if (decimalExponent < 0)
+				value = value / POWERS_OF_TEN[-decimalExponent];
+			doubleValue = negative ? -value : value;
+			return OK;
+		}
+		return parseDoubleSlowly(chars, start, end, allowComma);
+	}
+
+	private int parseDoubleSlowly(CharSequence chars, int start, int end, boolean allowComma)
+	{
+		String str = chars.subSequence(start, end).toString();
+		if (allowComma)
+			str = str.replace(',', '.');
+		try
+		{
+			doubleValue = Double.parseDouble(str);
+			return OK;
+		}
+		catch (NumberFormatException e)
+		{
+			return INVALID;
+		}
+	}
+
+	/**
+	 * Check that characters are a decimal number accepted by new BigDecimal(String).
+	 *
+	 * @return OK, EMPTY or INVALID.
+	 */
+	public int checkDecimal(CharSequence chars, int start, int end)
+	{
+		if (start >= end)
+			return EMPTY;
+
+		int i = start;
+		char c = chars.charAt(i);
+		if (c == '-' || c == '+')
+			i++;
+		boolean hasDigits = false;
+		boolean hasPoint = false;
+		while (i < end)
+		{
+			c = chars.charAt(i);
+			if (Character.isDigit(c))
+				hasDigits = true;
+			else if (c == '.' && !hasPoint)
+				hasPoint = true;
+			else
+				break;
+			i++;
+		}
+		if (!hasDigits)
+			return INVALID;
+
+		if (i < end && (c == 'e' || c == 'E'))
+		{
+			i++;
+			if (i < end && (chars.charAt(i) == '-' || chars.charAt(i) == '+'))
+				i++;
+			int nExponentDigits = 0;
+			while (i < end && Character.isDigit(chars.charAt(i)))
+			{
+				nExponentDigits++;
+				i++;
+			}
+
+			/*
+			 * Exponent must fit in an int.
+			 */
+			if (nExponentDigits == 0 || nExponentDigits > 9)
+				return INVALID;
+		}
+		if (i != end)
+			return INVALID;
+		return OK;
+	}
+}
@@ -0,0 +1,371 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2008  Mario Frasca
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Calculates GROUP BY aggregate functions using several threads.
+ *
+ * Rows read by the caller are passed in batches to worker threads.  Each
+ * worker thread keeps its own hash table of groups, with a state for
+ * each aggregate function.  When all rows have been read, the hash tables
+ * of the worker threads are merged.
+ *
+ * Groups with a single integer GROUP BY key are found in a LongHashMap,
+ * without creating a list for the key of each row.
+ */
+class ParallelAggregator
+{
+	private static final int BATCH_SIZE = 512;
+
+	private static class Batch
+	{
+		private long firstRowNumber;
+		private List<Map<String, Object>> rows;
+
+		private Batch(long firstRowNumber, List<Map<String, Object>> rows)
+		{
+			this.firstRowNumber = firstRowNumber;
+			this.rows = rows;
+		}
+	}
+
+	private static final Batch END_OF_ROWS = new Batch(-1, null);
+
+	private class Worker extends Thread
+	{
+		private StringConverter converter;
+		private HashMap<List<Object>, AggregateGroup> groups = new HashMap<List<Object>, AggregateGroup>();
+		private LongHashMap<AggregateGroup> longGroups = new LongHashMap<AggregateGroup>();
+		private Class<?> longKeyClass = null;
+
+		private Worker(int index, StringConverter converter)
+		{
+			super("CsvJdbc aggregation " + index);
+			this.converter = converter;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (true)
+				{
+					Batch batch = queue.take();
+					if (batch == END_OF_ROWS)
+						break;
+
+					/*
+					 * After a failure, keep taking batches so the reading
+					 * thread is not blocked, but ignore them.
+					 */
+					if (failure == null)
+						processBatch(batch);
+				}
+			}
+			catch (InterruptedException e)
+			{
+			}
+		}
+
+		private void processBatch(Batch batch)
+		{
+			try
+			{
+				long rowNumber = batch.firstRowNumber;
+				for (Map<String, Object> row : batch.rows)
+				{
+					processRow(row, rowNumber);
+					rowNumber++;
+				}
+			}
+			catch (Throwable e)
+			{
+				/*
+				 * Record any error, so that finish() does not return
+				 * results without the groups of this thread.
+				 */
+				failure = e;
+			}
+		}
+
+		private void processRow(Map<String, Object> row, long rowNumber) throws SQLException
+		{
+			/*
+			 * Date and time conversions are not thread safe, so each thread has its own.
+			 */
+			row.put(StringConverter.COLUMN_NAME, converter);
+
+			AggregateGroup group;
+			if (groupByColumns.size() == 1)
+			{
+				Object value = groupByColumns.get(0).eval(row);
+				Class<?> integralClass = LongHashSet.getIntegralClass(value);
+				if (integralClass != null && longKeyClass == null)
+					longKeyClass = integralClass;
+				if (integralClass != null && integralClass == longKeyClass)
+				{
+					long longKey = ((Number)value).longValue();
+					group = longGroups.get(longKey);
+					if (group == null)
+					{
+						group = createGroup(row, rowNumber);
+						longGroups.put(longKey, group);
+					}
+				}
+				else
+				{
+					group = getGroup(Collections.singletonList(value), row, rowNumber);
+				}
+			}
+			else
+			{
+				ArrayList<Object> key = new ArrayList<Object>(groupByColumns.size());
+				for (Expression expr : groupByColumns)
+					key.add(expr.eval(row));
+				group = getGroup(key, row, rowNumber);
+			}
+			for (AggregateState state : group.states)
+				state.processRow(row);
+		}
+
+		private AggregateGroup getGroup(List<Object> key, Map<String, Object> row, long rowNumber)
+		{
+			AggregateGroup group = groups.get(key);
+			if (group == null)
+			{
+				group = createGroup(row, rowNumber);
+				groups.put(key, group);
+			}
+			return group;
+		}
+
+		private AggregateGroup createGroup(Map<String, Object> row, long rowNumber)
+		{
+			AggregateState[] states = new AggregateState[aggregateFunctions.size()];
+			for (int i = 0; i < states.length; i++)
+				states[i] = aggregateFunctions.get(i).createState();
+			return new AggregateGroup(rowNumber, row, states);
+		}
+
+		/**
+		 * Merge a group calculated by another worker thread into the groups of this thread.
+		 */
+		private void mergeGroup(List<Object> key, AggregateGroup group)
+		{
+			AggregateGroup mergedGroup;
+			Object value = (key.size() == 1) ? key.get(0) : null;
+			Class<?> integralClass = LongHashSet.getIntegralClass(value);
+			if (integralClass != null && longKeyClass == null)
+				longKeyClass = integralClass;
+			boolean isLongKey = (integralClass != null && integralClass == longKeyClass);
+			if (isLongKey)
+				mergedGroup = longGroups.get(((Number)value).longValue());
+			else
+				mergedGroup = groups.get(key);
+			if (mergedGroup == null)
+			{
+				if (isLongKey)
+					longGroups.put(((Number)value).longValue(), group);
+				else
+					groups.put(key, group);
+			}
+			else
+			{
+				for (int j = 0; j < group.states.length; j++)
+					mergedGroup.states[j].merge(group.states[j]);
+				if (group.firstRowNumber < mergedGroup.firstRowNumber)
+				{
+					mergedGroup.firstRowNumber = group.firstRowNumber;
+					mergedGroup.firstRow = group.firstRow;
+				}
+			}
+		}
+
+		/**
+		 * Merge all groups calculated by another worker thread into the groups of this thread.
+		 */
+		private void mergeGroups(Worker other)
+		{
+			for (Map.Entry<List<Object>, AggregateGroup> entry : other.groups.entrySet())
+				mergeGroup(entry.getKey(), entry.getValue());
+			long[] keys = other.longGroups.keys();
+			for (int i = 0; i < keys.length; i++)
+			{
+				Object value = LongHashSet.box(keys[i], other.longKeyClass);
+				mergeGroup(Collections.singletonList(value), other.longGroups.get(keys[i]));
+			}
+			other.groups = null;
+			other.longGroups = null;
+		}
+
+		private List<AggregateGroup> getGroups()
+		{
+			ArrayList<AggregateGroup> result = new ArrayList<AggregateGroup>(groups.values());
+			long[] keys = longGroups.keys();
+			for (int i = 0; i < keys.length; i++)
+				result.add(longGroups.get(keys[i]));
+			return result;
+		}
+	}
+
+	private List<Expression> groupByColumns;
+	private List<AggregateFunction> aggregateFunctions;
+	private BlockingQueue<Batch> queue;
+	private Worker[] workers;
+	private volatile Throwable failure = null;
+	private List<Map<String, Object>> batchRows;
+	private long rowCount = 0;
+	private boolean isFinished = false;
+
+	/**
+	 * Start worker threads.
+	 *
+	 * @param groupByColumns expressions for SQL GROUP BY clause, or
+	 * an empty list to put all rows in a single group.
+	 * @param aggregateFunctions functions to calculate for each group.
+	 * @param converters converter for each worker thread.
+	 */
+	public ParallelAggregator(List<Expression> groupByColumns,
+		List<AggregateFunction> aggregateFunctions, StringConverter[] converters)
+	{
+		this.groupByColumns = groupByColumns;
+		this.aggregateFunctions = aggregateFunctions;
+		this.queue = new ArrayBlockingQueue<Batch>(converters.length * 4);
+		this.batchRows = new ArrayList<Map<String, Object>>(BATCH_SIZE);
+		this.workers = new Worker[converters.length];
+		for (int i = 0; i < workers.length; i++)
+		{
+			workers[i] = new Worker(i + 1, converters[i]);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Add a row to be aggregated by one of the worker threads.
+	 */
+	public void add(Map<String, Object> row) throws SQLException
+	{
+		batchRows.add(row);
+		if (batchRows.size() == BATCH_SIZE)
+			sendBatch();
+	}
+
+	private void sendBatch() throws SQLException
+	{
+		checkFailure();
+		Batch batch = new Batch(rowCount, batchRows);
+		rowCount += batchRows.size();
+		batchRows = new ArrayList<Map<String, Object>>(BATCH_SIZE);
+		put(batch);
+	}
+
+	private void put(Batch batch) throws SQLException
+	{
+		try
+		{
+			queue.put(batch);
+		}
+		catch (InterruptedException e)
+		{
+			close();
+			throw new SQLException(CsvResources.getString("aggregationInterrupted"));
+		}
+	}
+
+	private void checkFailure() throws SQLException
+	{
+		Throwable e = failure;
+		if (e != null)
+		{
+			close();
+			if (e instanceof SQLException)
+				throw (SQLException)e;
+			if (e instanceof Error)
+				throw (Error)e;
+			throw (RuntimeException)e;
+		}
+	}
+
+	/**
+	 * Wait for worker threads to process all rows and merge their groups.
+	 *
+	 * @return groups in the order that their first rows were added.
+	 */
+	public List<AggregateGroup> finish() throws SQLException
+	{
+		if (batchRows.size() > 0)
+			sendBatch();
+		isFinished = true;
+		for (int i = 0; i < workers.length; i++)
+			put(END_OF_ROWS);
+		try
+		{
+			for (int i = 0; i < workers.length; i++)
+				workers[i].join();
+		}
+		catch (InterruptedException e)
+		{
+			close();
+			throw new SQLException(CsvResources.getString("aggregationInterrupted"));
+		}
+		checkFailure();
+
+		for (int i = 1; i < workers.length; i++)
+			workers[0].mergeGroups(workers[i]);
+
+		List<AggregateGroup> values = workers[0].getGroups();
+		AggregateGroup[] groups = values.toArray(new AggregateGroup[values.size()]);
+		Arrays.sort(groups, new Comparator<AggregateGroup>()
+		{
+			public int compare(AggregateGroup group1, AggregateGroup group2)
+			{
+				if (group1.firstRowNumber < group2.firstRowNumber)
+					return -1;
+				return (group1.firstRowNumber > group2.firstRowNumber) ? 1 : 0;
+			}
+		});
+		return Arrays.asList(groups);
+	}
+
+	/**
+	 * Stop worker threads if rows are not all added.
+	 */
+	public void close()
+	{
+		if (!isFinished)
+		{
+			isFinished = true;
+			for (int i = 0; i < workers.length; i++)
+				workers[i].interrupt();
+		}
+	}
+}
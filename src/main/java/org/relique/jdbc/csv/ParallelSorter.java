@@ -0,0 +1,191 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2008  Mario Frasca
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Sorts an array using several threads.
+ *
+ * The array is divided into one part for each thread and the parts are
+ * sorted at the same time.  Then pairs of neighbouring parts are merged,
+ * also at the same time, until a single sorted part remains.  The sort is
+ * stable, as Arrays.sort() is, so the comparator must be thread safe.
+ */
+class ParallelSorter
+{
+	/** Arrays shorter than this are sorted by a single thread */
+	public static final int MIN_PARALLEL_LENGTH = 8192;
+
+	private volatile Throwable failure = null;
+
+	/**
+	 * Sort an array.
+	 *
+	 * @param array array to sort.
+	 * @param comparator comparator that can be called from several threads at once.
+	 * @param nThreads maximum number of threads to use.
+	 */
+	public static <T> void sort(T[] array, Comparator<? super T> comparator, int nThreads) throws SQLException
+	{
+		if (nThreads <= 1 || array.length < MIN_PARALLEL_LENGTH)
+			Arrays.sort(array, comparator);
+		else
+			new ParallelSorter().parallelSort(array, comparator, nThreads);
+	}
+
+	private <T> void parallelSort(final T[] array, final Comparator<? super T> comparator,
+		int nThreads) throws SQLException
+	{
+		final int[] bounds = new int[nThreads + 1];
+		for (int i = 0; i <= nThreads; i++)
+			bounds[i] = (int)((long)array.length * i / nThreads);
+
+		Runnable[] tasks = new Runnable[nThreads];
+		for (int i = 0; i < nThreads; i++)
+		{
+			final int part = i;
+			tasks[i] = new Runnable()
+			{
+				public void run()
+				{
+					Arrays.sort(array, bounds[part], bounds[part + 1], comparator);
+				}
+			};
+		}
+		runAll(tasks);
+
+		/*
+		 * Merge pairs of sorted parts into the other array, doubling the
+		 * width of the sorted parts each time.
+		 */
+		T[] source = array;
+		T[] target = array.clone();
+		for (int width = 1; width < nThreads; width *= 2)
+		{
+			tasks = new Runnable[(nThreads + 2 * width - 1) / (2 * width)];
+			for (int i = 0; i < tasks.length; i++)
+			{
+				final T[] from = source;
+				final T[] to = target;
+				final int start = bounds[2 * width * i];
+				final int middle = bounds[Math.min(2 * width * i + width, nThreads)];
+				final int end = bounds[Math.min(2 * width * i + 2 * width, nThreads)];
+				tasks[i] = new Runnable()
+				{
+					public void run()
+					{
+						merge(from, to, start, middle, end, comparator);
+					}
+				};
+			}
+			runAll(tasks);
+			T[] swap = source;
+			source = target;
+			target = swap;
+		}
+		if (source != array)
+			System.arraycopy(source, 0, array, 0, array.length);
+	}
+
+	/**
+	 * Merge sorted ranges start..middle and middle..end of one array into
+	 * the same range of another array, taking elements from the first
+	 * range when they are equal so that the merge is stable.
+	 */
+	private static <T> void merge(T[] from, T[] to, int start, int middle, int end,
+		Comparator<? super T> comparator)
+	{
+		int i = start;
+		int j = middle;
+		int k = start;
+		while (i < middle && j < end)
+		{
+			if (comparator.compare(from[j], from[i]) < 0)
+				to[k++] = from[j++];
+			else
+				to[k++] = from[i++];
+		}
+		while (i < middle)
+			to[k++] = from[i++];
+		while (j < end)
+			to[k++] = from[j++];
+	}
+
+	/**
+	 * Run tasks in separate threads, running the last task in this thread,
+	 * and wait until all have finished.
+	 */
+	private void runAll(Runnable[] tasks) throws SQLException
+	{
+		Thread[] threads = new Thread[tasks.length - 1];
+		for (int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread(wrap(tasks[i]), "CsvJdbc sort " + (i + 1));
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		wrap(tasks[tasks.length - 1]).run();
+		try
+		{
+			for (int i = 0; i < threads.length; i++)
+				threads[i].join();
+		}
+		catch (InterruptedException e)
+		{
+			for (int i = 0; i < threads.length; i++)
+				threads[i].interrupt();
+			throw new SQLException(CsvResources.getString("sortInterrupted"));
+		}
+
+		/*
+		 * Errors comparing values, such as a ClassCastException, are
+		 * thrown in this thread, as they are when sorting in a single thread.
+		 */
+		Throwable e = failure;
+		if (e instanceof Error)
+			throw (Error)e;
+		if (e != null)
+			throw (RuntimeException)e;
+	}
+
+	private Runnable wrap(final Runnable task)
+	{
+		return new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					task.run();
+				}
+				catch (Throwable e)
+				{
+					/*
+					 * Record any error, as merging parts that were not
+					 * sorted would give wrong results.
+					 */
+					failure = e;
+				}
+			}
+		};
+	}
+}
@@ -80,6 +80,10 @@ class ParsedExpression extends LogicalExpression
 	{
 		return Placeholder.nextIndex - 1;
 	}
+	public Map<String, Object> getPlaceholders()
+	{
+		return placeholders;
+	}
 	public void setPlaceholdersValues(Object[] values)
 	{
 		for(int i=1; i<values.length; i++)
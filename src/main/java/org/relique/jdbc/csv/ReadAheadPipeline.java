@@ -0,0 +1,216 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2008  Mario Frasca
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads and parses lines of a CSV file in a background thread.
+ *
+ * The background thread fills batches of parsed rows while the thread
+ * running the query uses rows from batches that were filled earlier.  A
+ * fixed number of batches are passed between the two threads and reused,
+ * so the background thread waits when it is too far ahead.
+ */
+class ReadAheadPipeline
+{
+	/** Number of rows in each batch when no fetch size is set */
+	public static final int DEFAULT_BATCH_ROWS = 256;
+
+	private static final int BATCH_COUNT = 4;
+
+	private static class Batch
+	{
+		private String[][] rows;
+		private int[] lineNumbers;
+		private int rowCount = 0;
+		private boolean isLast = false;
+		private Throwable failure = null;
+
+		private Batch(int batchRows)
+		{
+			this.rows = new String[batchRows][];
+			this.lineNumbers = new int[batchRows];
+		}
+	}
+
+	private CsvRawReader rawReader;
+	private BlockingQueue<Batch> emptyBatches;
+	private BlockingQueue<Batch> filledBatches;
+	private Thread thread = null;
+	private volatile boolean isClosed = false;
+	private Batch batch = null;
+	private int batchIndex = 0;
+	private String[] fieldValues = null;
+	private int lineNumber = 0;
+
+	/**
+	 * @param rawReader reader for the file, used only by the background
+	 * thread and closed when it finishes.
+	 * @param batchRows number of rows in each batch.
+	 */
+	public ReadAheadPipeline(CsvRawReader rawReader, int batchRows)
+	{
+		this.rawReader = rawReader;
+		this.emptyBatches = new ArrayBlockingQueue<Batch>(BATCH_COUNT);
+		this.filledBatches = new ArrayBlockingQueue<Batch>(BATCH_COUNT);
+		for (int i = 0; i < BATCH_COUNT; i++)
+			emptyBatches.add(new Batch(batchRows));
+	}
+
+	private void start()
+	{
+		thread = new Thread("CsvJdbc read-ahead " + rawReader.getTableName())
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					fillBatches();
+				}
+				catch (InterruptedException e)
+				{
+				}
+				finally
+				{
+					rawReader.close();
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void fillBatches() throws InterruptedException
+	{
+		boolean isLast = false;
+		while (!isLast && !isClosed)
+		{
+			Batch batch = emptyBatches.take();
+			batch.rowCount = 0;
+			try
+			{
+				while (batch.rowCount < batch.rows.length)
+				{
+					if (!rawReader.next())
+					{
+						isLast = true;
+						break;
+					}
+					batch.rows[batch.rowCount] = rawReader.getFieldValues();
+					batch.lineNumbers[batch.rowCount] = rawReader.getLineNumber();
+					batch.rowCount++;
+				}
+			}
+			catch (Throwable e)
+			{
+				/*
+				 * Pass any error to the query thread, which would otherwise
+				 * wait forever for another batch.
+				 */
+				batch.failure = e;
+				isLast = true;
+			}
+			batch.isLast = isLast;
+			filledBatches.put(batch);
+		}
+	}
+
+	/**
+	 * Move to next row parsed by the background thread.
+	 *
+	 * @return false if there are no more rows.
+	 */
+	public boolean next() throws SQLException
+	{
+		if (thread == null)
+			start();
+
+		while (batch == null || batchIndex == batch.rowCount)
+		{
+			if (batch != null)
+			{
+				if (batch.failure != null)
+				{
+					Throwable e = batch.failure;
+					batch.failure = null;
+					if (e instanceof SQLException)
+						throw (SQLException)e;
+					if (e instanceof Error)
+						throw (Error)e;
+					throw (RuntimeException)e;
+				}
+				if (batch.isLast)
+					return false;
+				emptyBatches.add(batch);
+				batch = null;
+			}
+			try
+			{
+				batch = filledBatches.take();
+			}
+			catch (InterruptedException e)
+			{
+				throw new SQLException(CsvResources.getString("readAheadInterrupted"));
+			}
+			batchIndex = 0;
+		}
+
+		fieldValues = batch.rows[batchIndex];
+		lineNumber = batch.lineNumbers[batchIndex];
+		batch.rows[batchIndex] = null;
+		batchIndex++;
+		return true;
+	}
+
+	public String[] getFieldValues()
+	{
+		return fieldValues;
+	}
+
+	public int getLineNumber()
+	{
+		return lineNumber;
+	}
+
+	/**
+	 * Stop the background thread and close the file.
+	 */
+	public void close()
+	{
+		isClosed = true;
+		if (thread == null)
+		{
+			rawReader.close();
+			return;
+		}
+		thread.interrupt();
+		try
+		{
+			thread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,406 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2001  Jonathan Ackerman
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes a list of values into a compact array of bytes, so that rows can
+ * be compared, hashed and written to temporary files.
+ *
+ * Two lists of values encode to equal bytes exactly when the lists are
+ * equal, because each value is stored with a tag giving its class.
+ */
+class RowEncoder
+{
+	private static final byte NULL = 0;
+	private static final byte ASCII_STRING = 1;
+	private static final byte STRING = 2;
+	private static final byte TRUE = 3;
+	private static final byte FALSE = 4;
+	private static final byte BYTE = 5;
+	private static final byte SHORT = 6;
+	private static final byte INTEGER = 7;
+	private static final byte LONG = 8;
+	private static final byte FLOAT = 9;
+	private static final byte DOUBLE = 10;
+	private static final byte BIG_DECIMAL = 11;
+	private static final byte DATE = 12;
+	private static final byte TIME = 13;
+	private static final byte TIMESTAMP = 14;
+
+	private byte[] buffer = new byte[64];
+	private int length = 0;
+
+	/**
+	 * Encoded values, with hash code calculated once.
+	 */
+	static class Key
+	{
+		final byte[] bytes;
+		final int hash;
+
+		Key(byte[] bytes)
+		{
+			this.bytes = bytes;
+			this.hash = Arrays.hashCode(bytes);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object other)
+		{
+			return other instanceof Key && Arrays.equals(bytes, ((Key)other).bytes);
+		}
+
+		/**
+		 * Get partition of a temporary file that key is written to.
+		 *
+		 * @param level number of times rows have already been partitioned.
+		 * @param bits number of bits in partition number.
+		 */
+		int getPartition(int level, int bits)
+		{
+			/*
+			 * Mix hash code differently at each level so that a partition is
+			 * split into new partitions when it is read.
+			 */
+			int h = hash ^ (level * 0x9E3779B9);
+			h ^= h >>> 16;
+			h *= 0x85EBCA6B;
+			h ^= h >>> 13;
+			h *= 0xC2B2AE35;
+			h ^= h >>> 16;
+			return h >>> (32 - bits);
+		}
+	}
+
+	/**
+	 * Check if a value can be encoded.
+	 */
+	public static boolean canEncode(Object value)
+	{
+		if (value == null)
+			return true;
+		Class<?> c = value.getClass();
+		return c == String.class || c == Boolean.class || c == Byte.class ||
+			c == Short.class || c == Integer.class || c == Long.class ||
+			c == Float.class || c == Double.class || c == BigDecimal.class ||
+			c == Date.class || c == Time.class || c == Timestamp.class;
+	}
+
+	/**
+	 * Encode values.
+	 *
+	 * @return encoded values, or null if a value cannot be encoded.
+	 */
+	public byte[] encode(List<Object> values)
+	{
+		length = 0;
+		for (int i = 0; i < values.size(); i++)
+		{
+			if (!add(values.get(i)))
+				return null;
+		}
+		return Arrays.copyOf(buffer, length);
+	}
+
+	/**
+	 * Encode values.
+	 *
+	 * @return encoded values, or null if a value cannot be encoded.
+	 */
+	public byte[] encode(Object[] values)
+	{
+		length = 0;
+		for (int i = 0; i < values.length; i++)
+		{
+			if (!add(values[i]))
+				return null;
+		}
+		return Arrays.copyOf(buffer, length);
+	}
+
+	private boolean add(Object value)
+	{
+		if (!canEncode(value))
+			return false;
+
+		if (value == null)
+		{
+			writeByte(NULL);
+		}
+		else if (value instanceof String)
+		{
+			String str = (String)value;
+			int len = str.length();
+			boolean isAscii = true;
+			for (int i = 0; i < len && isAscii; i++)
+				isAscii = (str.charAt(i) < 0x80);
+			writeByte(isAscii ? ASCII_STRING : STRING);
+			writeVarLong(len);
+			ensureCapacity(isAscii ? len : len * 2);
+			for (int i = 0; i < len; i++)
+			{
+				char c = str.charAt(i);
+				if (!isAscii)
+					buffer[length++] = (byte)(c >>> 8);
+				buffer[length++] = (byte)c;
+			}
+		}
+		else if (value instanceof Boolean)
+		{
+			writeByte(((Boolean)value).booleanValue() ? TRUE : FALSE);
+		}
+		else if (value instanceof Byte)
+		{
+			writeByte(BYTE);
+			writeByte(((Byte)value).byteValue());
+		}
+		else if (value instanceof Short)
+		{
+			writeByte(SHORT);
+			writeSignedVarLong(((Short)value).longValue());
+		}
+		else if (value instanceof Integer)
+		{
+			writeByte(INTEGER);
+			writeSignedVarLong(((Integer)value).longValue());
+		}
+		else if (value instanceof Long)
+		{
+			writeByte(LONG);
+			writeSignedVarLong(((Long)value).longValue());
+		}
+		else if (value instanceof Float)
+		{
+			/*
+			 * Compare bits, as Float.equals() does.
+			 */
+			writeByte(FLOAT);
+			writeFixed(Float.floatToIntBits(((Float)value).floatValue()), 4);
+		}
+		else if (value instanceof Double)
+		{
+			writeByte(DOUBLE);
+			writeFixed(Double.doubleToLongBits(((Double)value).doubleValue()), 8);
+		}
+		else if (value instanceof BigDecimal)
+		{
+			/*
+			 * Keep the scale, as BigDecimal.equals() does.
+			 */
+			BigDecimal decimal = (BigDecimal)value;
+			writeByte(BIG_DECIMAL);
+			writeSignedVarLong(decimal.scale());
+			byte[] unscaled = decimal.unscaledValue().toByteArray();
+			writeVarLong(unscaled.length);
+			ensureCapacity(unscaled.length);
+			System.arraycopy(unscaled, 0, buffer, length, unscaled.length);
+			length += unscaled.length;
+		}
+		else if (value instanceof Date)
+		{
+			writeByte(DATE);
+			writeSignedVarLong(((Date)value).getTime());
+		}
+		else if (value instanceof Time)
+		{
+			writeByte(TIME);
+			writeSignedVarLong(((Time)value).getTime());
+		}
+		else
+		{
+			Timestamp timestamp = (Timestamp)value;
+			writeByte(TIMESTAMP);
+			writeSignedVarLong(timestamp.getTime());
+			writeVarLong(timestamp.getNanos());
+		}
+		return true;
+	}
+
+	private void ensureCapacity(int extra)
+	{
+		if (length + extra > buffer.length)
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+	}
+
+	private void writeByte(int b)
+	{
+		ensureCapacity(1);
+		buffer[length++] = (byte)b;
+	}
+
+	private void writeFixed(long value, int nBytes)
+	{
+		ensureCapacity(nBytes);
+		for (int i = nBytes - 1; i >= 0; i--)
+			buffer[length++] = (byte)(value >>> (i * 8));
+	}
+
+	private void writeVarLong(long value)
+	{
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0)
+		{
+			buffer[length++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[length++] = (byte)value;
+	}
+
+	private void writeSignedVarLong(long value)
+	{
+		/*
+		 * Zigzag encoding so small negative numbers are also short.
+		 */
+		writeVarLong((value << 1) ^ (value >> 63));
+	}
+
+	/**
+	 * Decode values created by encode().
+	 */
+	public static Object[] decode(byte[] bytes)
+	{
+		ArrayList<Object> values = new ArrayList<Object>();
+		int[] position = new int[1];
+		while (position[0] < bytes.length)
+		{
+			byte tag = bytes[position[0]++];
+			switch (tag)
+			{
+			case NULL:
+				values.add(null);
+				break;
+			case ASCII_STRING:
+			case STRING:
+			{
+				int len = (int)readVarLong(bytes, position);
+				char[] chars = new char[len];
+				int pos = position[0];
+				for (int j = 0; j < len; j++)
+				{
+					if (tag == STRING)
+					{
+						chars[j] = (char)(((bytes[pos] & 0xFF) << 8) | (bytes[pos + 1] & 0xFF));
+						pos += 2;
+					}
+					else
+					{
+						chars[j] = (char)bytes[pos++];
+					}
+				}
+				position[0] = pos;
+				values.add(new String(chars));
+				break;
+			}
+			case TRUE:
+				values.add(Boolean.TRUE);
+				break;
+			case FALSE:
+				values.add(Boolean.FALSE);
+				break;
+			case BYTE:
+				values.add(Byte.valueOf(bytes[position[0]++]));
+				break;
+			case SHORT:
+				values.add(Short.valueOf((short)readSignedVarLong(bytes, position)));
+				break;
+			case INTEGER:
+				values.add(Integer.valueOf((int)readSignedVarLong(bytes, position)));
+				break;
+			case LONG:
+				values.add(Long.valueOf(readSignedVarLong(bytes, position)));
+				break;
+			case FLOAT:
+				values.add(Float.valueOf(Float.intBitsToFloat((int)readFixed(bytes, position, 4))));
+				break;
+			case DOUBLE:
+				values.add(Double.valueOf(Double.longBitsToDouble(readFixed(bytes, position, 8))));
+				break;
+			case BIG_DECIMAL:
+			{
+				int scale = (int)readSignedVarLong(bytes, position);
+				int len = (int)readVarLong(bytes, position);
+				byte[] unscaled = Arrays.copyOfRange(bytes, position[0], position[0] + len);
+				position[0] += len;
+				values.add(new BigDecimal(new BigInteger(unscaled), scale));
+				break;
+			}
+			case DATE:
+				values.add(new Date(readSignedVarLong(bytes, position)));
+				break;
+			case TIME:
+				values.add(new Time(readSignedVarLong(bytes, position)));
+				break;
+			default:
+				Timestamp timestamp = new Timestamp(readSignedVarLong(bytes, position));
+				timestamp.setNanos((int)readVarLong(bytes, position));
+				values.add(timestamp);
+				break;
+			}
+		}
+		return values.toArray();
+	}
+
+	private static long readFixed(byte[] bytes, int[] position, int nBytes)
+	{
+		long value = 0;
+		int pos = position[0];
+		for (int i = 0; i < nBytes; i++)
+			value = (value << 8) | (bytes[pos++] & 0xFF);
+		position[0] = pos;
+		return value;
+	}
+
+	private static long readVarLong(byte[] bytes, int[] position)
+	{
+		long value = 0;
+		int shift = 0;
+		int pos = position[0];
+		byte b;
+		do
+		{
+			b = bytes[pos++];
+			value |= (long)(b & 0x7F) << shift;
+			shift += 7;
+		}
+		while ((b & 0x80) != 0);
+		position[0] = pos;
+		return value;
+	}
+
+	private static long readSignedVarLong(byte[] bytes, int[] position)
+	{
+		long value = readVarLong(bytes, position);
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
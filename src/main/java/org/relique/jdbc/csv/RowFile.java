@@ -0,0 +1,191 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2008  Mario Frasca
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Temporary file of rows that are read back by their position in the
+ * file, so that only the position of each row needs to be kept in memory.
+ */
+class RowFile
+{
+	private RowEncoder encoder = new RowEncoder();
+	private File file;
+	private DataOutputStream output;
+	private long length = 0;
+	private RandomAccessFile input;
+
+	/** Columns of rows written to file, and values shared by all rows */
+	private String[] columnNames;
+	private Object converter;
+	private Object statement;
+	private int rowSize;
+
+	public RowFile() throws SQLException
+	{
+		try
+		{
+			file = File.createTempFile("csvjdbc", ".sort");
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		}
+		catch (IOException e)
+		{
+			close();
+			throw new SQLException(CsvResources.getString("sortSpillFailed") + ": " + e);
+		}
+	}
+
+	private void setColumnNames(Map<String, Object> row)
+	{
+		ArrayList<String> names = new ArrayList<String>();
+		for (String name : row.keySet())
+		{
+			if (!(name.equals(StringConverter.COLUMN_NAME) || name.equals(CsvStatement.STATEMENT_COLUMN_NAME)))
+				names.add(name);
+		}
+		columnNames = names.toArray(new String[names.size()]);
+		converter = row.get(StringConverter.COLUMN_NAME);
+		statement = row.get(CsvStatement.STATEMENT_COLUMN_NAME);
+		rowSize = row.size();
+	}
+
+	/**
+	 * Write a row to the end of the file.
+	 *
+	 * @return position of row in file, or -1 if the row has values
+	 * that cannot be written, so must be kept in memory instead.
+	 */
+	public long write(Map<String, Object> row) throws SQLException
+	{
+		if (columnNames == null)
+			setColumnNames(row);
+		if (row.size() != rowSize)
+			return -1;
+
+		Object[] values = new Object[columnNames.length];
+		for (int i = 0; i < values.length; i++)
+			values[i] = row.get(columnNames[i]);
+		byte[] rowBytes = encoder.encode(values);
+		if (rowBytes == null)
+			return -1;
+
+		long position = length;
+		try
+		{
+			output.writeInt(rowBytes.length);
+			output.write(rowBytes);
+		}
+		catch (IOException e)
+		{
+			close();
+			throw new SQLException(CsvResources.getString("sortSpillFailed") + ": " + e);
+		}
+		length += 4 + rowBytes.length;
+		return position;
+	}
+
+	/**
+	 * Read rows, in order of their position in the file so that the
+	 * file is read from start to end instead of seeking back and forth.
+	 *
+	 * @param positions positions of rows returned by write().
+	 * @return rows in the same order as positions.
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, Object>[] read(long[] positions) throws SQLException
+	{
+		long[] sortedPositions = positions.clone();
+		Arrays.sort(sortedPositions);
+		Map<String, Object>[] sortedRows = new Map[positions.length];
+		try
+		{
+			if (input == null)
+			{
+				output.close();
+				output = null;
+				input = new RandomAccessFile(file, "r");
+			}
+			for (int i = 0; i < sortedPositions.length; i++)
+			{
+				input.seek(sortedPositions[i]);
+				byte[] rowBytes = new byte[input.readInt()];
+				input.readFully(rowBytes);
+				sortedRows[i] = decodeRow(rowBytes);
+			}
+		}
+		catch (IOException e)
+		{
+			close();
+			throw new SQLException(CsvResources.getString("sortSpillFailed") + ": " + e);
+		}
+
+		Map<String, Object>[] rows = new Map[positions.length];
+		for (int i = 0; i < positions.length; i++)
+			rows[i] = sortedRows[Arrays.binarySearch(sortedPositions, positions[i])];
+		return rows;
+	}
+
+	private Map<String, Object> decodeRow(byte[] rowBytes)
+	{
+		Object[] values = RowEncoder.decode(rowBytes);
+		HashMap<String, Object> row = new HashMap<String, Object>();
+		for (int i = 0; i < values.length; i++)
+			row.put(columnNames[i], values[i]);
+		if (converter != null)
+			row.put(StringConverter.COLUMN_NAME, converter);
+		if (statement != null)
+			row.put(CsvStatement.STATEMENT_COLUMN_NAME, statement);
+		return row;
+	}
+
+	/**
+	 * Delete the temporary file.
+	 */
+	public void close()
+	{
+		try
+		{
+			if (output != null)
+				output.close();
+			if (input != null)
+				input.close();
+		}
+		catch (IOException e)
+		{
+		}
+		output = null;
+		input = null;
+		if (file != null)
+		{
+			file.delete();
+			file = null;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2008  Mario Frasca
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.sql.SQLException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimate of COUNT(DISTINCT expression) using a HyperLogLog sketch,
+ * using the same small amount of memory however many values are counted.
+ */
+class SQLApproxCountDistinctFunction extends AggregateFunction
+{
+	Expression expression;
+	int precision;
+	HyperLogLog sketch;
+	public SQLApproxCountDistinctFunction(Expression expression, int precision)
+	{
+		this.expression = expression;
+		this.precision = precision;
+		this.sketch = new HyperLogLog(precision);
+	}
+	public Object eval(Map<String, Object> env) throws SQLException
+	{
+		AggregateState state = getGroupState(env);
+		if (state != null)
+			return state.getValue();
+
+		Object o = env.get(GROUPING_COLUMN_NAME);
+		if (o != null)
+		{
+			/*
+			 * Estimate count for the rows grouped together
+			 * by the GROUP BY clause.
+			 */
+			List groupRows = (List)o;
+			HyperLogLog groupSketch = new HyperLogLog(precision);
+			for (int i = 0; i < groupRows.size(); i++)
+			{
+				o = expression.eval((Map)groupRows.get(i));
+				groupSketch.add(o);
+			}
+			return Long.valueOf(groupSketch.estimate());
+		}
+		return Long.valueOf(sketch.estimate());
+	}
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder("APPROX_COUNT_DISTINCT(");
+		sb.append(expression);
+		if (precision != HyperLogLog.DEFAULT_PRECISION)
+			sb.append(", ").append(precision);
+		sb.append(")");
+		return sb.toString();
+	}
+	public List<String> usedColumns()
+	{
+		return new LinkedList<String>();
+	}
+	public List<String> aggregateColumns()
+	{
+		List<String> result = new LinkedList<String>();
+		result.addAll(expression.usedColumns());
+		return result;
+	}
+	public List<AggregateFunction> aggregateFunctions()
+	{
+		List<AggregateFunction> result = new LinkedList<AggregateFunction>();
+		result.add(this);
+		return result;
+	}
+	public AggregateState createState()
+	{
+		return new SketchState();
+	}
+	public void processRow(Map<String, Object> env) throws SQLException
+	{
+		/*
+		 * Null values are not counted.
+		 */
+		Object o = expression.eval(env);
+		sketch.add(o);
+	}
+	class SketchState implements AggregateState
+	{
+		HyperLogLog stateSketch = new HyperLogLog(precision);
+		public void processRow(Map<String, Object> env) throws SQLException
+		{
+			stateSketch.add(expression.eval(env));
+		}
+		public void merge(AggregateState other)
+		{
+			stateSketch.merge(((SketchState)other).stateSketch);
+		}
+		public Object getValue()
+		{
+			return Long.valueOf(stateSketch.estimate());
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2008  Mario Frasca
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.sql.SQLException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimate of a percentile of numeric values, calculated in a single
+ * pass with a t-digest sketch instead of sorting all values.
+ */
+class SQLApproxPercentileFunction extends AggregateFunction
+{
+	Expression expression;
+	double percentile;
+	boolean isMedian;
+	TDigest digest;
+	NumberParser numberParser = new NumberParser();
+	public SQLApproxPercentileFunction(Expression expression, double percentile, boolean isMedian)
+	{
+		this.expression = expression;
+		this.percentile = percentile;
+		this.isMedian = isMedian;
+		this.digest = new TDigest(TDigest.DEFAULT_COMPRESSION);
+	}
+	public Object eval(Map<String, Object> env) throws SQLException
+	{
+		AggregateState state = getGroupState(env);
+		if (state != null)
+			return state.getValue();
+
+		Object o = env.get(GROUPING_COLUMN_NAME);
+		TDigest result = digest;
+		if (o != null)
+		{
+			/*
+			 * Estimate percentile of the rows grouped together
+			 * by the GROUP BY clause.
+			 */
+			List groupRows = (List)o;
+			result = new TDigest(TDigest.DEFAULT_COMPRESSION);
+			for (int i = 0; i < groupRows.size(); i++)
+			{
+				o = expression.eval((Map)groupRows.get(i));
+				addValue(result, numberParser, o);
+			}
+		}
+		return getPercentile(result);
+	}
+	private Object getPercentile(TDigest digest)
+	{
+		double value = digest.quantile(percentile);
+		if (Double.isNaN(value))
+			return null;
+		return Double.valueOf(value);
+	}
+	private static void addValue(TDigest digest, NumberParser numberParser, Object o)
+	{
+		/*
+		 * Only consider non-null values that are numbers.
+		 */
+		if (o instanceof Number)
+		{
+			digest.add(((Number)o).doubleValue());
+		}
+		else if (o != null)
+		{
+			String str = o.toString();
+			if (numberParser.parseDouble(str, 0, str.length(), false) == NumberParser.OK)
+				digest.add(numberParser.getDouble());
+		}
+	}
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		if (isMedian)
+		{
+			sb.append("APPROX_MEDIAN(");
+			sb.append(expression);
+		}
+		else
+		{
+			sb.append("APPROX_PERCENTILE(");
+			sb.append(expression);
+			sb.append(", ").append(percentile);
+		}
+		sb.append(")");
+		return sb.toString();
+	}
+	public List<String> usedColumns()
+	{
+		return new LinkedList<String>();
+	}
+	public List<String> aggregateColumns()
+	{
+		List<String> result = new LinkedList<String>();
+		result.addAll(expression.usedColumns());
+		return result;
+	}
+	public List<AggregateFunction> aggregateFunctions()
+	{
+		List<AggregateFunction> result = new LinkedList<AggregateFunction>();
+		result.add(this);
+		return result;
+	}
+	public AggregateState createState()
+	{
+		return new DigestState();
+	}
+	public void processRow(Map<String, Object> env) throws SQLException
+	{
+		Object o = expression.eval(env);
+		addValue(digest, numberParser, o);
+	}
+	class DigestState implements AggregateState
+	{
+		TDigest stateDigest = new TDigest(TDigest.DEFAULT_COMPRESSION);
+		NumberParser stateNumberParser = new NumberParser();
+		public void processRow(Map<String, Object> env) throws SQLException
+		{
+			addValue(stateDigest, stateNumberParser, expression.eval(env));
+		}
+		public void merge(AggregateState other)
+		{
+			stateDigest.merge(((DigestState)other).stateDigest);
+		}
+		public Object getValue()
+		{
+			return getPercentile(stateDigest);
+		}
+	}
+}
@@ -29,6 +29,10 @@ class SQLAvgFunction extends SQLSumFunction
 	}
 	public Object eval(Map<String, Object> env) throws SQLException
 	{
+		AggregateState state = getGroupState(env);
+		if (state != null)
+			return state.getValue();
+
 		Object o = super.eval(env);
 		if (o != null)
 		{
@@ -37,6 +41,10 @@ class SQLAvgFunction extends SQLSumFunction
 		}
 		return o;
 	}
+	public AggregateState createState()
+	{
+		return new AvgState();
+	}
 	public String toString()
 	{
 		StringBuilder sb = new StringBuilder("AVG(");
@@ -46,4 +54,15 @@ class SQLAvgFunction extends SQLSumFunction
 		sb.append(")");
 		return sb.toString();
 	}
+	class AvgState extends SumState
+	{
+		public Object getValue()
+		{
+			SumAccumulator total = getTotal();
+			Number sum = total.getSum();
+			if (sum == null)
+				return null;
+			return new Double(sum.doubleValue() / total.getCount());
+		}
+	}
 }
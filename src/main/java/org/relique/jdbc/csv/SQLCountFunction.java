@@ -19,24 +19,27 @@
 package org.relique.jdbc.csv;
 
 import java.sql.SQLException;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
 class SQLCountFunction extends AggregateFunction
 {
-	HashSet<Object> distinctValues;
+	DistinctValueSet distinctValues;
 	Expression expression;
 	int counter = 0;
 	public SQLCountFunction(boolean isDistinct, Expression expression)
 	{
 		if (isDistinct)
-			this.distinctValues = new HashSet<Object>();
+			this.distinctValues = new DistinctValueSet();
 		this.expression = expression;
 	}
 	public Object eval(Map<String, Object> env) throws SQLException
 	{
+		AggregateState state = getGroupState(env);
+		if (state != null)
+			return state.getValue();
+
 		Integer retval;
 		Object o = env.get(GROUPING_COLUMN_NAME);
 		if (o != null)
@@ -48,7 +51,7 @@ class SQLCountFunction extends AggregateFunction
 			List groupRows = (List)o;
 			if (this.distinctValues != null)
 			{
-				HashSet<Object> unique = new HashSet<Object>();
+				DistinctValueSet unique = new DistinctValueSet();
 				for (int i = 0; i < groupRows.size(); i++)
 				{
 					o = expression.eval((Map)groupRows.get(i));
@@ -60,11 +63,18 @@ class SQLCountFunction extends AggregateFunction
 			else
 			{
 				int groupCounter = 0;
-				for (int i = 0; i < groupRows.size(); i++)
+				if (expression instanceof AsteriskExpression)
 				{
-					o = expression.eval((Map)groupRows.get(i));
-					if (o != null)
-						groupCounter++;
+					groupCounter = groupRows.size();
+				}
+				else
+				{
+					for (int i = 0; i < groupRows.size(); i++)
+					{
+						o = expression.eval((Map)groupRows.get(i));
+						if (o != null)
+							groupCounter++;
+					}
 				}
 				retval = Integer.valueOf(groupCounter);
 			}
@@ -104,6 +114,10 @@ class SQLCountFunction extends AggregateFunction
 		result.add(this);
 		return result;
 	}
+	public AggregateState createState()
+	{
+		return new CountState();
+	}
 	public void processRow(Map<String, Object> env) throws SQLException
 	{
 		if (expression instanceof AsteriskExpression)
@@ -130,4 +144,44 @@ class SQLCountFunction extends AggregateFunction
 			}
 		}
 	}
+	class CountState implements AggregateState
+	{
+		DistinctValueSet stateDistinctValues;
+		int stateCounter = 0;
+		public CountState()
+		{
+			if (distinctValues != null)
+				stateDistinctValues = new DistinctValueSet();
+		}
+		public void processRow(Map<String, Object> env) throws SQLException
+		{
+			if (expression instanceof AsteriskExpression)
+			{
+				stateCounter++;
+			}
+			else
+			{
+				Object o = expression.eval(env);
+				if (o != null)
+				{
+					stateCounter++;
+					if (stateDistinctValues != null)
+						stateDistinctValues.add(o);
+				}
+			}
+		}
+		public void merge(AggregateState other)
+		{
+			CountState otherState = (CountState)other;
+			stateCounter += otherState.stateCounter;
+			if (stateDistinctValues != null)
+				stateDistinctValues.addAll(otherState.stateDistinctValues);
+		}
+		public Object getValue()
+		{
+			if (stateDistinctValues != null)
+				return Integer.valueOf(stateDistinctValues.size());
+			return Integer.valueOf(stateCounter);
+		}
+	}
 }
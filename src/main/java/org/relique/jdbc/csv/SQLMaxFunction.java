@@ -35,6 +35,10 @@ class SQLMaxFunction extends AggregateFunction
 	}
 	public Object eval(Map<String, Object> env) throws SQLException
 	{
+		AggregateState state = getGroupState(env);
+		if (state != null)
+			return state.getValue();
+
 		Object o = env.get(GROUPING_COLUMN_NAME);
 		if (o != null)
 		{
@@ -82,6 +86,10 @@ class SQLMaxFunction extends AggregateFunction
 		result.add(this);
 		return result;
 	}
+	public AggregateState createState()
+	{
+		return new MaxState();
+	}
 	public void processRow(Map<String, Object> env) throws SQLException
 	{
 		/*
@@ -94,4 +102,29 @@ class SQLMaxFunction extends AggregateFunction
 				max = o;
 		}
 	}
+	class MaxState implements AggregateState
+	{
+		Object stateMax = null;
+		public void processRow(Map<String, Object> env) throws SQLException
+		{
+			Object o = expression.eval(env);
+			if (o != null)
+				add(o);
+		}
+		private void add(Object o)
+		{
+			if (stateMax == null || ((Comparable)stateMax).compareTo(o) < 0)
+				stateMax = o;
+		}
+		public void merge(AggregateState other)
+		{
+			Object o = ((MaxState)other).stateMax;
+			if (o != null)
+				add(o);
+		}
+		public Object getValue()
+		{
+			return stateMax;
+		}
+	}
 }
@@ -35,6 +35,10 @@ class SQLMinFunction extends AggregateFunction
 	}
 	public Object eval(Map<String, Object> env) throws SQLException
 	{
+		AggregateState state = getGroupState(env);
+		if (state != null)
+			return state.getValue();
+
 		Object o = env.get(GROUPING_COLUMN_NAME);
 		if (o != null)
 		{
@@ -82,6 +86,10 @@ class SQLMinFunction extends AggregateFunction
 		result.add(this);
 		return result;
 	}
+	public AggregateState createState()
+	{
+		return new MinState();
+	}
 	public void processRow(Map<String, Object> env) throws SQLException
 	{
 		/*
@@ -94,4 +102,29 @@ class SQLMinFunction extends AggregateFunction
 				min = o;
 		}
 	}
+	class MinState implements AggregateState
+	{
+		Object stateMin = null;
+		public void processRow(Map<String, Object> env) throws SQLException
+		{
+			Object o = expression.eval(env);
+			if (o != null)
+				add(o);
+		}
+		private void add(Object o)
+		{
+			if (stateMin == null || ((Comparable)stateMin).compareTo(o) > 0)
+				stateMin = o;
+		}
+		public void merge(AggregateState other)
+		{
+			Object o = ((MinState)other).stateMin;
+			if (o != null)
+				add(o);
+		}
+		public Object getValue()
+		{
+			return stateMin;
+		}
+	}
 }
@@ -18,28 +18,29 @@
  */
 package org.relique.jdbc.csv;
 
-import java.math.BigDecimal;
 import java.sql.SQLException;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
 class SQLSumFunction extends AggregateFunction
 {
-	HashSet<Object> distinctValues;
+	DistinctValueSet distinctValues;
 	Expression expression;
-	BigDecimal sum = null;
+	SumAccumulator sum = new SumAccumulator();
 	int counter = 0;
 	public SQLSumFunction(boolean isDistinct, Expression expression)
 	{
 		if (isDistinct)
-			this.distinctValues = new HashSet<Object>();
+			this.distinctValues = new DistinctValueSet();
 		this.expression = expression;
 	}
 	public Object eval(Map<String, Object> env) throws SQLException
 	{
-		Object retval = null;
+		AggregateState state = getGroupState(env);
+		if (state != null)
+			return state.getValue();
+
 		Object o = env.get(GROUPING_COLUMN_NAME);
 		if (o != null)
 		{
@@ -48,93 +49,39 @@ class SQLSumFunction extends AggregateFunction
 			 * by the GROUP BY clause.
 			 */
 			List groupRows = (List)o;
-			BigDecimal groupSum = null;
-			counter = 0;
+			SumAccumulator groupSum = new SumAccumulator();
 			if (this.distinctValues != null)
 			{
-				HashSet<Object> unique = new HashSet<Object>();
+				DistinctValueSet unique = new DistinctValueSet();
 				for (int i = 0; i < groupRows.size(); i++)
 				{
 					o = expression.eval((Map)groupRows.get(i));
 					if (o != null)
 						unique.add(o);
 				}
-				for (Object obj: unique)
-				{
-					if (groupSum == null)
-						groupSum = new BigDecimal(obj.toString());
-					else
-						groupSum = groupSum.add(new BigDecimal(obj.toString()));
-					counter++;
-				}
+				unique.addTo(groupSum);
 			}
 			else
 			{
 				for (int i = 0; i < groupRows.size(); i++)
 				{
 					o = expression.eval((Map)groupRows.get(i));
-					if (o != null)
-					{
-						try
-						{
-							if (groupSum == null)
-								groupSum = new BigDecimal(o.toString());
-							else
-								groupSum = groupSum.add(new BigDecimal(o.toString()));
-							counter++;
-						}
-						catch (NumberFormatException e)
-						{
-						}
-					}
+					groupSum.add(o);
 				}
 			}
-			try
-			{
-				if (groupSum != null)
-					retval = Long.valueOf(groupSum.longValueExact());
-			}
-			catch (ArithmeticException e)
-			{
-				retval = groupSum.doubleValue();
-			}
-			return retval;
+			counter = groupSum.getCount();
+			return groupSum.getSum();
 		}
 
-		try
-		{
-			if (this.distinctValues != null)
-			{
-				BigDecimal groupSum = null;
-				for (Object obj: this.distinctValues)
-				{
-					if (groupSum == null)
-						groupSum = new BigDecimal(obj.toString());
-					else
-						groupSum = groupSum.add(new BigDecimal(obj.toString()));
-				}
-				counter = this.distinctValues.size();
-				try
-				{
-					if (groupSum != null)
-						retval = Long.valueOf(groupSum.longValueExact());
-				}
-				catch (ArithmeticException e)
-				{
-					retval = groupSum.doubleValue();
-				}
-			}
-			else
-			{
-				if (sum != null)
-					retval = Long.valueOf(sum.longValueExact());
-			}
-		}
-		catch (ArithmeticException e)
+		if (this.distinctValues != null)
 		{
-			retval = sum.doubleValue();
+			SumAccumulator distinctSum = new SumAccumulator();
+			this.distinctValues.addTo(distinctSum);
+			counter = distinctSum.getCount();
+			return distinctSum.getSum();
 		}
-		return retval;
+		counter = sum.getCount();
+		return sum.getSum();
 	}
 	public String toString()
 	{
@@ -161,6 +108,10 @@ class SQLSumFunction extends AggregateFunction
 		result.add(this);
 		return result;
 	}
+	public AggregateState createState()
+	{
+		return new SumState();
+	}
 	public void processRow(Map<String, Object> env) throws SQLException
 	{
 		/*
@@ -169,17 +120,6 @@ class SQLSumFunction extends AggregateFunction
 		Object o = expression.eval(env);
 		if (o != null)
 		{
-			try
-			{
-				if (sum == null)
-					sum = new BigDecimal(o.toString());
-				else
-					sum = sum.add(new BigDecimal(o.toString()));
-				counter++;
-			}
-			catch (NumberFormatException e)
-			{
-			}
 			if (distinctValues != null)
 			{
 				/*
@@ -188,6 +128,55 @@ class SQLSumFunction extends AggregateFunction
 				 */
 				distinctValues.add(o);
 			}
+			else
+			{
+				sum.add(o);
+			}
+		}
+	}
+	class SumState implements AggregateState
+	{
+		DistinctValueSet stateDistinctValues;
+		SumAccumulator stateSum = new SumAccumulator();
+		public SumState()
+		{
+			if (distinctValues != null)
+				stateDistinctValues = new DistinctValueSet();
+		}
+		public void processRow(Map<String, Object> env) throws SQLException
+		{
+			Object o = expression.eval(env);
+			if (o != null)
+			{
+				if (stateDistinctValues != null)
+					stateDistinctValues.add(o);
+				else
+					stateSum.add(o);
+			}
+		}
+		public void merge(AggregateState other)
+		{
+			SumState otherState = (SumState)other;
+			if (stateDistinctValues != null)
+				stateDistinctValues.addAll(otherState.stateDistinctValues);
+			else
+				stateSum.merge(otherState.stateSum);
+		}
+
+		/**
+		 * Get sum of all values, or of the distinct values.
+		 */
+		protected SumAccumulator getTotal()
+		{
+			if (stateDistinctValues == null)
+				return stateSum;
+			SumAccumulator distinctSum = new SumAccumulator();
+			stateDistinctValues.addTo(distinctSum);
+			return distinctSum;
+		}
+		public Object getValue()
+		{
+			return getTotal().getSum();
 		}
 	}
 }
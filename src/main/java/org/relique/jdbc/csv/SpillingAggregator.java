@@ -0,0 +1,472 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2008  Mario Frasca
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Calculates GROUP BY aggregate functions for more groups than fit in memory.
+ *
+ * Groups are kept in a hash table with a state for each aggregate function.
+ * When the groups use more memory than allowed, the groups in memory
+ * continue to be calculated, but rows for any new group are written to
+ * temporary files, partitioned by hash code of the GROUP BY key.  After
+ * the last row, the groups in memory are returned, then each partition is
+ * read and its groups calculated separately, splitting the partition again
+ * if it is still too large.
+ *
+ * Groups with a single integer GROUP BY key are found in a LongHashMap,
+ * without creating a list or encoding the key for each row.
+ */
+class SpillingAggregator
+{
+	/** Estimated bytes of memory used by each group, in addition to the encoded key */
+	private static final int GROUP_OVERHEAD = 160;
+
+	/** Estimated bytes of memory used by each column in the first row of a group */
+	private static final int COLUMN_OVERHEAD = 48;
+
+	/** Estimated bytes of memory used by each aggregate function state */
+	private static final int STATE_OVERHEAD = 64;
+
+	private static final int PARTITION_BITS = 6;
+	private static final int N_PARTITIONS = 1 << PARTITION_BITS;
+
+	/** Partitions are split again at most this many times */
+	private static final int MAX_LEVEL = 4;
+
+	private final long memoryLimit;
+	private final int level;
+	private final List<Expression> groupByColumns;
+	private final List<AggregateFunction> aggregateFunctions;
+	private boolean canSpill;
+
+	private RowEncoder encoder = new RowEncoder();
+	private HashMap<Object, AggregateGroup> groups = new HashMap<Object, AggregateGroup>();
+	private LongHashMap<AggregateGroup> longGroups = new LongHashMap<AggregateGroup>();
+	private Class<?> longKeyClass = null;
+
+	/** Groups in memory in the order they were added */
+	private ArrayList<AggregateGroup> groupList = new ArrayList<AggregateGroup>();
+	private long memoryUsed = 0;
+	private long rowCount = 0;
+
+	/** Columns of rows written to files, and values shared by all rows */
+	private String[] columnNames;
+	private Object converter;
+	private Object statement;
+
+	private File[] partitionFiles;
+	private DataOutputStream[] partitionOutputs;
+	private long[] partitionRecordCounts;
+
+	/** Groups being returned after last row, and partition currently being read */
+	private int groupIndex = -1;
+	private int currentPartition = -1;
+	private SpillingAggregator partitionAggregator;
+
+	/**
+	 * @param memoryLimit bytes of memory to use before writing to temporary files,
+	 * or zero or negative to keep all groups in memory.
+	 * @param groupByColumns expressions for SQL GROUP BY clause.
+	 * @param aggregateFunctions functions to calculate for each group.
+	 */
+	public SpillingAggregator(long memoryLimit, List<Expression> groupByColumns,
+		List<AggregateFunction> aggregateFunctions)
+	{
+		this(memoryLimit, 0, groupByColumns, aggregateFunctions);
+	}
+
+	private SpillingAggregator(long memoryLimit, int level, List<Expression> groupByColumns,
+		List<AggregateFunction> aggregateFunctions)
+	{
+		this.memoryLimit = memoryLimit;
+		this.level = level;
+		this.groupByColumns = groupByColumns;
+		this.aggregateFunctions = aggregateFunctions;
+		this.canSpill = (memoryLimit > 0 && level <= MAX_LEVEL);
+	}
+
+	/**
+	 * Add a row to its group.
+	 */
+	public void add(Map<String, Object> row) throws SQLException
+	{
+		if (groupByColumns.size() == 1)
+		{
+			Object value = groupByColumns.get(0).eval(row);
+			Class<?> integralClass = LongHashSet.getIntegralClass(value);
+			if (integralClass != null && longKeyClass == null)
+				longKeyClass = integralClass;
+			if (integralClass != null && integralClass == longKeyClass)
+			{
+				long longKey = ((Number)value).longValue();
+				AggregateGroup group = longGroups.get(longKey);
+				if (group == null)
+				{
+					if (partitionFiles != null)
+					{
+						writeRow(encoder.encode(Collections.singletonList(value)), row);
+						return;
+					}
+					group = createGroup(row, 0);
+					longGroups.put(longKey, group);
+				}
+				addToGroup(group, row);
+				return;
+			}
+		}
+
+		ArrayList<Object> keyValues = new ArrayList<Object>(groupByColumns.size());
+		for (Expression expr : groupByColumns)
+			keyValues.add(expr.eval(row));
+		byte[] keyBytes = encoder.encode(keyValues);
+		if (keyBytes == null)
+		{
+			/*
+			 * Groups with values we cannot encode are always kept in memory.
+			 */
+			canSpill = false;
+			addRow(keyValues, null, row);
+		}
+		else
+		{
+			addRow(new RowEncoder.Key(keyBytes), keyBytes, row);
+		}
+	}
+
+	private void addRow(Object key, byte[] keyBytes, Map<String, Object> row) throws SQLException
+	{
+		AggregateGroup group = groups.get(key);
+		if (group == null)
+		{
+			if (partitionFiles != null)
+			{
+				/*
+				 * Groups not already in memory are calculated later from the files.
+				 */
+				writeRow(keyBytes, row);
+				return;
+			}
+
+			group = createGroup(row, keyBytes != null ? keyBytes.length : 0);
+			groups.put(key, group);
+		}
+		addToGroup(group, row);
+	}
+
+	private AggregateGroup createGroup(Map<String, Object> row, int keyLength)
+	{
+		AggregateState[] states = new AggregateState[aggregateFunctions.size()];
+		for (int i = 0; i < states.length; i++)
+			states[i] = aggregateFunctions.get(i).createState();
+		AggregateGroup group = new AggregateGroup(rowCount, row, states);
+		groupList.add(group);
+		memoryUsed += GROUP_OVERHEAD + keyLength +
+			row.size() * COLUMN_OVERHEAD + states.length * STATE_OVERHEAD;
+		return group;
+	}
+
+	private void addToGroup(AggregateGroup group, Map<String, Object> row) throws SQLException
+	{
+		rowCount++;
+		for (AggregateState state : group.states)
+			state.processRow(row);
+
+		if (canSpill && partitionFiles == null && memoryUsed > memoryLimit)
+		{
+			/*
+			 * Check that rows can be written before writing any.
+			 */
+			setColumnNames(row);
+			if (encodeRow(row) == null)
+				canSpill = false;
+			else
+				spill();
+		}
+	}
+
+	private void setColumnNames(Map<String, Object> row)
+	{
+		if (columnNames != null)
+			return;
+		ArrayList<String> names = new ArrayList<String>();
+		for (String name : row.keySet())
+		{
+			if (!(name.equals(StringConverter.COLUMN_NAME) || name.equals(CsvStatement.STATEMENT_COLUMN_NAME)))
+				names.add(name);
+		}
+		columnNames = names.toArray(new String[names.size()]);
+		converter = row.get(StringConverter.COLUMN_NAME);
+		statement = row.get(CsvStatement.STATEMENT_COLUMN_NAME);
+	}
+
+	private byte[] encodeRow(Map<String, Object> row)
+	{
+		Object[] values = new Object[columnNames.length];
+		for (int i = 0; i < values.length; i++)
+			values[i] = row.get(columnNames[i]);
+		return encoder.encode(values);
+	}
+
+	private Map<String, Object> decodeRow(byte[] rowBytes)
+	{
+		Object[] values = RowEncoder.decode(rowBytes);
+		HashMap<String, Object> row = new HashMap<String, Object>();
+		for (int i = 0; i < values.length; i++)
+			row.put(columnNames[i], values[i]);
+		if (converter != null)
+			row.put(StringConverter.COLUMN_NAME, converter);
+		if (statement != null)
+			row.put(CsvStatement.STATEMENT_COLUMN_NAME, statement);
+		return row;
+	}
+
+	/**
+	 * Open temporary files for rows of groups not already in memory.
+	 */
+	private void spill() throws SQLException
+	{
+		partitionFiles = new File[N_PARTITIONS];
+		partitionOutputs = new DataOutputStream[N_PARTITIONS];
+		partitionRecordCounts = new long[N_PARTITIONS];
+		try
+		{
+			for (int i = 0; i < N_PARTITIONS; i++)
+			{
+				partitionFiles[i] = File.createTempFile("csvjdbc", ".group");
+				partitionOutputs[i] = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(partitionFiles[i])));
+			}
+		}
+		catch (IOException e)
+		{
+			close();
+			throw new SQLException(CsvResources.getString("groupBySpillFailed") + ": " + e);
+		}
+	}
+
+	private void writeRow(byte[] keyBytes, Map<String, Object> row) throws SQLException
+	{
+		byte[] rowBytes = null;
+		if (keyBytes != null)
+		{
+			setColumnNames(row);
+			rowBytes = encodeRow(row);
+		}
+		if (rowBytes == null)
+		{
+			close();
+			throw new SQLException(CsvResources.getString("groupBySpillFailed"));
+		}
+
+		RowEncoder.Key key = new RowEncoder.Key(keyBytes);
+		int partition = key.getPartition(level, PARTITION_BITS);
+		DataOutputStream out = partitionOutputs[partition];
+		try
+		{
+			out.writeInt(keyBytes.length);
+			out.write(keyBytes);
+			out.writeInt(rowBytes.length);
+			out.write(rowBytes);
+		}
+		catch (IOException e)
+		{
+			close();
+			throw new SQLException(CsvResources.getString("groupBySpillFailed") + ": " + e);
+		}
+		partitionRecordCounts[partition]++;
+	}
+
+	/**
+	 * Get next group, only called after last row has been added.
+	 * Groups kept in memory are returned in the order they were added,
+	 * then the groups calculated from each temporary file.
+	 *
+	 * @return next group, or null after the last group.
+	 */
+	public AggregateGroup nextGroup() throws SQLException
+	{
+		if (groupIndex < 0)
+		{
+			/*
+			 * Groups are no longer looked up, only returned.
+			 */
+			groups.clear();
+			longGroups.clear();
+			groupIndex = 0;
+			if (partitionFiles != null)
+				closeOutputs();
+		}
+		if (groupIndex < groupList.size())
+		{
+			/*
+			 * Remove groups as they are returned so their memory can be reused.
+			 */
+			AggregateGroup group = groupList.get(groupIndex);
+			groupList.set(groupIndex, null);
+			groupIndex++;
+			return group;
+		}
+		if (partitionFiles == null || currentPartition >= N_PARTITIONS)
+			return null;
+
+		while (true)
+		{
+			if (partitionAggregator != null)
+			{
+				AggregateGroup group = partitionAggregator.nextGroup();
+				if (group != null)
+					return group;
+				partitionAggregator.close();
+				partitionAggregator = null;
+				deletePartition(currentPartition);
+			}
+			currentPartition++;
+			if (currentPartition >= N_PARTITIONS)
+			{
+				close();
+				return null;
+			}
+			partitionAggregator = readPartition(currentPartition);
+		}
+	}
+
+	/**
+	 * Calculate groups for all rows written to a temporary file.
+	 */
+	private SpillingAggregator readPartition(int partition) throws SQLException
+	{
+		SpillingAggregator aggregator = new SpillingAggregator(memoryLimit, level + 1,
+			groupByColumns, aggregateFunctions);
+		aggregator.columnNames = columnNames;
+		aggregator.converter = converter;
+		aggregator.statement = statement;
+		if (partitionRecordCounts[partition] == 0)
+			return aggregator;
+
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(partitionFiles[partition])));
+			for (long i = 0; i < partitionRecordCounts[partition]; i++)
+			{
+				byte[] keyBytes = new byte[in.readInt()];
+				in.readFully(keyBytes);
+				byte[] rowBytes = new byte[in.readInt()];
+				in.readFully(rowBytes);
+				aggregator.addRow(new RowEncoder.Key(keyBytes), keyBytes, decodeRow(rowBytes));
+			}
+		}
+		catch (IOException e)
+		{
+			aggregator.close();
+			close();
+			throw new SQLException(CsvResources.getString("groupBySpillFailed") + ": " + e);
+		}
+		finally
+		{
+			if (in != null)
+			{
+				try
+				{
+					in.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+		return aggregator;
+	}
+
+	private void closeOutputs() throws SQLException
+	{
+		try
+		{
+			for (int i = 0; i < N_PARTITIONS; i++)
+			{
+				partitionOutputs[i].close();
+				partitionOutputs[i] = null;
+			}
+		}
+		catch (IOException e)
+		{
+			close();
+			throw new SQLException(CsvResources.getString("groupBySpillFailed") + ": " + e);
+		}
+	}
+
+	private void deletePartition(int partition)
+	{
+		if (partitionFiles[partition] != null)
+		{
+			partitionFiles[partition].delete();
+			partitionFiles[partition] = null;
+		}
+	}
+
+	/**
+	 * Delete any temporary files.
+	 */
+	public void close()
+	{
+		if (partitionAggregator != null)
+		{
+			partitionAggregator.close();
+			partitionAggregator = null;
+		}
+		if (partitionFiles != null)
+		{
+			for (int i = 0; i < N_PARTITIONS; i++)
+			{
+				if (partitionOutputs[i] != null)
+				{
+					try
+					{
+						partitionOutputs[i].close();
+					}
+					catch (IOException e)
+					{
+					}
+					partitionOutputs[i] = null;
+				}
+				deletePartition(i);
+			}
+			currentPartition = N_PARTITIONS;
+		}
+		groups.clear();
+		longGroups.clear();
+		groupList.clear();
+	}
+}
@@ -51,10 +51,24 @@ public class StringConverter
 	private SimpleDateFormat simpleTimeFormat;
 	private String timeFormat;
 	private GregorianCalendar calendar;
-	private Pattern timestampPattern;
 	private SimpleDateFormat timestampFormat;
 	private SimpleDateFormat simpleDateFormat;
 
+	/** Are dates and times in default ISO format that we parse ourselves? */
+	private boolean isIsoDateFormat;
+	private boolean isIsoTimeFormat;
+
+	private NumberParser numberParser = new NumberParser();
+
+	/**
+	 * Converts strings to values of one SQL data type, chosen once
+	 * instead of for every value.
+	 */
+	public static abstract class ColumnConverter
+	{
+		public abstract Object convert(String str);
+	}
+
 	public StringConverter(String dateformat, String timeformat, String timestampformat,
 		String timeZoneName)
 	{
@@ -71,6 +85,8 @@ public class StringConverter
 		String timeZoneName, Locale locale)
 	{
 		dateFormat = dateformat;
+		isIsoDateFormat = dateformat != null && dateformat.equalsIgnoreCase("yyyy-mm-dd");
+		isIsoTimeFormat = timeformat != null && timeformat.equals("HH:mm:ss");
 		if (dateformat != null)
 		{
 			/*
@@ -153,14 +169,6 @@ public class StringConverter
 			}
 			timestampFormat.setTimeZone(timeZone);
 		}
-		else
-		{
-			/*
-			 * Parse timestamps using a fixed regular expression.
-			 */
-			timestampPattern = Pattern
-				.compile("([0-9][0-9][0-9][0-9])-([0-9]?[0-9])-([0-9]?[0-9])[ T]([0-9]?[0-9]):([0-9]?[0-9]):([0-9]?[0-9]).*");
-		}
 	}
 
 	public String parseString(String str)
@@ -182,114 +190,57 @@ public class StringConverter
 
 	public Byte parseByte(String str)
 	{
-		try
-		{
-			Byte b;
-			if (str == null || str.length() == 0)
-				b = null;
-			else
-				b = Byte.valueOf(Byte.parseByte(str));
-			return b;
-		}
-		catch (NumberFormatException e)
+		if (str == null ||
+			numberParser.parseLong(str, 0, str.length(), Byte.MIN_VALUE, Byte.MAX_VALUE) != NumberParser.OK)
 		{
 			return null;
 		}
+		return Byte.valueOf((byte)numberParser.getLong());
 	}
 
 	public Short parseShort(String str)
 	{
-		try
-		{
-			Short s;
-			if (str == null || str.length() == 0)
-				s = null;
-			else
-				s = Short.valueOf(Short.parseShort(str));
-			return s;
-		}
-		catch (NumberFormatException e)
+		if (str == null ||
+			numberParser.parseLong(str, 0, str.length(), Short.MIN_VALUE, Short.MAX_VALUE) != NumberParser.OK)
 		{
 			return null;
 		}
+		return Short.valueOf((short)numberParser.getLong());
 	}
 
 	public Integer parseInt(String str)
 	{
-		try
-		{
-			Integer i;
-			if (str == null || str.length() == 0)
-				i = null;
-			else
-				i = Integer.valueOf(Integer.parseInt(str));
-			return i;
-		}
-		catch (NumberFormatException e)
+		if (str == null ||
+			numberParser.parseLong(str, 0, str.length(), Integer.MIN_VALUE, Integer.MAX_VALUE) != NumberParser.OK)
 		{
 			return null;
 		}
+		return Integer.valueOf((int)numberParser.getLong());
 	}
 
 	public Long parseLong(String str)
 	{
-		try
-		{
-			Long l;
-			if (str == null || str.length() == 0)
-				l = null;
-			else
-				l = Long.valueOf(Long.parseLong(str));
-			return l;
-		}
-		catch (NumberFormatException e)
-		{
+		if (str == null || numberParser.parseLong(str, 0, str.length()) != NumberParser.OK)
 			return null;
-		}
+		return Long.valueOf(numberParser.getLong());
 	}
 
 	public Float parseFloat(String str)
 	{
-		try
-		{
-			Float f;
-			if (str == null || str.length() == 0)
-			{
-				f = null;
-			}
-			else
-			{
-				str = str.replace(",", ".");
-				f = Float.valueOf(Float.parseFloat(str));
-			}
-			return f;
-		}
-		catch (NumberFormatException e)
-		{
+		/*
+		 * Check number is valid before parsing it, to avoid slow exceptions.
+		 */
+		if (str == null || numberParser.parseDouble(str, 0, str.length(), true) != NumberParser.OK)
 			return null;
-		}
+		str = str.replace(",", ".");
+		return Float.valueOf(Float.parseFloat(str));
 	}
 
 	public Double parseDouble(String str)
 	{
-		try
-		{
-			Double d;
-			if (str == null || str.length() == 0)
-			{
-				d = null;
-			}
-			else
-			{
-				str = str.replace(",", ".");
-				d = Double.valueOf(Double.parseDouble(str));
-			}
-			return d;
-		}
-		catch (NumberFormatException e)
-		{
+		if (str == null || numberParser.parseDouble(str, 0, str.length(), true) != NumberParser.OK)
 			return null;
-		}
+		return Double.valueOf(numberParser.getDouble());
 	}
 
 	public byte[] parseBytes(String str)
@@ -311,17 +262,17 @@ public class StringConverter
 
 	public BigDecimal parseBigDecimal(String str)
 	{
+		if (str == null || numberParser.checkDecimal(str, 0, str.length()) != NumberParser.OK)
+			return null;
 		try
 		{
-			BigDecimal bd;
-			if (str == null || str.length() == 0)
-				bd = null;
-			else
-				bd = new BigDecimal(str);
-			return bd;
+			return new BigDecimal(str);
 		}
 		catch (NumberFormatException e)
 		{
+			/*
+			 * Scale too large for an int.
+			 */
 			return null;
 		}
 	}
@@ -411,6 +362,8 @@ public class StringConverter
 					sqlResult = new Date(millis);
 					return sqlResult;
 				}
+				if (isIsoDateFormat)
+					return parseIsoDate(str);
 				String isoDate = makeISODate(str, dateFormat);
 				if (isoDate != null)
 					sqlResult = Date.valueOf(isoDate);
@@ -427,6 +380,66 @@ public class StringConverter
 		}
 	}
 
+	/**
+	 * Get value of two decimal digits in a string.
+	 *
+	 * @return value, or -1 if characters are not both digits.
+	 */
+	private static int parseTwoDigits(String str, int index)
+	{
+		char c1 = str.charAt(index);
+		char c2 = str.charAt(index + 1);
+		if (c1 < '0' || c1 > '9' || c2 < '0' || c2 > '9')
+			return -1;
+		return (c1 - '0') * 10 + (c2 - '0');
+	}
+
+	/**
+	 * Parse date in format YYYY-MM-DD, ignoring anything following the date.
+	 */
+	@SuppressWarnings("deprecation")
+	private static Date parseIsoDate(String str)
+	{
+		if (str.length() < 10 || str.charAt(4) != '-' || str.charAt(7) != '-')
+			return null;
+		int century = parseTwoDigits(str, 0);
+		int yearInCentury = parseTwoDigits(str, 2);
+		int month = parseTwoDigits(str, 5);
+		int day = parseTwoDigits(str, 8);
+		if (century < 0 || yearInCentury < 0 || month < 1 || month > 12 || day < 1 || day > 31)
+			return null;
+
+		/*
+		 * Same calculation as Date.valueOf(), in the default time zone.
+		 */
+		return new Date(century * 100 + yearInCentury - 1900, month - 1, day);
+	}
+
+	/**
+	 * Parse time in format HH:mm:ss.
+	 *
+	 * @return time, or null if time must be parsed using SimpleDateFormat.
+	 */
+	@SuppressWarnings("deprecation")
+	private static Time parseIsoTime(String str)
+	{
+		if (str.length() < 8 || str.charAt(2) != ':' || str.charAt(5) != ':')
+			return null;
+		if (str.length() > 8 && Character.isDigit(str.charAt(8)))
+			return null;
+		int hours = parseTwoDigits(str, 0);
+		int minutes = parseTwoDigits(str, 3);
+		int seconds = parseTwoDigits(str, 6);
+		if (hours < 0 || minutes < 0 || seconds < 0)
+			return null;
+
+		/*
+		 * Fields out of range roll over to the next minute, hour or day
+		 * in the same way as the lenient SimpleDateFormat.
+		 */
+		return new Time(hours, minutes, seconds);
+	}
+
 	public Time parseTime(String str)
 	{
 		try
@@ -435,10 +448,19 @@ public class StringConverter
 			if (str != null && str.length() > 0)
 			{
 				str = str.trim();
-				while (str.length() < timeFormat.length())
+				if (str.length() < timeFormat.length())
 				{
-					str = "0" + str;
-				} 
+					StringBuilder sb = new StringBuilder(timeFormat.length());
+					for (int i = str.length(); i < timeFormat.length(); i++)
+						sb.append('0');
+					str = sb.append(str).toString();
+				}
+				if (isIsoTimeFormat)
+				{
+					sqlResult = parseIsoTime(str);
+					if (sqlResult != null)
+						return sqlResult;
+				}
 				java.util.Date parsedDate = simpleTimeFormat.parse(str);
 				long millis = parsedDate.getTime();
 				sqlResult = new Time(millis);
@@ -469,18 +491,7 @@ public class StringConverter
 				}
 				else
 				{
-					Matcher matcher = timestampPattern.matcher(str);
-					if (matcher.matches())
-					{
-						int year = Integer.parseInt(matcher.group(1));
-						int month = Integer.parseInt(matcher.group(2)) - 1;
-						int date = Integer.parseInt(matcher.group(3));
-						int hours = Integer.parseInt(matcher.group(4));
-						int minutes = Integer.parseInt(matcher.group(5));
-						int seconds = Integer.parseInt(matcher.group(6));
-						calendar.set(year, month, date, hours, minutes, seconds);
-						result = new Timestamp(calendar.getTimeInMillis());
-					}
+					result = parseIsoTimestamp(str);
 				}
 			}
 		}
@@ -493,6 +504,64 @@ public class StringConverter
 		return result;
 	}
 
+	/**
+	 * Parse timestamp in format YYYY-M-D H:m:s, with optional leading zeroes
+	 * and ignoring anything after the seconds.
+	 */
+	private Timestamp parseIsoTimestamp(String str)
+	{
+		/*
+		 * Fields are year, month, day, hours, minutes, seconds, each
+		 * followed by a separator.
+		 */
+		int[] fields = new int[6];
+		int index = 0;
+		int length = str.length();
+		for (int i = 0; i < fields.length; i++)
+		{
+			int maxDigits = (i == 0) ? 4 : 2;
+			int minDigits = (i == 0) ? 4 : 1;
+			int value = 0;
+			int nDigits = 0;
+			while (nDigits < maxDigits && index < length)
+			{
+				char c = str.charAt(index);
+				if (c < '0' || c > '9')
+					break;
+				value = value * 10 + (c - '0');
+				nDigits++;
+				index++;
+			}
+			if (nDigits < minDigits)
+				return null;
+			fields[i] = value;
+
+			if (i < fields.length - 1)
+			{
+				if (index >= length)
+					return null;
+				char separator = str.charAt(index);
+				if (i < 2)
+				{
+					if (separator != '-')
+						return null;
+				}
+				else if (i == 2)
+				{
+					if (separator != ' ' && separator != 'T')
+						return null;
+				}
+				else if (separator != ':')
+				{
+					return null;
+				}
+				index++;
+			}
+		}
+		calendar.set(fields[0], fields[1] - 1, fields[2], fields[3], fields[4], fields[5]);
+		return new Timestamp(calendar.getTimeInMillis());
+	}
+
 	public InputStream parseAsciiStream(String str)
 	{
 		return (str == null) ? null : new ByteArrayInputStream(str.getBytes());
@@ -559,6 +628,164 @@ public class StringConverter
 			return stringRepresentation;
 	}
 
+	/**
+	 * Get converter for values of an SQL data type, to use for all values
+	 * in a column.
+	 *
+	 * @param sqlTypeName name of SQL data type.
+	 * @return converter that gives the same result as convert().
+	 */
+	public ColumnConverter getColumnConverter(String sqlTypeName)
+	{
+		String lower = (sqlTypeName != null) ? sqlTypeName.toLowerCase() : "string";
+		if (lower.equals("boolean"))
+		{
+			return new ColumnConverter()
+			{
+				@Override
+				public Object convert(String str)
+				{
+					return parseBoolean(str);
+				}
+			};
+		}
+		else if (lower.equals("byte"))
+		{
+			return new ColumnConverter()
+			{
+				@Override
+				public Object convert(String str)
+				{
+					return parseByte(str);
+				}
+			};
+		}
+		else if (lower.equals("short"))
+		{
+			return new ColumnConverter()
+			{
+				@Override
+				public Object convert(String str)
+				{
+					return parseShort(str);
+				}
+			};
+		}
+		else if (lower.equals("int") || lower.equals("integer"))
+		{
+			return new ColumnConverter()
+			{
+				@Override
+				public Object convert(String str)
+				{
+					return parseInt(str);
+				}
+			};
+		}
+		else if (lower.equals("long"))
+		{
+			return new ColumnConverter()
+			{
+				@Override
+				public Object convert(String str)
+				{
+					return parseLong(str);
+				}
+			};
+		}
+		else if (lower.equals("float"))
+		{
+			return new ColumnConverter()
+			{
+				@Override
+				public Object convert(String str)
+				{
+					return parseFloat(str);
+				}
+			};
+		}
+		else if (lower.equals("double"))
+		{
+			return new ColumnConverter()
+			{
+				@Override
+				public Object convert(String str)
+				{
+					return parseDouble(str);
+				}
+			};
+		}
+		else if (lower.equals("bigdecimal"))
+		{
+			return new ColumnConverter()
+			{
+				@Override
+				public Object convert(String str)
+				{
+					return parseBigDecimal(str);
+				}
+			};
+		}
+		else if (lower.equals("date"))
+		{
+			return new ColumnConverter()
+			{
+				@Override
+				public Object convert(String str)
+				{
+					return parseDate(str);
+				}
+			};
+		}
+		else if (lower.equals("time"))
+		{
+			return new ColumnConverter()
+			{
+				@Override
+				public Object convert(String str)
+				{
+					return parseTime(str);
+				}
+			};
+		}
+		else if (lower.equals("timestamp"))
+		{
+			return new ColumnConverter()
+			{
+				@Override
+				public Object convert(String str)
+				{
+					return parseTimestamp(str);
+				}
+			};
+		}
+		else if (lower.equals("asciistream"))
+		{
+			return new ColumnConverter()
+			{
+				@Override
+				public Object convert(String str)
+				{
+					return parseAsciiStream(str);
+				}
+			};
+		}
+		else
+		{
+			/*
+			 * No need to do a conversion if desired type is also a string.
+			 */
+			return new ColumnConverter()
+			{
+				@Override
+				public Object convert(String str)
+				{
+					return str;
+				}
+			};
+		}
+	}
+
 	public Class<?> forSQLName(String sqlTypeName)
 	{
 		sqlTypeName = sqlTypeName.toLowerCase();
@@ -0,0 +1,303 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2001  Jonathan Ackerman
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.math.BigDecimal;
+
+/**
+ * Running sum for SUM and AVG functions that avoids creating objects for
+ * each value added.
+ *
+ * Integers and decimal numbers are added exactly as a long with a scale,
+ * changing to a BigDecimal only if the sum no longer fits in a long.
+ * Floating point numbers are added as a double with Neumaier compensation,
+ * so that rounding errors do not accumulate.
+ */
+class SumAccumulator
+{
+	private static final int EMPTY = 0;
+	private static final int LONG = 1;
+	private static final int DOUBLE = 2;
+	private static final int DECIMAL = 3;
+
+	private static final long[] POWERS_OF_TEN = {
+		1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+		100000000L, 1000000000L, 10000000000L, 100000000000L,
+		1000000000000L, 10000000000000L, 100000000000000L,
+		1000000000000000L, 10000000000000000L, 100000000000000000L,
+		1000000000000000000L
+	};
+
+	private int type = EMPTY;
+
+	/** Sum as unscaled long and scale, when type is LONG */
+	private long longSum;
+	private int scale;
+
+	/** Sum and compensation for lost low order bits, when type is DOUBLE */
+	private double doubleSum;
+	private double compensation;
+
+	/** Sum when type is DECIMAL */
+	private BigDecimal decimalSum;
+
+	private int count = 0;
+
+	private NumberParser numberParser = new NumberParser();
+
+	/**
+	 * Add a value to the sum, ignoring values that are not numbers.
+	 */
+	public void add(Object o)
+	{
+		if (o instanceof Integer || o instanceof Long || o instanceof Short || o instanceof Byte)
+		{
+			addScaled(((Number)o).longValue(), 0);
+		}
+		else if (o instanceof Double || o instanceof Float)
+		{
+			addDouble(((Number)o).doubleValue());
+		}
+		else if (o instanceof BigDecimal)
+		{
+			BigDecimal decimal = (BigDecimal)o;
+
+			/*
+			 * Numbers written with an exponent, such as 1E+5, can have a
+			 * negative scale, which the long sum does not use.
+			 */
+			if (decimal.scale() < 0 && decimal.precision() - decimal.scale() < POWERS_OF_TEN.length)
+				decimal = decimal.setScale(0);
+			if (decimal.scale() >= 0 && decimal.unscaledValue().bitLength() < 64)
+				addScaled(decimal.unscaledValue().longValue(), decimal.scale());
+			else
+				addDecimal(decimal);
+		}
+		else if (o != null)
+		{
+			/*
+			 * Parse text the same way as new BigDecimal(String) without
+			 * creating any objects in the common case.
+			 */
+			String str = o.toString();
+			int status = numberParser.parseScaledLong(str, 0, str.length());
+			if (status == NumberParser.OK)
+				addScaled(numberParser.getLong(), numberParser.getScale());
+			else if (status == NumberParser.OUT_OF_RANGE &&
+				numberParser.checkDecimal(str, 0, str.length()) == NumberParser.OK)
+				addDecimal(new BigDecimal(str));
+		}
+	}
+
+	/**
+	 * Add an integer to the sum.
+	 */
+	public void addLong(long value)
+	{
+		addScaled(value, 0);
+	}
+
+	private void addScaled(long value, int valueScale)
+	{
+		count++;
+		if (type == EMPTY)
+		{
+			type = LONG;
+			longSum = value;
+			scale = valueScale;
+			return;
+		}
+		if (type == LONG)
+		{
+			/*
+			 * Bring both numbers to the same scale, then add them,
+			 * checking that nothing overflows.
+			 */
+			long sum = longSum;
+			int newScale = Math.max(scale, valueScale);
+			if (newScale - scale < POWERS_OF_TEN.length && newScale - valueScale < POWERS_OF_TEN.length)
+			{
+				long sumFactor = POWERS_OF_TEN[newScale - scale];
+				long valueFactor = POWERS_OF_TEN[newScale - valueScale];
+				if (fitsAfterMultiply(sum, sumFactor) && fitsAfterMultiply(value, valueFactor))
+				{
+					sum *= sumFactor;
+					value *= valueFactor;
+					long result = sum + value;
+					if (((sum ^ result) & (value ^ result)) >= 0)
+					{
+						longSum = result;
+						scale = newScale;
+						return;
+					}
+				}
+			}
+			decimalSum = BigDecimal.valueOf(longSum, scale);
+			type = DECIMAL;
+			decimalSum = decimalSum.add(BigDecimal.valueOf(value, valueScale));
+		}
+		else if (type == DOUBLE)
+		{
+			addToDoubleSum(toDouble(value, valueScale));
+		}
+		else
+		{
+			decimalSum = decimalSum.add(BigDecimal.valueOf(value, valueScale));
+		}
+	}
+
+	private static boolean fitsAfterMultiply(long value, long factor)
+	{
+		return factor == 1 || (value <= Long.MAX_VALUE / factor && value >= Long.MIN_VALUE / factor);
+	}
+
+	private static double toDouble(long value, int valueScale)
+	{
+		if (valueScale == 0)
+			return value;
+		if (valueScale > 0 && valueScale < POWERS_OF_TEN.length && Math.abs(value) < (1L << 53))
+			return value / (double)POWERS_OF_TEN[valueScale];
+		return BigDecimal.valueOf(value, valueScale).doubleValue();
+	}
+
+	private void addDecimal(BigDecimal value)
+	{
+		count++;
+		if (type == EMPTY)
+		{
+			type = DECIMAL;
+			decimalSum = value;
+		}
+		else if (type == LONG)
+		{
+			type = DECIMAL;
+			decimalSum = BigDecimal.valueOf(longSum, scale).add(value);
+		}
+		else if (type == DOUBLE)
+		{
+			addToDoubleSum(value.doubleValue());
+		}
+		else
+		{
+			decimalSum = decimalSum.add(value);
+		}
+	}
+
+	private void addDouble(double value)
+	{
+		count++;
+		if (type == LONG)
+		{
+			doubleSum = toDouble(longSum, scale);
+			compensation = 0;
+		}
+		else if (type == DECIMAL)
+		{
+			doubleSum = decimalSum.doubleValue();
+			compensation = 0;
+			decimalSum = null;
+		}
+		else if (type == EMPTY)
+		{
+			doubleSum = 0;
+			compensation = 0;
+		}
+		type = DOUBLE;
+		addToDoubleSum(value);
+	}
+
+	private void addToDoubleSum(double value)
+	{
+		double t = doubleSum + value;
+		if (Math.abs(doubleSum) >= Math.abs(value))
+			compensation += (doubleSum - t) + value;
+		else
+			compensation += (value - t) + doubleSum;
+		doubleSum = t;
+	}
+
+	/**
+	 * Add the values added to another sum.
+	 */
+	public void merge(SumAccumulator other)
+	{
+		if (other.type == EMPTY)
+			return;
+		if (other.type == LONG)
+			addScaled(other.longSum, other.scale);
+		else if (other.type == DECIMAL)
+			addDecimal(other.decimalSum);
+		else
+		{
+			addDouble(other.doubleSum);
+			addToDoubleSum(other.compensation);
+		}
+
+		/*
+		 * Adding the other sum counted one value, not all of its values.
+		 */
+		count += other.count - 1;
+	}
+
+	/**
+	 * Get number of values added to the sum.
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Get the sum as a Long if it is a whole number that fits in a long,
+	 * otherwise as a Double.
+	 *
+	 * @return sum, or null if no numbers were added.
+	 */
+	public Number getSum()
+	{
+		if (type == EMPTY)
+			return null;
+
+		if (type == LONG)
+		{
+			if (scale == 0)
+				return Long.valueOf(longSum);
+			if (scale > 0 && scale < POWERS_OF_TEN.length && longSum % POWERS_OF_TEN[scale] == 0)
+				return Long.valueOf(longSum / POWERS_OF_TEN[scale]);
+			return Double.valueOf(BigDecimal.valueOf(longSum, scale).doubleValue());
+		}
+
+		if (type == DOUBLE)
+		{
+			double sum = doubleSum + compensation;
+			if (sum == Math.rint(sum) && Math.abs(sum) < 0x1p63)
+				return Long.valueOf((long)sum);
+			return Double.valueOf(sum);
+		}
+
+		try
+		{
+			return Long.valueOf(decimalSum.longValueExact());
+		}
+		catch (ArithmeticException e)
+		{
+			return Double.valueOf(decimalSum.doubleValue());
+		}
+	}
+}
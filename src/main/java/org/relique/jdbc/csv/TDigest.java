@@ -0,0 +1,269 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2001  Jonathan Ackerman
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+/**
+ * t-digest sketch for estimating quantiles of a stream of numbers in
+ * a single pass, using a bounded number of weighted centroids.
+ *
+ * Centroids near the smallest and largest values hold fewer values, so
+ * that extreme quantiles such as the 99th percentile are most accurate.
+ */
+class TDigest
+{
+	public static final double DEFAULT_COMPRESSION = 100;
+
+	private final double compression;
+
+	/** Centroids sorted by mean */
+	private double[] means;
+	private double[] weights;
+	private int nCentroids = 0;
+
+	/** Values added since centroids were last calculated */
+	private double[] bufferMeans;
+	private double[] bufferWeights;
+	private int nBuffered = 0;
+
+	private double totalWeight = 0;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+
+	public TDigest(double compression)
+	{
+		this.compression = compression;
+		int maxCentroids = (int)Math.ceil(compression * 2) + 10;
+		this.means = new double[maxCentroids];
+		this.weights = new double[maxCentroids];
+		this.bufferMeans = new double[maxCentroids * 5];
+		this.bufferWeights = new double[maxCentroids * 5];
+	}
+
+	public void add(double value)
+	{
+		add(value, 1);
+	}
+
+	private void add(double value, double weight)
+	{
+		if (Double.isNaN(value))
+			return;
+		if (nBuffered == bufferMeans.length)
+			compress();
+		bufferMeans[nBuffered] = value;
+		bufferWeights[nBuffered] = weight;
+		nBuffered++;
+		totalWeight += weight;
+		if (value < min)
+			min = value;
+		if (value > max)
+			max = value;
+	}
+
+	/**
+	 * Combine another sketch into this one, so that this sketch estimates
+	 * quantiles of the values added to either sketch.
+	 */
+	public void merge(TDigest other)
+	{
+		other.compress();
+		for (int i = 0; i < other.nCentroids; i++)
+			add(other.means[i], other.weights[i]);
+		if (other.min < min)
+			min = other.min;
+		if (other.max > max)
+			max = other.max;
+	}
+
+	/**
+	 * Get number of values added.
+	 */
+	public long size()
+	{
+		return Math.round(totalWeight);
+	}
+
+	/**
+	 * Scale function limiting the size of centroids, so that centroids
+	 * covering quantiles near 0 and 1 are smaller.
+	 */
+	private double scale(double q)
+	{
+		return compression / (2 * Math.PI) * Math.asin(2 * q - 1);
+	}
+
+	/**
+	 * Merge buffered values into centroids.
+	 */
+	private void compress()
+	{
+		if (nBuffered == 0)
+			return;
+
+		sortByMean(bufferMeans, bufferWeights, 0, nBuffered - 1);
+
+		/*
+		 * Combine existing centroids and buffered values in order of mean,
+		 * merging neighbours as long as the merged centroid is small enough.
+		 */
+		int n = nCentroids + nBuffered;
+		double[] newMeans = new double[means.length];
+		double[] newWeights = new double[weights.length];
+		int nNew = 0;
+		int i = 0, j = 0;
+		double weightSoFar = 0;
+		double currentMean = 0;
+		double currentWeight = 0;
+		for (int k = 0; k < n; k++)
+		{
+			double mean, weight;
+			if (j >= nBuffered || (i < nCentroids && means[i] <= bufferMeans[j]))
+			{
+				mean = means[i];
+				weight = weights[i];
+				i++;
+			}
+			else
+			{
+				mean = bufferMeans[j];
+				weight = bufferWeights[j];
+				j++;
+			}
+
+			if (k == 0)
+			{
+				currentMean = mean;
+				currentWeight = weight;
+			}
+			else if (scale((weightSoFar + currentWeight + weight) / totalWeight) -
+				scale(weightSoFar / totalWeight) <= 1 || nNew == newMeans.length - 1)
+			{
+				currentWeight += weight;
+				currentMean += (mean - currentMean) * weight / currentWeight;
+			}
+			else
+			{
+				newMeans[nNew] = currentMean;
+				newWeights[nNew] = currentWeight;
+				nNew++;
+				weightSoFar += currentWeight;
+				currentMean = mean;
+				currentWeight = weight;
+			}
+		}
+		newMeans[nNew] = currentMean;
+		newWeights[nNew] = currentWeight;
+		nNew++;
+
+		means = newMeans;
+		weights = newWeights;
+		nCentroids = nNew;
+		nBuffered = 0;
+	}
+
+	/**
+	 * Sort values and their weights by value.
+	 */
+	private static void sortByMean(double[] values, double[] weights, int low, int high)
+	{
+		while (low < high)
+		{
+			double pivot = values[(low + high) >>> 1];
+			int i = low, j = high;
+			while (i <= j)
+			{
+				while (values[i] < pivot)
+					i++;
+				while (values[j] > pivot)
+					j--;
+				if (i <= j)
+				{
+					double t = values[i];
+					values[i] = values[j];
+					values[j] = t;
+					t = weights[i];
+					weights[i] = weights[j];
+					weights[j] = t;
+					i++;
+					j--;
+				}
+			}
+
+			/*
+			 * Recurse into smaller part, loop for larger part.
+			 */
+			if (j - low < high - i)
+			{
+				sortByMean(values, weights, low, j);
+				low = i;
+			}
+			else
+			{
+				sortByMean(values, weights, i, high);
+				high = j;
+			}
+		}
+	}
+
+	/**
+	 * Estimate value below which a fraction of the values lie.
+	 *
+	 * @param q fraction between 0 and 1.
+	 * @return estimated value, or NaN if no values have been added.
+	 */
+	public double quantile(double q)
+	{
+		compress();
+		if (nCentroids == 0)
+			return Double.NaN;
+		if (nCentroids == 1)
+			return means[0];
+
+		/*
+		 * Each centroid is centred on the middle of the values it holds,
+		 * interpolate between neighbouring centroids, or between the
+		 * first and last centroids and the smallest and largest values.
+		 */
+		double index = q * totalWeight;
+		if (index <= weights[0] / 2)
+		{
+			if (weights[0] <= 1)
+				return min;
+			return min + (means[0] - min) * index / (weights[0] / 2);
+		}
+		double last = totalWeight - weights[nCentroids - 1] / 2;
+		if (index >= last)
+		{
+			if (weights[nCentroids - 1] <= 1)
+				return max;
+			return means[nCentroids - 1] + (max - means[nCentroids - 1]) *
+				(index - last) / (weights[nCentroids - 1] / 2);
+		}
+
+		double centre = weights[0] / 2;
+		for (int i = 0; i < nCentroids - 1; i++)
+		{
+			double nextCentre = centre + (weights[i] + weights[i + 1]) / 2;
+			if (index <= nextCentre)
+				return means[i] + (means[i + 1] - means[i]) * (index - centre) / (nextCentre - centre);
+			centre = nextCentre;
+		}
+		return max;
+	}
+}
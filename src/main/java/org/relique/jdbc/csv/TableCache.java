@@ -0,0 +1,214 @@
+/**
+ *  CsvJdbc - a JDBC driver for CSV files
+ *  Copyright (C) 2001  Jonathan Ackerman
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.relique.jdbc.csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of typed table rows shared by all connections, holding the least
+ * recently used tables that fit in a fixed amount of memory.
+ */
+public class TableCache
+{
+	public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+	/**
+	 * Rows of one table.
+	 */
+	static class CachedTable
+	{
+		String[] columnNames;
+		String[] columnTypes;
+		int[] columnSizes;
+		int[] encodings;
+		List<ColumnarRowGroup> rowGroups = new ArrayList<ColumnarRowGroup>();
+		long sizeInBytes;
+	}
+
+	private static final int ROWS_PER_GROUP = 4096;
+
+	/** Tables in order of use, least recently used first */
+	private static LinkedHashMap<String, CachedTable> tables =
+		new LinkedHashMap<String, CachedTable>(16, 0.75f, true);
+
+	private static long maxSize = DEFAULT_MAX_SIZE;
+	private static long size = 0;
+	private static long hitCount = 0;
+	private static long missCount = 0;
+
+	private TableCache()
+	{
+	}
+
+	/**
+	 * Create key identifying a version of a table.
+	 */
+	public static String getKey(File sourceFile, String format) throws IOException
+	{
+		return sourceFile.getCanonicalPath() + "|" + sourceFile.lastModified() +
+			"|" + sourceFile.length() + "|" + format;
+	}
+
+	/**
+	 * Set the number of bytes of memory that cached tables may use.
+	 */
+	public static synchronized void setMaxSize(long maxSize)
+	{
+		TableCache.maxSize = maxSize;
+		evict();
+	}
+
+	public static synchronized long getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * Get estimated number of bytes of memory used by cached tables.
+	 */
+	public static synchronized long getSize()
+	{
+		return size;
+	}
+
+	public static synchronized long getHitCount()
+	{
+		return hitCount;
+	}
+
+	public static synchronized long getMissCount()
+	{
+		return missCount;
+	}
+
+	/**
+	 * Remove all tables from cache and reset counters.
+	 */
+	public static synchronized void clear()
+	{
+		tables.clear();
+		size = 0;
+		hitCount = 0;
+		missCount = 0;
+	}
+
+	static synchronized CachedTable get(String key)
+	{
+		CachedTable table = tables.get(key);
+		if (table != null)
+			hitCount++;
+		else
+			missCount++;
+		return table;
+	}
+
+	static synchronized void put(String key, CachedTable table)
+	{
+		if (table.sizeInBytes > maxSize)
+			return;
+		CachedTable previous = tables.put(key, table);
+		if (previous != null)
+			size -= previous.sizeInBytes;
+		size += table.sizeInBytes;
+		evict();
+	}
+
+	private static void evict()
+	{
+		Iterator<CachedTable> it = tables.values().iterator();
+		while (size > maxSize && it.hasNext())
+		{
+			CachedTable table = it.next();
+			size -= table.sizeInBytes;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Read all rows of a table.
+	 *
+	 * @param reader reader for the table, with converter and column types set.
+	 * @return rows, or null if table cannot be cached or is too big.
+	 */
+	static CachedTable load(CsvReader reader) throws SQLException
+	{
+		long maxSize = getMaxSize();
+		CachedTable table = new CachedTable();
+
+		/*
+		 * Take a copy of the column names because CsvReader converts them
+		 * to upper case.
+		 */
+		table.columnNames = reader.getColumnNames().clone();
+		table.columnSizes = reader.getColumnSizes();
+		boolean hasRow = reader.next();
+		table.columnTypes = reader.getColumnTypes();
+		table.encodings = new int[table.columnNames.length];
+		for (int i = 0; i < table.encodings.length; i++)
+		{
+			table.encodings[i] = ColumnarRowGroup.getEncoding(table.columnTypes[i]);
+			if (table.encodings[i] < 0)
+				return null;
+		}
+
+		String[] upperColumnNames = new String[table.columnNames.length];
+		for (int i = 0; i < upperColumnNames.length; i++)
+			upperColumnNames[i] = table.columnNames[i].toUpperCase();
+		ColumnarRowGroup rowGroup = new ColumnarRowGroup(table.encodings, ROWS_PER_GROUP);
+		Object[] row = new Object[upperColumnNames.length];
+		while (hasRow)
+		{
+			Map<String, Object> environment = reader.getEnvironment();
+			for (int i = 0; i < row.length; i++)
+				row[i] = environment.get(upperColumnNames[i]);
+			try
+			{
+				rowGroup.addRow(row);
+			}
+			catch (ClassCastException e)
+			{
+				return null;
+			}
+			if (rowGroup.isFull())
+			{
+				rowGroup.endOfRows();
+				table.rowGroups.add(rowGroup);
+				table.sizeInBytes += rowGroup.getSizeInBytes();
+				if (table.sizeInBytes > maxSize)
+					return null;
+				rowGroup = new ColumnarRowGroup(table.encodings, ROWS_PER_GROUP);
+			}
+			hasRow = reader.next();
+		}
+		if (rowGroup.getRowCount() > 0)
+		{
+			rowGroup.endOfRows();
+			table.rowGroups.add(rowGroup);
+			table.sizeInBytes += rowGroup.getSizeInBytes();
+		}
+		return table;
+	}
+}
@@ -19,33 +19,38 @@
 package org.relique.jdbc.csv;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Enumeration;
 import java.util.List;
 import java.util.Vector;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
+import org.relique.io.FileSetInputStream;
+import org.relique.io.MappedZipFile;
 import org.relique.io.TableReader;
 
 /**
  * Enables reading CSV files packed in a ZIP file as database tables.
+ *
+ * Entries that are not compressed are read from memory mapped regions
+ * of the ZIP file.  With the indexedFiles property, all entries matching
+ * the file name pattern are read as a single table.
  */
 public class ZipFileTableReader implements TableReader
 {
 	private String zipFilename;
-	private ZipFile zipFile;
+	private MappedZipFile zipFile;
 	private String fileExtension;
 	private String charset;
 
 	public ZipFileTableReader(String zipFilename, String charset) throws IOException
 	{
 		this.zipFilename = zipFilename;
-		this.zipFile = new ZipFile(zipFilename);
+		this.zipFile = new MappedZipFile(zipFilename);
 		this.charset = charset;
 	}
 
@@ -64,15 +69,34 @@ public class ZipFileTableReader implements TableReader
 	{
 		try
 		{
-			ZipEntry zipEntry = zipFile.getEntry(tableName + fileExtension);
-			if (zipEntry == null)
-				throw new SQLException(CsvResources.getString("tableNotFound") + ": " + tableName);
-			
+			InputStream in;
+			CsvConnection connection = (CsvConnection)statement.getConnection();
+			if (connection.isIndexedFiles())
+			{
+				String fileNamePattern = tableName +
+					connection.getFileNamePattern() + fileExtension;
+				in = new FileSetInputStream(zipFile,
+					fileNamePattern,
+					connection.getNameParts(),
+					connection.getSeparator(),
+					connection.isFileTailPrepend(),
+					connection.isSuppressHeaders(),
+					connection.getSkipLeadingDataLines() + connection.getTransposedLines(),
+					connection.getDecompressionThreads());
+			}
+			else
+			{
+				ZipEntry zipEntry = zipFile.getEntry(tableName + fileExtension);
+				if (zipEntry == null)
+					throw new SQLException(CsvResources.getString("tableNotFound") + ": " + tableName);
+				in = zipFile.getInputStream(zipEntry);
+			}
+
 			Reader reader;
-			if (charset != null)    
-				reader = new InputStreamReader(zipFile.getInputStream(zipEntry), charset);
+			if (charset != null)
+				reader = new InputStreamReader(in, charset);
 			else
-				reader = new InputStreamReader(zipFile.getInputStream(zipEntry));
+				reader = new InputStreamReader(in);
 			return reader;
 		}
 		catch (IOException e)
@@ -85,13 +109,11 @@ public class ZipFileTableReader implements TableReader
 	public List<String> getTableNames(Connection connection) throws SQLException
 	{
 		Vector<String> v = new Vector<String>();
-		Enumeration<? extends ZipEntry> en = zipFile.entries();
-		while (en.hasMoreElements())
+		for (String name : zipFile.getEntryNames())
 		{
 			/*
 			 * Strip file extensions.
 			 */
-			String name = ((ZipEntry)en.nextElement()).getName();
 			if (name.endsWith(fileExtension))
 				name = name.substring(0, name.length() - fileExtension.length());
 			v.add(name);
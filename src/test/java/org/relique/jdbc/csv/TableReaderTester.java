@@ -41,9 +41,47 @@ public class TableReaderTester implements TableReader
 			return new StringReader("CODE,NAME\nLH,Lufthansa\nBA,British Airways\nAF,Air France\n");
 		else if (tableName.equalsIgnoreCase("AIRPORT"))
 			return new StringReader("CODE,NAME\nFRA,Frankfurt\nLHR,London Heathrow\nCDG,Paris Charles De Gaulle");
+		else if (tableName.equalsIgnoreCase("ENDLESS"))
+			return new EndlessReader();
 		throw new SQLException("Table does not exist: " + tableName);
 	}
 
+	/**
+	 * Table with an unlimited number of rows, for testing queries that are
+	 * stopped by a timeout or cancellation.  It is not included in the list
+	 * of table names.
+	 */
+	private static class EndlessReader extends Reader
+	{
+		private String line = "ID,GRP\n";
+		private int position = 0;
+		private long rowNumber = 0;
+
+		@Override
+		public int read(char[] cbuf, int off, int len)
+		{
+			int n = 0;
+			while (n < len)
+			{
+				if (position == line.length())
+				{
+					rowNumber++;
+					line = rowNumber + "," + (rowNumber % 100) + "\n";
+					position = 0;
+				}
+				cbuf[off + n] = line.charAt(position);
+				position++;
+				n++;
+			}
+			return n;
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+
 	@Override
 	public List<String> getTableNames(Connection connection) throws SQLException
 	{
@@ -24,15 +24,20 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Properties;
+import java.util.Random;
 import java.util.TimeZone;
 
 import org.junit.BeforeClass;
@@ -521,4 +526,334 @@ public class TestAggregateFunctions
 		stmt.close();
 		conn.close();
 	}
+
+	@Test
+	public void testSumDecimalText() throws SQLException
+	{
+		Properties props = new Properties();
+		props.put("headerline", "TRANS_DATE,FROM_ACCT,FROM_BLZ,TO_ACCT,TO_BLZ,AMOUNT");
+		props.put("suppressHeaders", "true");
+		props.put("fileExtension", ".txt");
+		props.put("commentChar", "#");
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + filePath, props);
+
+		Statement stmt = conn.createStatement();
+
+		ResultSet results = stmt.executeQuery("select sum(AMOUNT), avg(AMOUNT), sum(TRANS_DATE) from transactions");
+		assertTrue(results.next());
+		assertEquals("Incorrect sum", 3039.02, results.getDouble(1), 0);
+		assertEquals("Incorrect avg", 3039.02 / 9, results.getDouble(2), 0.000001);
+		assertEquals("Incorrect sum of text", null, results.getObject(3));
+		assertFalse(results.next());
+
+		results.close();
+		stmt.close();
+		conn.close();
+	}
+
+	@Test
+	public void testSumAccumulator()
+	{
+		/*
+		 * Sum larger than a long changes to a decimal sum.
+		 */
+		SumAccumulator sum = new SumAccumulator();
+		sum.add(Long.valueOf(Long.MAX_VALUE));
+		sum.add(Integer.valueOf(1));
+		sum.add(Integer.valueOf(-2));
+		assertEquals("Incorrect overflowed sum", Long.valueOf(Long.MAX_VALUE - 1), sum.getSum());
+		assertEquals("Incorrect count", 3, sum.getCount());
+
+		/*
+		 * Decimals with different scales are added exactly.
+		 */
+		sum = new SumAccumulator();
+		sum.add("0.1");
+		sum.add("0.25");
+		sum.add(new BigDecimal("0.650"));
+		sum.add("N/A");
+		assertEquals("Incorrect decimal sum", Long.valueOf(1), sum.getSum());
+		assertEquals("Incorrect count", 3, sum.getCount());
+
+		/*
+		 * Compensated sum of doubles does not lose small values.
+		 */
+		sum = new SumAccumulator();
+		sum.add(Double.valueOf(1e16));
+		for (int i = 0; i < 1000; i++)
+			sum.add(Double.valueOf(0.5));
+		sum.add(Double.valueOf(-1e16));
+		assertEquals("Incorrect double sum", Long.valueOf(500), sum.getSum());
+
+		/*
+		 * Decimals written with an exponent have a negative scale.
+		 */
+		sum = new SumAccumulator();
+		sum.add(new BigDecimal("1E+5"));
+		assertEquals("Incorrect exponent sum", Long.valueOf(100000), sum.getSum());
+		sum.add(new BigDecimal("2.5E+1"));
+		sum.add(new BigDecimal("1.0"));
+		sum.add(new BigDecimal("1E+30"));
+		sum.add(new BigDecimal("-1E+30"));
+		assertEquals("Incorrect exponent sum", Long.valueOf(100026), sum.getSum());
+		assertEquals("Incorrect count", 5, sum.getCount());
+
+		assertEquals("Incorrect empty sum", null, new SumAccumulator().getSum());
+	}
+
+	@Test
+	public void testSumExponentDecimal() throws SQLException, IOException
+	{
+		File dir = File.createTempFile("csvjdbc", "");
+		dir.delete();
+		dir.mkdir();
+		File file = new File(dir, "amounts.csv");
+		try
+		{
+			PrintWriter out = new PrintWriter(new FileWriter(file));
+			out.println("ID,AMT");
+			out.println("1,1E+5");
+			out.println("1,2.5E+2");
+			out.println("2,7");
+			out.close();
+
+			Properties props = new Properties();
+			props.put("columnTypes", "Integer,BigDecimal");
+			Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + dir.getPath(), props);
+
+			Statement stmt = conn.createStatement();
+
+			ResultSet results = stmt.executeQuery("select sum(AMT) from amounts where ID = 1");
+			assertTrue(results.next());
+			assertEquals("Incorrect sum", 100250, results.getLong(1));
+			assertFalse(results.next());
+			results.close();
+
+			results = stmt.executeQuery("select ID, sum(AMT), avg(AMT) from amounts group by ID");
+			assertTrue(results.next());
+			assertEquals("Incorrect ID", 1, results.getInt(1));
+			assertEquals("Incorrect sum", 100250, results.getLong(2));
+			assertEquals("Incorrect avg", 50125, results.getDouble(3), 0.0001);
+			assertTrue(results.next());
+			assertEquals("Incorrect ID", 2, results.getInt(1));
+			assertEquals("Incorrect sum", 7, results.getLong(2));
+			assertFalse(results.next());
+			results.close();
+
+			stmt.close();
+			conn.close();
+		}
+		finally
+		{
+			file.delete();
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testAggregateMetaDataThreads() throws SQLException, IOException
+	{
+		File dir = File.createTempFile("csvjdbc", "");
+		dir.delete();
+		dir.mkdir();
+		File file = new File(dir, "big.csv");
+		try
+		{
+			PrintWriter out = new PrintWriter(new FileWriter(file));
+			out.println("ID,AMT,DT");
+			for (int i = 0; i < 3000; i++)
+				out.println(i + "," + (i % 100) / 8.0 + ",2020-01-" + (10 + i % 20));
+			out.close();
+
+			/*
+			 * Data types are the same when aggregate functions are calculated in several threads.
+			 */
+			String[] threads = {"1", "3"};
+			for (int i = 0; i < threads.length; i++)
+			{
+				Properties props = new Properties();
+				props.put("columnTypes", "Int,Double,Date");
+				props.put("aggregationThreads", threads[i]);
+				Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + dir.getPath(), props);
+				Statement stmt = conn.createStatement();
+				ResultSet results = stmt.executeQuery("SELECT SUM(AMT), AVG(AMT), MIN(DT), MAX(DT), COUNT(*) FROM big");
+				ResultSetMetaData metadata = results.getMetaData();
+				assertEquals("Incorrect SUM type", "Double", metadata.getColumnTypeName(1));
+				assertEquals("Incorrect AVG type", "Double", metadata.getColumnTypeName(2));
+				assertEquals("Incorrect MIN type", "Date", metadata.getColumnTypeName(3));
+				assertEquals("Incorrect MAX type", "Date", metadata.getColumnTypeName(4));
+				assertEquals("Incorrect COUNT type", "Int", metadata.getColumnTypeName(5));
+				assertTrue(results.next());
+				assertEquals("Incorrect COUNT", 3000, results.getInt(5));
+				conn.close();
+			}
+		}
+		finally
+		{
+			file.delete();
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testDistinctValueSet()
+	{
+		DistinctValueSet values = new DistinctValueSet();
+		for (int i = -5000; i < 5000; i++)
+			assertTrue("Value not added", values.add(Integer.valueOf(i)));
+		assertFalse("Duplicate zero added", values.add(Integer.valueOf(0)));
+		assertFalse("Duplicate value added", values.add(Integer.valueOf(4999)));
+
+		/*
+		 * Integers of different classes are not equal, as in a HashSet.
+		 */
+		assertTrue("Long value not added", values.add(Long.valueOf(7)));
+		assertTrue("String value not added", values.add("7"));
+		assertEquals("Incorrect size", 10002, values.size());
+
+		DistinctValueSet other = new DistinctValueSet();
+		other.add(Long.valueOf(7));
+		other.add(Long.valueOf(8));
+		other.add(Integer.valueOf(10000));
+		values.addAll(other);
+		assertEquals("Incorrect merged size", 10004, values.size());
+
+		SumAccumulator sum = new SumAccumulator();
+		values.addTo(sum);
+		assertEquals("Incorrect sum", Long.valueOf(-5000 + 7 + 7 + 8 + 10000), sum.getSum());
+	}
+
+	@Test
+	public void testApproxCountDistinct() throws SQLException
+	{
+		Properties props = new Properties();
+		props.put("headerline", "TRANS_DATE,FROM_ACCT,FROM_BLZ,TO_ACCT,TO_BLZ,AMOUNT");
+		props.put("suppressHeaders", "true");
+		props.put("fileExtension", ".txt");
+		props.put("commentChar", "#");
+		props.put("columnTypes", "Date,Integer,Integer,Integer,Integer,Double");
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + filePath, props);
+
+		Statement stmt = conn.createStatement();
+
+		ResultSet results = stmt.executeQuery("select approx_count_distinct(FROM_ACCT), " +
+			"approx_count_distinct(FROM_BLZ, 10) from transactions");
+		assertTrue(results.next());
+		assertEquals("Incorrect count FROM_ACCT", 4, results.getLong(1));
+		assertEquals("Incorrect count FROM_BLZ", 3, results.getLong(2));
+		assertEquals("Incorrect label", "APPROX_COUNT_DISTINCT([FROM_BLZ], 10)",
+			results.getMetaData().getColumnLabel(2));
+		assertFalse(results.next());
+
+		results.close();
+
+		try
+		{
+			stmt.executeQuery("select approx_count_distinct(FROM_ACCT, 30) from transactions");
+			fail("Should raise a java.sqlSQLException");
+		}
+		catch (SQLException e)
+		{
+			assertTrue("Incorrect exception: " + e, e.toString().contains(CsvResources.getString("invalidPrecision") + ": 30 (4-18)"));
+		}
+
+		try
+		{
+			stmt.executeQuery("select approx_count_distinct(FROM_ACCT, 99999999999) from transactions");
+			fail("Should raise a java.sqlSQLException");
+		}
+		catch (SQLException e)
+		{
+			assertTrue("Incorrect exception: " + e, e.toString().contains(CsvResources.getString("invalidPrecision") + ": 99999999999 (4-18)"));
+		}
+
+		stmt.close();
+		conn.close();
+	}
+
+	@Test
+	public void testHyperLogLogAccuracy()
+	{
+		HyperLogLog sketch1 = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+		HyperLogLog sketch2 = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+		for (int i = 0; i < 200000; i++)
+		{
+			sketch1.add("user" + i);
+			sketch1.add("user" + i);
+			sketch2.add("user" + (i + 100000));
+		}
+		long estimate = sketch1.estimate();
+		assertTrue("Inaccurate estimate " + estimate, Math.abs(estimate - 200000) < 200000 * 0.04);
+
+		/*
+		 * Merged sketches estimate the size of the union.
+		 */
+		sketch1.merge(sketch2);
+		estimate = sketch1.estimate();
+		assertTrue("Inaccurate merged estimate " + estimate, Math.abs(estimate - 300000) < 300000 * 0.04);
+
+		HyperLogLog sketch3 = new HyperLogLog(HyperLogLog.MIN_PRECISION);
+		sketch3.add(null);
+		assertEquals("Incorrect empty estimate", 0, sketch3.estimate());
+	}
+
+	@Test
+	public void testApproxPercentile() throws SQLException
+	{
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + filePath);
+
+		Statement stmt = conn.createStatement();
+
+		ResultSet results = stmt.executeQuery("select approx_median(SCORE), approx_percentile(SCORE, 0), " +
+			"approx_percentile(SCORE, 1) from scores");
+		assertTrue(results.next());
+		assertEquals("Incorrect median", 75.5, results.getDouble(1), 0.0001);
+		assertEquals("Incorrect minimum", 47, results.getDouble(2), 0.0001);
+		assertEquals("Incorrect maximum", 82, results.getDouble(3), 0.0001);
+		assertFalse(results.next());
+
+		results.close();
+
+		results = stmt.executeQuery("select approx_median(SCORE) from scores where NAME = 'Nobody'");
+		assertTrue(results.next());
+		assertEquals("Incorrect median", null, results.getObject(1));
+		assertFalse(results.next());
+
+		try
+		{
+			stmt.executeQuery("select approx_percentile(SCORE, 1.5) from scores");
+			fail("Should raise a java.sqlSQLException");
+		}
+		catch (SQLException e)
+		{
+			assertTrue("Incorrect exception: " + e, e.toString().contains(CsvResources.getString("invalidPercentile") + ": 1.5 (0-1)"));
+		}
+
+		stmt.close();
+		conn.close();
+	}
+
+	@Test
+	public void testTDigestAccuracy()
+	{
+		TDigest digest1 = new TDigest(TDigest.DEFAULT_COMPRESSION);
+		TDigest digest2 = new TDigest(TDigest.DEFAULT_COMPRESSION);
+		Random random = new Random(1);
+		for (int i = 0; i < 100000; i++)
+		{
+			digest1.add(random.nextDouble() * 1000);
+			digest2.add(1000 + random.nextDouble() * 1000);
+		}
+		assertEquals("Inaccurate median", 500, digest1.quantile(0.5), 10);
+		assertEquals("Inaccurate 99th percentile", 990, digest1.quantile(0.99), 2);
+		assertEquals("Inaccurate 1st percentile", 10, digest1.quantile(0.01), 2);
+
+		/*
+		 * Merged sketches estimate quantiles of both sets of values.
+		 */
+		digest1.merge(digest2);
+		assertEquals("Incorrect size", 200000, digest1.size());
+		assertEquals("Inaccurate merged median", 1000, digest1.quantile(0.5), 20);
+		assertEquals("Inaccurate merged 99th percentile", 1980, digest1.quantile(0.99), 4);
+	}
 }
@@ -25,6 +25,7 @@ import static org.junit.Assert.fail;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -35,12 +36,15 @@ import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Arrays;
 import java.util.Properties;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.relique.io.BlockCryptoFilter;
 import org.relique.io.CryptoFilter;
+import org.relique.io.EncryptedFileInputStream;
 import org.relique.io.EncryptedFileOutputStream;
 import org.relique.io.XORCipher;
 
@@ -363,6 +367,79 @@ public class TestCryptoFilter
 				timeEncrypt <= 30 * timeNoEncrypt);
 	}
 
+	@Test
+	public void testBlockDecrypt() throws IOException
+	{
+		String source = filePath + System.getProperty("file.separator") + "scrambled.txt";
+
+		/*
+		 * Decrypting one byte at a time and in blocks gives the same bytes.
+		 */
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		EncryptedFileInputStream in = new EncryptedFileInputStream(source,
+			new XORCipher("gaius vipsanius agrippa"));
+		int ch;
+		while ((ch = in.read()) != -1)
+			expected.write(ch);
+		in.close();
+		assertTrue("Incorrect decrypted header", expected.toString("US-ASCII").startsWith("key,value"));
+
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		in = new EncryptedFileInputStream(source, new XORCipher("gaius vipsanius agrippa"));
+		byte[] b = new byte[9];
+		int n;
+		while ((n = in.read(b, 2, 5)) != -1)
+			actual.write(b, 2, n);
+		in.close();
+		assertTrue("Incorrect block decryption", Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+
+		/*
+		 * Encrypting then decrypting gives back the original bytes.
+		 */
+		byte[] original = "1,uno\n2,due\n3,tre\n".getBytes("US-ASCII");
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		CryptoFilter cipher = new XORCipher("secret");
+		for (int i = 0; i < original.length; i++)
+			cipher.write(encrypted, original[i]);
+		byte[] decrypted = encrypted.toByteArray();
+		BlockCryptoFilter blockCipher = new XORCipher("secret");
+		blockCipher.decrypt(decrypted, 0, 4);
+		blockCipher.decrypt(decrypted, 4, decrypted.length - 4);
+		assertTrue("Incorrect decrypted bytes", Arrays.equals(original, decrypted));
+	}
+
+	@Test
+	public void testIndexedFilesCryptoFilter() throws SQLException
+	{
+		Properties props = new Properties();
+		props.put("fileExtension", ".txt");
+		props.put("cryptoFilterClassName", "org.relique.io.XORCipher");
+		props.put("cryptoFilterParameterTypes", "String");
+		props.put("cryptoFilterParameters", "gaius vipsanius agrippa");
+		props.put("indexedFiles", "True");
+		props.put("fileTailPattern", "_([0-9]+)");
+		props.put("fileTailParts", "FILENO");
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:"
+				+ filePath, props);
+		Statement stmt = conn.createStatement();
+
+		ResultSet results = stmt.executeQuery("SELECT * FROM scrambled");
+		int rowCount = 0;
+		while (results.next())
+		{
+			String key = results.getString("key");
+			assertTrue("The key is wrong: " + key, key.equals("1") || key.equals("2") || key.equals("3"));
+			rowCount++;
+		}
+		assertEquals("Incorrect row count", testSize * 3, rowCount);
+
+		results = stmt.executeQuery("SELECT * FROM scrambled WHERE FILENO = '17'");
+		assertTrue(results.next());
+		assertEquals("The key is wrong", "1", results.getString("key"));
+		assertEquals("The value is wrong", "uno", results.getString("value"));
+		conn.close();
+	}
+
 	@Test
 	public void testOpenManyCryptoFiles() throws SQLException, IOException
 	{
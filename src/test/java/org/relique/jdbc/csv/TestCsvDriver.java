@@ -28,33 +28,48 @@ import static org.junit.Assert.fail;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.LineNumberReader;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
 import java.util.Properties;
 import java.util.TimeZone;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.relique.jdbc.csv.CsvDriver;
 import org.relique.jdbc.csv.CsvResultSet;
+import org.relique.jdbc.csv.TableCache;
 
 /**
  * This class is used to test the CsvJdbc driver.
@@ -748,6 +763,76 @@ public class TestCsvDriver
 		}
 	}
 
+	@Test
+	public void testColumnTypesSampleRows() throws SQLException
+	{
+		ColumnTypeInference.clear();
+		Properties props = new Properties();
+		props.put("columnTypes", "");
+		props.put("columnTypesSampleRows", "2");
+
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:"
+				+ filePath, props);
+		Statement stmt = conn.createStatement();
+		ResultSet results = stmt.executeQuery("SELECT * FROM sample5");
+
+		/*
+		 * Column types are known before reading first row.
+		 */
+		ResultSetMetaData metadata = results.getMetaData();
+		assertEquals("type of column 1 is incorrect", Types.VARCHAR, metadata.getColumnType(1));
+		assertEquals("type of column 4 is incorrect", Types.TIMESTAMP, metadata.getColumnType(4));
+		assertEquals("type of column 5 is incorrect", Types.INTEGER, metadata.getColumnType(5));
+		assertTrue(results.next());
+		assertEquals("ID is wrong", "41", results.getObject(1));
+		assertEquals("timeoffset is wrong", Integer.valueOf(1230), results.getObject(5));
+
+		ResultSet columns = conn.getMetaData().getColumns(null, null, "sample5", "ID");
+		assertTrue(columns.next());
+		assertEquals("Incorrect column type", Types.VARCHAR, columns.getInt("DATA_TYPE"));
+		conn.close();
+
+		/*
+		 * Reading all rows finds values that are not integers.
+		 */
+		props.put("columnTypesSampleRows", "0");
+		conn = DriverManager.getConnection("jdbc:relique:csv:" + filePath, props);
+		stmt = conn.createStatement();
+		results = stmt.executeQuery("SELECT ID, timeoffset FROM sample5");
+		metadata = results.getMetaData();
+		assertEquals("type of column 1 is incorrect", Types.VARCHAR, metadata.getColumnType(1));
+		assertEquals("type of column 2 is incorrect", Types.VARCHAR, metadata.getColumnType(2));
+		assertTrue(results.next());
+		assertEquals("timeoffset is wrong", "1230", results.getObject(2));
+		conn.close();
+
+		/*
+		 * Cached tables with types guessed from a sample are not used
+		 * after changing to reading all rows in the background.
+		 */
+		props.put("columnTypesSampleRows", "2");
+		conn = DriverManager.getConnection("jdbc:relique:csv:" + filePath, props);
+		String sampleFormat = ColumnarCacheReader.getFormatDescription((CsvConnection)conn, "sample5");
+		conn.close();
+		props.put("columnTypesFullScan", "true");
+		conn = DriverManager.getConnection("jdbc:relique:csv:" + filePath, props);
+		String fullScanFormat = ColumnarCacheReader.getFormatDescription((CsvConnection)conn, "sample5");
+		conn.close();
+		assertFalse("Same format with full scan", sampleFormat.equals(fullScanFormat));
+	}
+
+	@Test
+	public void testColumnTypeInferenceWidening()
+	{
+		assertEquals("Int", ColumnTypeInference.getWiderTypeName(null, "Int"));
+		assertEquals("Long", ColumnTypeInference.getWiderTypeName("Int", "Long"));
+		assertEquals("Double", ColumnTypeInference.getWiderTypeName("Double", "Int"));
+		assertEquals("BigDecimal", ColumnTypeInference.getWiderTypeName("Double", "BigDecimal"));
+		assertEquals("Timestamp", ColumnTypeInference.getWiderTypeName("Date", "Timestamp"));
+		assertEquals("String", ColumnTypeInference.getWiderTypeName("Boolean", "Int"));
+		assertEquals("String", ColumnTypeInference.getWiderTypeName("Time", "Date"));
+	}
+
 	/**
 	 * @throws SQLException
 	 * @throws ParseException
@@ -783,6 +868,84 @@ public class TestCsvDriver
 				.getColumnType(7));
 	}
 
+	@Test
+	public void testTypedGetters() throws SQLException
+	{
+		Properties props = new Properties();
+		props.put("columnTypes", "Byte,Short,Integer,Long,Float,Double,BigDecimal");
+
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:"
+				+ filePath, props);
+		Statement stmt = conn.createStatement();
+		ResultSet results = stmt.executeQuery("SELECT C1, C2, C3, C4, C5, C6, C7, NULLIF(C1, 99) AS N "
+				+ "FROM numeric");
+
+		assertTrue(results.next());
+		assertEquals("Incorrect widened value", 99.0, results.getDouble(1), 0);
+		assertEquals("Incorrect widened value", 300100L, results.getLong(3));
+		assertEquals("Incorrect narrowed value", 3, results.getInt(5));
+		assertEquals("Incorrect narrowed value", -4400, results.getShort(4));
+		assertEquals("Incorrect out of range value", 0, results.getByte(2));
+		assertEquals("Incorrect BigDecimal value", new BigDecimal("300100"), results.getBigDecimal(3));
+		assertEquals("Incorrect String value", "300100", results.getString(3));
+		assertFalse(results.wasNull());
+		assertEquals("Incorrect null value", 0, results.getInt("N"));
+		assertTrue(results.wasNull());
+		assertEquals("Incorrect value", 99, results.getInt("C1"));
+		assertFalse(results.wasNull());
+
+		assertTrue(results.next());
+		assertEquals("Incorrect out of range value", 0, results.getInt(4));
+		assertEquals("Incorrect value", 990000000000L, results.getLong(4));
+		assertEquals("Incorrect narrowed value", 10, results.getInt(7));
+		assertEquals("Incorrect value", -22, results.getInt("N"));
+		assertFalse(results.wasNull());
+	}
+
+	@Test
+	public void testRepeatedColumnAccess() throws SQLException
+	{
+		Properties props = new Properties();
+		props.put("columnTypes", "Integer,String,String,Timestamp");
+
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:"
+				+ filePath, props);
+		Statement stmt = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
+				ResultSet.CONCUR_READ_ONLY);
+		ResultSet results = stmt.executeQuery("SELECT ID, Name AS id, ID + 1 AS Next, Job "
+				+ "FROM sample5 WHERE Job <> 'Piloto' LIMIT 2");
+
+		assertEquals("Incorrect column index", 1, results.findColumn("id"));
+		assertEquals("Incorrect column index", 3, results.findColumn("NEXT"));
+		assertEquals("Incorrect column index", 4, results.findColumn("jOb"));
+
+		assertTrue(results.next());
+		assertEquals("Incorrect value", 1, results.getInt("Id"));
+		assertEquals("Incorrect value", 2, results.getInt("next"));
+		assertEquals("Incorrect value", 2, results.getInt(3));
+		assertEquals("Incorrect value", "Juan Pablo Morales", results.getString(2));
+		assertEquals("Incorrect value", "Juan Pablo Morales", results.getString(2));
+
+		assertTrue(results.next());
+		assertEquals("Incorrect value", 3, results.getInt("NEXT"));
+		assertEquals("Incorrect value", "Mauricio Hernandez", results.getString(2));
+
+		assertTrue(results.previous());
+		assertEquals("Incorrect value", 2, results.getInt("NEXT"));
+		assertEquals("Incorrect value", "Juan Pablo Morales", results.getString(2));
+
+		assertFalse(results.absolute(3));
+		try
+		{
+			results.findColumn("Start");
+			fail("Should raise a java.sqlSQLException");
+		}
+		catch (SQLException e)
+		{
+			assertEquals("java.sql.SQLException: " + CsvResources.getString("invalidColumnName") + ": Start", "" + e);
+		}
+	}
+
 	@Test
 	public void testColumnTypesDefaultBehaviour() throws SQLException,
 			ParseException
@@ -1911,6 +2074,313 @@ public class TestCsvDriver
 		assertFalse(results.next());
 	}
 
+	@Test
+	public void testFromIndexedTableFileNameFilter() throws Exception
+	{
+		Properties props = new Properties();
+		props.put("fileExtension", ".txt");
+		props.put("fileTailPattern", "-([0-9]{3})-([0-9]{8})");
+		props.put("fileTailParts", "location,file_date");
+		props.put("indexedFiles", "True");
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:"
+				+ filePath, props);
+
+		Statement stmt = conn.createStatement();
+
+		ResultSet results = stmt
+				.executeQuery("SELECT location,file_date,station FROM test WHERE file_date = '20081113' AND test.location = '002'");
+		int count = 0;
+		while (results.next())
+		{
+			assertEquals("Incorrect location", "002", results.getString("location"));
+			assertEquals("Incorrect file_date", "20081113", results.getString("file_date"));
+			assertEquals("Incorrect station", "007", results.getString("station"));
+			count++;
+		}
+		assertEquals("Incorrect row count", 12, count);
+
+		results = stmt.executeQuery("SELECT COUNT(*) FROM test T WHERE T.file_date > '20081112' AND station = '013'");
+		assertTrue(results.next());
+		assertEquals("Incorrect row count", 48, results.getInt(1));
+
+		results = stmt.executeQuery("SELECT * FROM test WHERE location = '999'");
+		assertEquals("Incorrect column count", 7, results.getMetaData().getColumnCount());
+		assertFalse(results.next());
+
+		PreparedStatement prepstmt = conn.prepareStatement("SELECT COUNT(*) FROM test WHERE location = ?");
+		prepstmt.setString(1, "004");
+		results = prepstmt.executeQuery();
+		assertTrue(results.next());
+		assertEquals("Incorrect row count", 36, results.getInt(1));
+
+		/*
+		 * Only files with matching file name columns are accepted, without reading them.
+		 */
+		IndexedFilesFilter filter = createIndexedFilesFilter(conn,
+			"SELECT * FROM test WHERE file_date = '20081113' AND test.location = '002'");
+		assertTrue("Filter not used", filter.isFiltering());
+		File dir = new File(filePath);
+		for (int location = 1; location <= 4; location++)
+		{
+			for (int day = 12; day <= 14; day++)
+			{
+				String name = "test-00" + location + "-200811" + day + ".txt";
+				assertEquals("Incorrect filtering of " + name, location == 2 && day == 13,
+					filter.accept(dir, name));
+			}
+		}
+
+		filter = createIndexedFilesFilter(conn, "SELECT * FROM test T WHERE T.file_date > '20081112' AND station = '013'");
+		assertTrue("Filter not used", filter.isFiltering());
+		assertFalse("Earlier file accepted", filter.accept(dir, "test-003-20081112.txt"));
+		assertTrue("Later file not accepted", filter.accept(dir, "test-003-20081113.txt"));
+		conn.close();
+	}
+
+	@Test
+	public void testFromIndexedTableBloomFilter() throws Exception
+	{
+		/*
+		 * Bloom filter files are written next to the data files, so query a copy of them.
+		 */
+		File dir = File.createTempFile("csvjdbc", "");
+		dir.delete();
+		dir.mkdir();
+		File []dataFiles = new File(filePath).listFiles();
+		for (int i = 0; i < dataFiles.length; i++)
+		{
+			if (dataFiles[i].getName().matches("test-[0-9]{3}-[0-9]{8}\\.txt"))
+				copyFile(dataFiles[i], new File(dir, dataFiles[i].getName()));
+		}
+
+		Properties props = new Properties();
+		props.put("fileExtension", ".txt");
+		props.put("fileTailPattern", "-([0-9]{3})-([0-9]{8})");
+		props.put("fileTailParts", "location,file_date");
+		props.put("indexedFiles", "True");
+		props.put("bloomFilterColumns", "Station,AI007.000");
+		props.put("columnTypes", "String,String,String,Double,Double,String,String");
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:"
+				+ dir.getPath(), props);
+
+		File bloomFile = new File(dir, "test-001-20081112.txt.bloom");
+		try
+		{
+			Statement stmt = conn.createStatement();
+
+			ResultSet results = stmt
+					.executeQuery("SELECT location,file_date,station FROM test WHERE station = '013'");
+			int count = 0;
+			while (results.next())
+			{
+				assertEquals("Incorrect station", "013", results.getString("station"));
+				assertEquals("Incorrect file_date", "20081114", results.getString("file_date"));
+				count++;
+			}
+			assertEquals("Incorrect row count", 48, count);
+			assertTrue("Bloom filter file not created", bloomFile.exists());
+
+			/*
+			 * Query again, using Bloom filter files created by the first query.
+			 */
+			results = stmt.executeQuery("SELECT COUNT(*) FROM test WHERE test.station = '007' AND file_date >= '20081113'");
+			assertTrue(results.next());
+			assertEquals("Incorrect row count", 48, results.getInt(1));
+
+			results = stmt.executeQuery("SELECT * FROM test WHERE station = '999'");
+			assertFalse(results.next());
+
+			results = stmt.executeQuery("SELECT COUNT(*) FROM test WHERE 26.54 = ai007.000");
+			assertTrue(results.next());
+			assertEquals("Incorrect row count", 8, results.getInt(1));
+
+			/*
+			 * Only files that might contain the station are accepted.
+			 */
+			IndexedFilesFilter filter = createIndexedFilesFilter(conn,
+				"SELECT * FROM test WHERE station = '013'");
+			assertTrue("Filter not used", filter.isFiltering());
+			for (int location = 1; location <= 4; location++)
+			{
+				for (int day = 12; day <= 14; day++)
+				{
+					String name = "test-00" + location + "-200811" + day + ".txt";
+					assertEquals("Incorrect filtering of " + name, day == 14, filter.accept(dir, name));
+				}
+			}
+			conn.close();
+		}
+		finally
+		{
+			File []files = dir.listFiles();
+			for (int i = 0; i < files.length; i++)
+				files[i].delete();
+			dir.delete();
+		}
+	}
+
+	/**
+	 * Create filter that a query of the indexed table "test" uses to skip files.
+	 */
+	private IndexedFilesFilter createIndexedFilesFilter(Connection conn, String sql) throws Exception
+	{
+		SqlParser parser = new SqlParser();
+		parser.parse(sql);
+		CsvConnection csvConnection = (CsvConnection)conn;
+		String[] columnNames = {"Datum", "Tijd", "Station", "AI007.000", "AI007.001", "location", "file_date"};
+		return new IndexedFilesFilter(csvConnection, parser.getTableName(), parser.getTableAlias(),
+			"test" + csvConnection.getFileNamePattern() + csvConnection.getExtension(),
+			columnNames, parser.getWhereClause(), new HashMap<String, Object>(),
+			(CsvStatement)conn.createStatement());
+	}
+
+	private void copyFile(File from, File to) throws IOException
+	{
+		FileInputStream in = new FileInputStream(from);
+		FileOutputStream out = new FileOutputStream(to);
+		byte[] buf = new byte[4096];
+		int len;
+		while ((len = in.read(buf)) > 0)
+			out.write(buf, 0, len);
+		out.close();
+		in.close();
+	}
+
+	@Test
+	public void testColumnarCache() throws SQLException, IOException
+	{
+		File cacheDir = File.createTempFile("csvjdbc", "");
+		cacheDir.delete();
+		cacheDir.mkdir();
+		try
+		{
+			Properties props = new Properties();
+			props.put("columnTypes", "Int,String,String,Timestamp,Short");
+			props.put("columnTypes.numeric", "Byte,Short,Integer,Long,Float,Double,BigDecimal");
+			props.put("columnarCache", "true");
+			props.put("columnarCacheDirectory", cacheDir.getPath());
+
+			Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + filePath, props);
+			Statement stmt = conn.createStatement();
+			File cacheFile = new File(cacheDir, "sample5.csv.cache");
+
+			/*
+			 * First query creates the cache file, second query reads it.
+			 */
+			for (int i = 0; i < 2; i++)
+			{
+				ResultSet results = stmt.executeQuery("SELECT * FROM sample5 S WHERE S.Job = 'Project Manager' ORDER BY ID");
+				assertTrue("Cache file not created", cacheFile.exists());
+				assertTrue(results.next());
+				assertEquals("Incorrect ID", 1, results.getInt("ID"));
+				assertEquals("Incorrect Name", "Juan Pablo Morales", results.getString("Name"));
+				assertEquals("Incorrect Start", Timestamp.valueOf("2001-01-02 12:30:00"), results.getTimestamp("Start"));
+				assertEquals("Incorrect timeoffset", 1235, results.getShort("timeoffset"));
+				assertTrue(results.next());
+				assertEquals("Incorrect ID", 3, results.getInt("ID"));
+				ResultSetMetaData metadata = results.getMetaData();
+				assertEquals("Incorrect column name", "ID", metadata.getColumnName(1));
+				assertEquals("Incorrect column type", Types.TIMESTAMP, metadata.getColumnType(4));
+
+				results = stmt.executeQuery("SELECT * FROM numeric");
+				assertTrue(results.next());
+				assertEquals("Incorrect C1", 99, results.getByte(1));
+				assertEquals("Incorrect C3", 300100, results.getInt(3));
+				assertEquals("Incorrect C5", 3.14, results.getFloat(5), 0.0001);
+				assertEquals("Incorrect C7", new BigDecimal("8.65e-6"), results.getBigDecimal(7));
+				assertTrue(results.next());
+				assertEquals("Incorrect C4", 990000000000L, results.getLong(4));
+				assertFalse(results.next());
+			}
+
+			/*
+			 * Cache file is not used when the column types change.
+			 */
+			props.put("columnTypes", "String");
+			conn.close();
+			conn = DriverManager.getConnection("jdbc:relique:csv:" + filePath, props);
+			stmt = conn.createStatement();
+			ResultSet results = stmt.executeQuery("SELECT ID FROM sample5 WHERE Name LIKE 'Juan Pablo Mo%'");
+			assertTrue(results.next());
+			assertEquals("Incorrect ID", "41", results.getObject(1));
+			assertTrue(results.next());
+			assertEquals("Incorrect ID", "01", results.getObject(1));
+			assertFalse(results.next());
+			conn.close();
+		}
+		finally
+		{
+			File []files = cacheDir.listFiles();
+			for (int i = 0; i < files.length; i++)
+				files[i].delete();
+			cacheDir.delete();
+		}
+	}
+
+	@Test
+	public void testTableCache() throws SQLException
+	{
+		TableCache.clear();
+		try
+		{
+			Properties props = new Properties();
+			props.put("columnTypes", "Int,String,String,Timestamp,Short");
+			props.put("tableCache", "true");
+
+			/*
+			 * Rows read by first connection are used by second connection.
+			 */
+			for (int i = 0; i < 2; i++)
+			{
+				Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + filePath, props);
+				Statement stmt = conn.createStatement();
+				ResultSet results = stmt.executeQuery("SELECT * FROM sample5 S WHERE S.Job = 'Project Manager' ORDER BY ID");
+				assertTrue(results.next());
+				assertEquals("Incorrect ID", 1, results.getInt("ID"));
+				assertEquals("Incorrect Start", Timestamp.valueOf("2001-01-02 12:30:00"), results.getTimestamp("Start"));
+				assertEquals("Incorrect timeoffset", 1235, results.getShort("timeoffset"));
+				assertTrue(results.next());
+				assertEquals("Incorrect ID", 3, results.getInt("ID"));
+				conn.close();
+			}
+			assertEquals("Incorrect miss count", 1, TableCache.getMissCount());
+			assertEquals("Incorrect hit count", 1, TableCache.getHitCount());
+			assertTrue("Incorrect cache size", TableCache.getSize() > 0);
+
+			/*
+			 * Different column types need different cached rows.
+			 */
+			props.put("columnTypes", "String");
+			Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + filePath, props);
+			Statement stmt = conn.createStatement();
+			ResultSet results = stmt.executeQuery("SELECT ID FROM sample5 WHERE Name LIKE 'Juan Pablo Mo%'");
+			assertTrue(results.next());
+			assertEquals("Incorrect ID", "41", results.getObject(1));
+			assertEquals("Incorrect miss count", 2, TableCache.getMissCount());
+
+			/*
+			 * Nothing fits in a cache of one byte.
+			 */
+			props.put("tableCacheSize", "1");
+			conn.close();
+			conn = DriverManager.getConnection("jdbc:relique:csv:" + filePath, props);
+			assertEquals("Incorrect cache size", 0, TableCache.getSize());
+			stmt = conn.createStatement();
+			results = stmt.executeQuery("SELECT ID FROM sample5 WHERE Name LIKE 'Juan Pablo Mo%'");
+			assertTrue(results.next());
+			assertEquals("Incorrect ID", "41", results.getObject(1));
+			assertTrue(results.next());
+			assertFalse(results.next());
+			assertEquals("Incorrect cache size", 0, TableCache.getSize());
+			conn.close();
+		}
+		finally
+		{
+			TableCache.setMaxSize(TableCache.DEFAULT_MAX_SIZE);
+			TableCache.clear();
+		}
+	}
+
 	@Test
 	public void testNoPatternGroupFromIndexedTable() throws SQLException
 	{
@@ -4260,6 +4730,386 @@ public class TestCsvDriver
 		assertFalse(results.next());
 	}
 
+	@Test
+	public void testQueryTimeout() throws SQLException
+	{
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:class:" +
+			TableReaderTester.class.getName());
+		Statement stmt = conn.createStatement();
+		stmt.setQueryTimeout(1);
+		assertEquals("Incorrect query timeout", 1, stmt.getQueryTimeout());
+		long startTime = System.currentTimeMillis();
+		try
+		{
+			stmt.executeQuery("SELECT GRP, COUNT(*) FROM endless GROUP BY GRP");
+			fail("Query should time out");
+		}
+		catch (SQLTimeoutException e)
+		{
+			assertTrue("Incorrect exception", e.getMessage().startsWith(CsvResources.getString("queryTimedOut")));
+		}
+		assertTrue("Query did not stop soon after timeout", System.currentTimeMillis() - startTime < 10000);
+
+		try
+		{
+			stmt.setQueryTimeout(-1);
+			fail("Should raise a java.sqlSQLException");
+		}
+		catch (SQLException e)
+		{
+			assertEquals("java.sql.SQLException: " + CsvResources.getString("invalidQueryTimeout") + ": -1", "" + e);
+		}
+
+		/*
+		 * Timeout does not apply to reading rows after the query has been executed.
+		 */
+		ResultSet results = stmt.executeQuery("SELECT * FROM airline");
+		assertTrue(results.next());
+		assertEquals("CODE wrong", "LH", results.getString("CODE"));
+		conn.close();
+	}
+
+	@Test
+	public void testCancel() throws Exception
+	{
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:class:" +
+			TableReaderTester.class.getName());
+		final Statement stmt = conn.createStatement();
+		Thread cancelThread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Thread.sleep(200);
+					stmt.cancel();
+				}
+				catch (Exception e)
+				{
+				}
+			}
+		};
+		cancelThread.start();
+		try
+		{
+			stmt.executeQuery("SELECT * FROM endless ORDER BY GRP");
+			fail("Query should be cancelled");
+		}
+		catch (SQLException e)
+		{
+			assertEquals("java.sql.SQLException: " + CsvResources.getString("queryCancelled"), "" + e);
+		}
+		cancelThread.join();
+
+		/*
+		 * Cancelling a streamed query stops the rows being read.
+		 */
+		ResultSet results = stmt.executeQuery("SELECT ID FROM endless WHERE GRP = '7'");
+		assertTrue(results.next());
+		assertEquals("ID wrong", "7", results.getString(1));
+		stmt.cancel();
+		try
+		{
+			results.next();
+			fail("Query should be cancelled");
+		}
+		catch (SQLException e)
+		{
+			assertEquals("java.sql.SQLException: " + CsvResources.getString("queryCancelled"), "" + e);
+		}
+		conn.close();
+	}
+
+	@Test
+	public void testReadAhead() throws SQLException, IOException
+	{
+		File dir = File.createTempFile("csvjdbc", "");
+		dir.delete();
+		dir.mkdir();
+		File file = new File(dir, "many.csv");
+		try
+		{
+			PrintWriter out = new PrintWriter(new FileWriter(file));
+			out.println("ID,VAL,NAME");
+			for (int i = 0; i < 5000; i++)
+				out.println(i + "," + ((i * 7919) % 101) + ",N" + (i % 37));
+			out.close();
+
+			Properties props = new Properties();
+			props.put("columnTypes", "Int,Int,String");
+			Properties readAheadProps = new Properties();
+			readAheadProps.putAll(props);
+			readAheadProps.put("readAhead", "true");
+
+			String sql = "SELECT ID, NAME FROM many WHERE VAL > 50";
+			StringBuilder expected = new StringBuilder();
+			Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + dir.getPath(), props);
+			ResultSet results = conn.createStatement().executeQuery(sql);
+			while (results.next())
+				expected.append(results.getInt(1)).append(',').append(results.getString(2)).append('\n');
+			conn.close();
+
+			/*
+			 * Same rows are returned with small and default batch sizes.
+			 */
+			int[] fetchSizes = new int[]{1, 7};
+			for (int i = 0; i < fetchSizes.length; i++)
+			{
+				StringBuilder actual = new StringBuilder();
+				conn = DriverManager.getConnection("jdbc:relique:csv:" + dir.getPath(), readAheadProps);
+				Statement stmt = conn.createStatement();
+				stmt.setFetchSize(fetchSizes[i]);
+				results = stmt.executeQuery(sql);
+				while (results.next())
+					actual.append(results.getInt(1)).append(',').append(results.getString(2)).append('\n');
+				assertFalse(results.next());
+				conn.close();
+				assertEquals("Incorrect rows with fetch size " + fetchSizes[i],
+					expected.toString(), actual.toString());
+			}
+		}
+		finally
+		{
+			file.delete();
+			dir.delete();
+		}
+
+		/*
+		 * Closing ResultSet stops background thread reading a table with no end.
+		 */
+		Properties props = new Properties();
+		props.put("readAhead", "true");
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:class:" +
+			TableReaderTester.class.getName(), props);
+		Statement stmt = conn.createStatement();
+		stmt.setFetchSize(10);
+		ResultSet results = stmt.executeQuery("SELECT ID FROM endless");
+		for (int i = 1; i <= 25; i++)
+		{
+			assertTrue(results.next());
+			assertEquals("ID wrong", "" + i, results.getString(1));
+		}
+		results.close();
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+		{
+			assertFalse("Read-ahead thread still running",
+				thread.getName().startsWith("CsvJdbc read-ahead"));
+		}
+		conn.close();
+	}
+
+	@Test
+	public void testReadAheadError() throws SQLException, IOException
+	{
+		/*
+		 * Reader fails with an Error after returning its first buffer of data.
+		 */
+		Reader in = new StringReader("ID,NAME\n1,A\n2,B\n3,C\n")
+		{
+			private boolean isFirstRead = true;
+
+			@Override
+			public int read(char[] buf, int off, int len) throws IOException
+			{
+				if (!isFirstRead)
+					throw new OutOfMemoryError("Test failure");
+				isFirstRead = false;
+				return super.read(buf, off, len);
+			}
+		};
+		CsvRawReader rawReader = new CsvRawReader(new LineNumberReader(in), "failing", null,
+			",", false, false, Character.valueOf('"'), null, null, true, true,
+			0, false, false, 0, QuoteStyle.SQL, null);
+
+		/*
+		 * Rows read before the Error are returned, then the Error is
+		 * thrown instead of waiting for the background thread.
+		 */
+		ReadAheadPipeline pipeline = new ReadAheadPipeline(rawReader, 2);
+		int rowCount = 0;
+		try
+		{
+			while (pipeline.next())
+				rowCount++;
+			fail("Should raise a java.lang.OutOfMemoryError");
+		}
+		catch (OutOfMemoryError e)
+		{
+			assertEquals("Incorrect error", "Test failure", e.getMessage());
+		}
+		finally
+		{
+			pipeline.close();
+		}
+		assertEquals("Incorrect row count", 3, rowCount);
+	}
+
+	/**
+	 * Write file compressed as blocked gzip, with each block a separate
+	 * gzip member giving its compressed size in a "BC" extra field.
+	 */
+	private void writeBlockedGzip(File file, byte[] data, int blockSize) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(file);
+		byte[] compressed = new byte[blockSize * 2 + 64];
+		int offset = 0;
+		do
+		{
+			int len = Math.min(blockSize, data.length - offset);
+			Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			deflater.setInput(data, offset, len);
+			deflater.finish();
+			int compressedLength = 0;
+			while (!deflater.finished())
+				compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+			deflater.end();
+			CRC32 crc = new CRC32();
+			crc.update(data, offset, len);
+
+			int memberSize = 18 + compressedLength + 8;
+			ByteArrayOutputStream member = new ByteArrayOutputStream();
+			member.write(new byte[]{0x1f, (byte)0x8b, 8, 4, 0, 0, 0, 0, 0, (byte)0xff, 6, 0, 'B', 'C', 2, 0});
+			member.write((memberSize - 1) & 0xff);
+			member.write((memberSize - 1) >> 8);
+			member.write(compressed, 0, compressedLength);
+			long crcValue = crc.getValue();
+			for (int i = 0; i < 4; i++)
+				member.write((int)(crcValue >> (i * 8)) & 0xff);
+			for (int i = 0; i < 4; i++)
+				member.write((len >> (i * 8)) & 0xff);
+			out.write(member.toByteArray());
+			offset += len;
+		}
+		while (offset < data.length);
+		out.close();
+	}
+
+	private String readAllRows(String path, Properties props, String sql) throws SQLException
+	{
+		StringBuilder sb = new StringBuilder();
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + path, props);
+		ResultSet results = conn.createStatement().executeQuery(sql);
+		int columnCount = results.getMetaData().getColumnCount();
+		while (results.next())
+		{
+			for (int i = 1; i <= columnCount; i++)
+				sb.append(results.getString(i)).append(',');
+			sb.append('\n');
+		}
+		conn.close();
+		return sb.toString();
+	}
+
+	@Test
+	public void testGzipFiles() throws SQLException, IOException
+	{
+		File dir = File.createTempFile("csvjdbc", "");
+		dir.delete();
+		dir.mkdir();
+		try
+		{
+			StringBuilder sb = new StringBuilder("ID,VAL,NAME\n");
+			for (int i = 0; i < 20000; i++)
+				sb.append(i).append(',').append((i * 7919) % 101).append(",N").append(i % 37).append('\n');
+			byte[] data = sb.toString().getBytes("US-ASCII");
+
+			FileOutputStream out = new FileOutputStream(new File(dir, "many.csv"));
+			out.write(data);
+			out.close();
+			writeBlockedGzip(new File(dir, "blocked.csv.gz"), data, 4096);
+			GZIPOutputStream gzipOut = new GZIPOutputStream(new FileOutputStream(new File(dir, "single.csv.gz")));
+			gzipOut.write(data);
+			gzipOut.close();
+
+			/*
+			 * File of two gzip members without "BC" extra fields.
+			 */
+			out = new FileOutputStream(new File(dir, "members.csv.gz"));
+			gzipOut = new GZIPOutputStream(out);
+			gzipOut.write(data, 0, 1000);
+			gzipOut.finish();
+			gzipOut = new GZIPOutputStream(out);
+			gzipOut.write(data, 1000, data.length - 1000);
+			gzipOut.close();
+
+			Properties props = new Properties();
+			props.put("columnTypes", "Int,Int,String");
+			String expected = readAllRows(dir.getPath(), props, "SELECT * FROM many WHERE VAL < 50");
+			assertTrue("No rows read", expected.length() > 0);
+			String[] tableNames = new String[]{"blocked", "single", "members"};
+			String[] threadCounts = new String[]{"1", "4"};
+			for (int i = 0; i < tableNames.length; i++)
+			{
+				for (int j = 0; j < threadCounts.length; j++)
+				{
+					props.put("decompressionThreads", threadCounts[j]);
+					assertEquals("Incorrect rows in " + tableNames[i] + " with threads " + threadCounts[j], expected,
+						readAllRows(dir.getPath(), props, "SELECT * FROM " + tableNames[i] + " WHERE VAL < 50"));
+				}
+			}
+
+			/*
+			 * Blocked members with a wrong gzip magic number or compression
+			 * method are rejected, not decompressed in parallel.
+			 */
+			String[] badTableNames = new String[]{"badmagic", "badmethod"};
+			String[] badMessages = new String[]{"Not in GZIP format", "Unsupported compression method"};
+			for (int i = 0; i < badTableNames.length; i++)
+			{
+				File badFile = new File(dir, badTableNames[i] + ".csv.gz");
+				writeBlockedGzip(badFile, data, 4096);
+				RandomAccessFile raf = new RandomAccessFile(badFile, "rw");
+				raf.seek(i == 0 ? 0 : 2);
+				raf.write(i == 0 ? 0x1e : 7);
+				raf.close();
+				for (int j = 0; j < threadCounts.length; j++)
+				{
+					props.put("decompressionThreads", threadCounts[j]);
+					try
+					{
+						readAllRows(dir.getPath(), props, "SELECT * FROM " + badTableNames[i]);
+						fail("Should raise a java.sqlSQLException for " + badTableNames[i] + " with threads " + threadCounts[j]);
+					}
+					catch (SQLException e)
+					{
+						assertTrue("Incorrect exception: " + e, e.getMessage().contains(badMessages[i]));
+					}
+				}
+			}
+
+			props.put("fileExtension", ".csv.gz");
+			assertEquals("Incorrect rows with .csv.gz extension", expected,
+				readAllRows(dir.getPath(), props, "SELECT * FROM blocked WHERE VAL < 50"));
+
+			/*
+			 * Each file of indexedFiles table is decompressed.
+			 */
+			writeBlockedGzip(new File(dir, "part-1.csv.gz"), data, 1000);
+			writeBlockedGzip(new File(dir, "part-2.csv.gz"), data, 3000);
+			props.put("indexedFiles", "true");
+			props.put("fileTailPattern", "-([0-9]+)");
+			props.put("fileTailParts", "PART");
+			Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + dir.getPath(), props);
+			ResultSet results = conn.createStatement().executeQuery("SELECT PART, COUNT(*) FROM part GROUP BY PART");
+			assertTrue(results.next());
+			assertEquals("Incorrect PART", "1", results.getString(1));
+			assertEquals("Incorrect row count", 20000, results.getInt(2));
+			assertTrue(results.next());
+			assertEquals("Incorrect PART", "2", results.getString(1));
+			assertEquals("Incorrect row count", 20000, results.getInt(2));
+			assertFalse(results.next());
+			conn.close();
+		}
+		finally
+		{
+			File[] files = dir.listFiles();
+			for (int i = 0; i < files.length; i++)
+				files[i].delete();
+			dir.delete();
+		}
+	}
+
 	@Test
 	public void testTableReaderMetadata() throws SQLException
 	{
@@ -4379,6 +5229,54 @@ public class TestCsvDriver
 		assertFalse(results.next());
 	}
 
+	@Test
+	public void testDistinctMemoryLimit() throws SQLException
+	{
+		Properties props = new Properties();
+		props.put("columnTypes", "Integer,String,String,Timestamp,Short");
+		props.put("memoryLimit", "1");
+		props.put("charset", "UTF-8");
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + filePath, props);
+
+		Statement stmt = conn.createStatement();
+
+		/*
+		 * Rows that do not fit in memory are returned after all other rows.
+		 */
+		ResultSet results = stmt.executeQuery("select distinct job from sample5");
+		HashSet<String> jobs = new HashSet<String>();
+		while (results.next())
+			assertTrue("Duplicate distinct value", jobs.add(results.getString(1)));
+		assertEquals("Incorrect distinct value count", 5, jobs.size());
+		assertTrue("Missing distinct value", jobs.contains("Office Employee"));
+		results.close();
+
+		results = stmt.executeQuery("select Job, Start from sample5 group by Job, Start");
+		HashSet<String> groups = new HashSet<String>();
+		while (results.next())
+		{
+			assertTrue("Incorrect group value", results.getObject(2) instanceof Timestamp);
+			assertTrue("Duplicate group", groups.add(results.getString(1) + "/" + results.getString(2)));
+		}
+		assertEquals("Incorrect group count", 7, groups.size());
+		results.close();
+
+		results = stmt.executeQuery("select distinct Name, ID + 1 as N from sample5 where ID > 2 limit 4");
+		HashSet<String> names = new HashSet<String>();
+		while (results.next())
+		{
+			assertTrue("Incorrect distinct value", results.getInt("N") > 3);
+			names.add(results.getString("Name"));
+		}
+		assertEquals("Incorrect distinct value count", 4, names.size());
+		results.close();
+
+		results = stmt.executeQuery("select distinct Name from sample5 where Name like '%Méndez'");
+		assertTrue(results.next());
+		assertEquals("Incorrect distinct value", "Érica Jeanine Méndez Méndez", results.getString(1));
+		assertFalse(results.next());
+	}
+
 	@Test
 	public void testNoTable() throws SQLException, ParseException
 	{
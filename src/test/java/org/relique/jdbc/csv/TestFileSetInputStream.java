@@ -22,10 +22,12 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -218,6 +220,58 @@ public class TestFileSetInputStream
 		}
 	}
 
+	private byte[] readBytes(FileSetInputStream in, int blockSize) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (blockSize == 0)
+		{
+			int ch;
+			while ((ch = in.read()) != -1)
+				out.write(ch);
+		}
+		else
+		{
+			/*
+			 * Read into middle of buffer to check that offset is used.
+			 */
+			byte[] b = new byte[blockSize + 2];
+			int n;
+			while ((n = in.read(b, 1, blockSize)) != -1)
+			{
+				assertTrue("No bytes read", n > 0);
+				out.write(b, 1, n);
+			}
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testBulkRead() throws IOException
+	{
+		String[] patterns = new String[]{"test-([0-9]{3})-([0-9]{8}).txt",
+			"test-([0-9]{3})-([0-9]{8}).txt", "headerless-([0-9]{3})-([0-9]{8}).txt",
+			"empty-([0-9]+).txt"};
+		boolean[] prepend = new boolean[]{false, true, true, false};
+		boolean[] headerless = new boolean[]{false, false, true, false};
+		int[] blockSizes = new int[]{1, 3, 7, 64, 8192};
+		for (int i = 0; i < patterns.length; i++)
+		{
+			byte[] expected = readBytes(new FileSetInputStream(filePath,
+				patterns[i], new String[]{"location", "file_date"}, ",",
+				prepend[i], headerless[i], null, 0), 0);
+			assertTrue("No bytes read", expected.length > 0);
+			for (int j = 0; j < blockSizes.length; j++)
+			{
+				byte[] actual = readBytes(new FileSetInputStream(filePath,
+					patterns[i], new String[]{"location", "file_date"}, ",",
+					prepend[i], headerless[i], null, 0), blockSizes[j]);
+				assertTrue("Different bytes for " + patterns[i] + " read in blocks of " + blockSizes[j],
+					Arrays.equals(expected, actual));
+			}
+		}
+	}
+
 	@Test
 	public void testFileSetInputStreamClose() throws IOException
 	{
@@ -24,7 +24,9 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.Date;
 import java.sql.DriverManager;
@@ -33,6 +35,11 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.TimeZone;
 
@@ -373,6 +380,43 @@ public class TestGroupBy
 		assertFalse(results.next());
 	}
 
+	@Test
+	public void testCountStarWithGroupBy() throws SQLException
+	{
+		Properties props = new Properties();
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + filePath, props);
+
+		Statement stmt = conn.createStatement();
+
+		ResultSet results = stmt.executeQuery("select Job, count(*) from sample4 group by Job");
+		assertTrue(results.next());
+		assertEquals("The Job is wrong", "Project Manager", results.getString(1));
+		assertEquals("The count is wrong", 3, results.getInt(2));
+		assertTrue(results.next());
+		assertEquals("The Job is wrong", "Finance Manager", results.getString(1));
+		assertEquals("The count is wrong", 1, results.getInt(2));
+		assertFalse(results.next());
+
+		results = stmt.executeQuery("select Job from sample4 group by Job having count(*) > 1");
+		assertTrue(results.next());
+		assertEquals("The Job is wrong", "Project Manager", results.getString(1));
+		assertFalse(results.next());
+
+		results = stmt.executeQuery("select Job + '/' as J, count(*) from sample4 group by J");
+		assertTrue(results.next());
+		assertEquals("The J is wrong", "Project Manager/", results.getString(1));
+		assertEquals("The count is wrong", 3, results.getInt(2));
+		assertTrue(results.next());
+		assertEquals("The J is wrong", "Finance Manager/", results.getString(1));
+		assertEquals("The count is wrong", 1, results.getInt(2));
+		assertFalse(results.next());
+
+		results = stmt.executeQuery("select Job + '/' as J from sample4 group by J having count(*) > 0");
+		assertTrue(results.next());
+		assertTrue(results.next());
+		assertFalse(results.next());
+	}
+
 	@Test
 	public void testGroupByWithLiteral() throws SQLException
 	{
@@ -576,6 +620,60 @@ public class TestGroupBy
 		conn.close();
 	}
 
+	@Test
+	public void testGroupByApproxCountDistinct() throws SQLException
+	{
+		Properties props = new Properties();
+		props.put("headerline", "TRANS_DATE,FROM_ACCT,FROM_BLZ,TO_ACCT,TO_BLZ,AMOUNT");
+		props.put("suppressHeaders", "true");
+		props.put("fileExtension", ".txt");
+		props.put("commentChar", "#");
+		props.put("columnTypes", "Date,Integer,Integer,Integer,Integer,Double");
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + filePath, props);
+
+		Statement stmt = conn.createStatement();
+
+		ResultSet results = stmt.executeQuery("select FROM_BLZ, approx_count_distinct(FROM_ACCT) from transactions group by FROM_BLZ order by FROM_BLZ");
+		assertTrue(results.next());
+		assertEquals("Incorrect FROM_BLZ", "10010010", results.getString(1));
+		assertEquals("Incorrect count FROM_ACCT", 2, results.getInt(2));
+		assertTrue(results.next());
+		assertEquals("Incorrect FROM_BLZ", "10020200", results.getString(1));
+		assertEquals("Incorrect count FROM_ACCT", 1, results.getInt(2));
+		assertTrue(results.next());
+		assertEquals("Incorrect FROM_BLZ", "10020500", results.getString(1));
+		assertEquals("Incorrect count FROM_ACCT", 1, results.getInt(2));
+		assertFalse(results.next());
+
+		results.close();
+		stmt.close();
+		conn.close();
+	}
+
+	@Test
+	public void testGroupByApproxMedian() throws SQLException
+	{
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + filePath);
+
+		Statement stmt = conn.createStatement();
+
+		ResultSet results = stmt.executeQuery("select NAME, approx_median(SCORE) from scores group by NAME order by NAME");
+		assertTrue(results.next());
+		assertEquals("Incorrect NAME", "Daniel", results.getString(1));
+		assertEquals("Incorrect median", 75, results.getDouble(2), 0.0001);
+		assertTrue(results.next());
+		assertEquals("Incorrect NAME", "Maria", results.getString(1));
+		assertEquals("Incorrect median", 47, results.getDouble(2), 0.0001);
+		assertTrue(results.next());
+		assertEquals("Incorrect NAME", "Mark", results.getString(1));
+		assertEquals("Incorrect median", 77, results.getDouble(2), 0.0001);
+		assertFalse(results.next());
+
+		results.close();
+		stmt.close();
+		conn.close();
+	}
+
 	@Test
 	public void testGroupBySumAvgDistinct() throws SQLException
 	{
@@ -605,4 +703,363 @@ public class TestGroupBy
 		stmt.close();
 		conn.close();
 	}
+
+	@Test
+	public void testGroupBySortedBy() throws SQLException
+	{
+		Properties props = new Properties();
+		props.put("headerline", "TRANS_DATE,FROM_ACCT,FROM_BLZ,TO_ACCT,TO_BLZ,AMOUNT");
+		props.put("suppressHeaders", "true");
+		props.put("fileExtension", ".txt");
+		props.put("commentChar", "#");
+		props.put("columnTypes", "String,Integer,Integer,Integer,Integer,Double");
+		props.put("sortedBy.transactions", "TRANS_DATE, FROM_ACCT");
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + filePath, props);
+
+		Statement stmt = conn.createStatement();
+
+		ResultSet results = stmt.executeQuery("select TRANS_DATE, count(*), round(sum(AMOUNT) * 100) " +
+			"from transactions group by TRANS_DATE having count(*) < 3 limit 10 offset 1");
+		assertTrue(results.next());
+		assertEquals("The TRANS_DATE is wrong", "24-10-2011", results.getString(1));
+		assertEquals("The COUNT is wrong", 1, results.getInt(2));
+		assertEquals("The SUM is wrong", 5525, results.getInt(3));
+		assertTrue(results.next());
+		assertEquals("The TRANS_DATE is wrong", "27-10-2011", results.getString(1));
+		assertEquals("The COUNT is wrong", 2, results.getInt(2));
+		assertEquals("The SUM is wrong", 19050 + 4307, results.getInt(3));
+		assertTrue(results.next());
+		assertEquals("The TRANS_DATE is wrong", "28-10-2011", results.getString(1));
+		assertTrue(results.next());
+		assertEquals("The TRANS_DATE is wrong", "31-10-2011", results.getString(1));
+		assertFalse(results.next());
+
+		results = stmt.executeQuery("select FROM_ACCT, TRANS_DATE, count(*) " +
+			"from transactions group by FROM_ACCT, TRANS_DATE limit 3");
+		assertTrue(results.next());
+		assertEquals("The TRANS_DATE is wrong", "19-10-2011", results.getString(2));
+		assertTrue(results.next());
+		assertEquals("The TRANS_DATE is wrong", "21-10-2011", results.getString(2));
+		assertEquals("The FROM_ACCT is wrong", 3670345, results.getInt(1));
+		assertEquals("The COUNT is wrong", 2, results.getInt(3));
+		assertTrue(results.next());
+		assertEquals("The FROM_ACCT is wrong", 97540210, results.getInt(1));
+		assertFalse(results.next());
+
+		stmt.close();
+		conn.close();
+	}
+
+	@Test
+	public void testGroupByNotSortedBy() throws SQLException
+	{
+		Properties props = new Properties();
+		props.put("headerline", "TRANS_DATE,FROM_ACCT,FROM_BLZ,TO_ACCT,TO_BLZ,AMOUNT");
+		props.put("suppressHeaders", "true");
+		props.put("fileExtension", ".txt");
+		props.put("commentChar", "#");
+		props.put("columnTypes", "String,Integer,Integer,Integer,Integer,Double");
+		props.put("sortedBy", "FROM_ACCT");
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + filePath, props);
+
+		Statement stmt = conn.createStatement();
+
+		ResultSet results = stmt.executeQuery("select FROM_ACCT, count(*) from transactions group by FROM_ACCT");
+		assertTrue(results.next());
+		assertEquals("The FROM_ACCT is wrong", 3670345, results.getInt(1));
+		assertEquals("The COUNT is wrong", 3, results.getInt(2));
+		try
+		{
+			while (results.next())
+				;
+			fail("Should raise a java.sqlSQLException");
+		}
+		catch (SQLException e)
+		{
+			assertTrue("Incorrect exception: " + e, e.toString().contains("sortedBy"));
+		}
+
+		stmt.close();
+		conn.close();
+	}
+
+	private List<String> readAllRows(String path, Properties props, String sql) throws SQLException
+	{
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + path, props);
+		Statement stmt = conn.createStatement();
+		ResultSet results = stmt.executeQuery(sql);
+		List<String> rows = new ArrayList<String>();
+		int columnCount = results.getMetaData().getColumnCount();
+		while (results.next())
+		{
+			StringBuilder sb = new StringBuilder();
+			for (int i = 1; i <= columnCount; i++)
+				sb.append(results.getObject(i)).append(",");
+			rows.add(sb.toString());
+		}
+		results.close();
+		stmt.close();
+		conn.close();
+		return rows;
+	}
+
+	@Test
+	public void testGroupByAggregationThreads() throws SQLException, IOException
+	{
+		File dir = File.createTempFile("csvjdbc", "");
+		dir.delete();
+		dir.mkdir();
+		File file = new File(dir, "many.csv");
+		try
+		{
+			PrintWriter out = new PrintWriter(new FileWriter(file));
+			out.println("ID,GRP,VAL");
+			for (int i = 0; i < 20000; i++)
+				out.println(i + ",G" + ((i * 7919) % 13) + "," + ((i % 10 == 0) ? "" : String.valueOf(i % 250)));
+			out.close();
+
+			String[] queries = {
+				"select GRP, count(*), count(VAL), count(distinct VAL), sum(VAL), avg(VAL), " +
+					"min(ID), max(ID), sum(distinct VAL) from many group by GRP",
+				"select GRP, count(*) from many where ID > 100 group by GRP having sum(VAL) > 172700 order by max(ID) desc",
+				"select count(*), sum(ID), avg(VAL), min(GRP), max(GRP) from many",
+				"select count(*), sum(ID) from many where ID < 0",
+				"select GRP, sum(VAL) from many group by GRP order by sum(VAL) desc limit 5 offset 2"
+			};
+			Properties props = new Properties();
+			props.put("columnTypes", "Int,String,Int");
+			Properties parallelProps = new Properties();
+			parallelProps.putAll(props);
+			parallelProps.put("aggregationThreads", "4");
+			for (String sql : queries)
+			{
+				List<String> expected = readAllRows(dir.getPath(), props, sql);
+				List<String> actual = readAllRows(dir.getPath(), parallelProps, sql);
+				assertTrue("No rows: " + sql, expected.size() > 0);
+				assertEquals("Incorrect rows: " + sql, expected, actual);
+			}
+		}
+		finally
+		{
+			file.delete();
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testGroupByAggregationThreadError() throws SQLException
+	{
+		/*
+		 * GROUP BY expression fails with an Error for one row in a worker thread.
+		 */
+		Expression groupBy = new Expression()
+		{
+			@Override
+			public Object eval(Map<String, Object> env)
+			{
+				Integer id = (Integer)env.get("ID");
+				if (id.intValue() == 3000)
+					throw new OutOfMemoryError("Test failure");
+				return Integer.valueOf(id.intValue() % 7);
+			}
+		};
+		StringConverter[] converters = new StringConverter[3];
+		for (int i = 0; i < converters.length; i++)
+			converters[i] = new StringConverter("yyyy-mm-dd", "", "", "");
+		ParallelAggregator aggregator = new ParallelAggregator(Collections.singletonList(groupBy),
+			new ArrayList<AggregateFunction>(), converters);
+		try
+		{
+			for (int i = 0; i < 5000; i++)
+			{
+				Map<String, Object> row = new HashMap<String, Object>();
+				row.put("ID", Integer.valueOf(i));
+				aggregator.add(row);
+			}
+			aggregator.finish();
+			fail("Should raise a java.lang.OutOfMemoryError");
+		}
+		catch (OutOfMemoryError e)
+		{
+			assertEquals("Incorrect error", "Test failure", e.getMessage());
+		}
+		finally
+		{
+			aggregator.close();
+		}
+	}
+
+	@Test
+	public void testGroupByMemoryLimit() throws SQLException, IOException
+	{
+		File dir = File.createTempFile("csvjdbc", "");
+		dir.delete();
+		dir.mkdir();
+		File file = new File(dir, "sessions.csv");
+		try
+		{
+			PrintWriter out = new PrintWriter(new FileWriter(file));
+			out.println("SESSION,USERNAME,BYTES");
+			for (int i = 0; i < 30000; i++)
+				out.println("S" + ((i * 7919) % 5003) + ",user" + (i % 17) + "," + (i % 1000));
+			out.close();
+
+			Properties props = new Properties();
+			props.put("columnTypes", "String,String,Int");
+			props.put("memoryLimit", "0");
+			Properties spillProps = new Properties();
+			spillProps.putAll(props);
+			spillProps.put("memoryLimit", "20000");
+
+			String sql = "select SESSION, count(*), sum(BYTES), count(distinct USERNAME), max(USERNAME) " +
+				"from sessions group by SESSION having count(*) > 5";
+			List<String> expected = readAllRows(dir.getPath(), props, sql);
+			List<String> actual = readAllRows(dir.getPath(), spillProps, sql);
+			assertEquals("Incorrect row count", 4985, expected.size());
+
+			/*
+			 * Groups are returned in a different order after writing them to files.
+			 */
+			Collections.sort(expected);
+			Collections.sort(actual);
+			assertEquals("Incorrect rows", expected, actual);
+
+			sql = "select SESSION, sum(BYTES) from sessions group by SESSION " +
+				"having min(BYTES) > 2 order by sum(BYTES) desc, SESSION limit 20 offset 10";
+			expected = readAllRows(dir.getPath(), props, sql);
+			actual = readAllRows(dir.getPath(), spillProps, sql);
+			assertEquals("Incorrect row count", 20, expected.size());
+			assertEquals("Incorrect sorted rows", expected, actual);
+		}
+		finally
+		{
+			file.delete();
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testGroupByIntegerKey() throws SQLException, IOException
+	{
+		File dir = File.createTempFile("csvjdbc", "");
+		dir.delete();
+		dir.mkdir();
+		File file = new File(dir, "accounts.csv");
+		try
+		{
+			PrintWriter out = new PrintWriter(new FileWriter(file));
+			out.println("ACCOUNT,AMOUNT");
+			for (int i = 0; i < 30000; i++)
+			{
+				String account = (i % 97 == 0) ? "" : Integer.toString(i % 3001 - 1000);
+				out.println(account + "," + (i % 50));
+			}
+			out.close();
+
+			/*
+			 * Group integer keys and compare with grouping the same keys as strings.
+			 */
+			Properties stringProps = new Properties();
+			stringProps.put("columnTypes", "String,Int");
+			Properties longProps = new Properties();
+			longProps.put("columnTypes", "Long,Int");
+			Properties spillProps = new Properties();
+			spillProps.putAll(longProps);
+			spillProps.put("memoryLimit", "20000");
+			Properties threadProps = new Properties();
+			threadProps.putAll(longProps);
+			threadProps.put("aggregationThreads", "4");
+
+			String sql = "select ACCOUNT, count(*), sum(AMOUNT), count(distinct AMOUNT) " +
+				"from accounts where ACCOUNT <> '' group by ACCOUNT";
+			List<String> expected = readAllRows(dir.getPath(), stringProps, sql);
+			sql = "select ACCOUNT, count(*), sum(AMOUNT), count(distinct AMOUNT) " +
+				"from accounts where ACCOUNT is not null group by ACCOUNT";
+			List<String> actual = readAllRows(dir.getPath(), longProps, sql);
+			assertEquals("Incorrect row count", 3001, expected.size());
+			assertEquals("Incorrect rows", expected, actual);
+
+			Collections.sort(expected);
+			actual = readAllRows(dir.getPath(), spillProps, sql);
+			Collections.sort(actual);
+			assertEquals("Incorrect rows after writing to files", expected, actual);
+			actual = readAllRows(dir.getPath(), threadProps, sql);
+			Collections.sort(actual);
+			assertEquals("Incorrect rows with threads", expected, actual);
+
+			/*
+			 * Null key is in a separate group from integer keys.
+			 */
+			sql = "select count(*) from accounts group by ACCOUNT";
+			assertEquals("Incorrect group count", 3002, readAllRows(dir.getPath(), longProps, sql).size());
+			assertEquals("Incorrect group count", 3002, readAllRows(dir.getPath(), spillProps, sql).size());
+
+			sql = "select distinct ACCOUNT from accounts";
+			expected = readAllRows(dir.getPath(), longProps, sql);
+			assertEquals("Incorrect distinct row count", 3002, expected.size());
+			actual = readAllRows(dir.getPath(), spillProps, sql);
+			Collections.sort(expected);
+			Collections.sort(actual);
+			assertEquals("Incorrect distinct rows after writing to files", expected, actual);
+		}
+		finally
+		{
+			file.delete();
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testGroupByOrderByMemoryLimit() throws SQLException, IOException
+	{
+		File dir = File.createTempFile("csvjdbc", "");
+		dir.delete();
+		dir.mkdir();
+		File file = new File(dir, "events.csv");
+		try
+		{
+			PrintWriter out = new PrintWriter(new FileWriter(file));
+			out.println("ID,GRP,VAL");
+			for (int i = 0; i < 30000; i++)
+				out.println(i + ",G" + ((i * 7919) % 50) + "," + (i % 100));
+			out.close();
+
+			Properties props = new Properties();
+			props.put("columnTypes", "Int,String,Int");
+			props.put("memoryLimit", "2000");
+			Properties threadProps = new Properties();
+			threadProps.put("columnTypes", "Int,String,Int");
+			threadProps.put("aggregationThreads", "3");
+
+			/*
+			 * Only the groups are kept in memory for sorting and scrolling,
+			 * not the rows read from the file.
+			 */
+			Properties[] allProps = {props, threadProps};
+			for (Properties p : allProps)
+			{
+				Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + dir.getPath(), p);
+				Statement stmt = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+				ResultSet results = stmt.executeQuery("select GRP, count(*), sum(VAL) from events " +
+					"where ID >= 100 group by GRP order by GRP desc");
+				assertTrue(results.last());
+				assertEquals("Incorrect group count", 50, results.getRow());
+				assertEquals("Incorrect GRP", "G0", results.getString(1));
+				assertEquals("Incorrect count", 598, results.getInt(2));
+				assertEquals("Incorrect sum", 14950, results.getInt(3));
+				assertTrue(results.first());
+				assertEquals("Incorrect GRP", "G9", results.getString(1));
+				assertEquals("Incorrect count", 598, results.getInt(2));
+				assertEquals("Incorrect sum", 21528, results.getInt(3));
+				results.close();
+				stmt.close();
+				conn.close();
+			}
+		}
+		finally
+		{
+			file.delete();
+			dir.delete();
+		}
+	}
 }
@@ -24,7 +24,9 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
@@ -32,6 +34,10 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Properties;
 import java.util.TimeZone;
 
@@ -458,4 +464,232 @@ public class TestOrderBy
 				.executeQuery("SELECT Name, Job FROM sample4 WHERE ID='05' order by Name");
 		assertFalse(results.next());
 	}
+
+	@Test
+	public void testOrderByManyRows() throws SQLException, IOException
+	{
+		File dir = File.createTempFile("csvjdbc", "");
+		dir.delete();
+		dir.mkdir();
+		File file = new File(dir, "many.csv");
+		try
+		{
+			PrintWriter out = new PrintWriter(new FileWriter(file));
+			out.println("ID,VAL,NAME");
+			for (int i = 0; i < 5000; i++)
+			{
+				String val = (i % 13 == 0) ? "" : Integer.toString((i * 7919) % 101);
+				out.println(i + "," + val + ",N" + (i % 37));
+			}
+			out.close();
+
+			Properties props = new Properties();
+			props.put("columnTypes", "Int,Int,String");
+			Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + dir.getPath(), props);
+			Statement stmt = conn.createStatement();
+			ResultSet results = stmt.executeQuery("select ID, VAL, NAME from many " +
+				"order by VAL desc, NAME || 'X', ID * -1");
+			int rowCount = 0;
+			Integer lastVal = null;
+			String lastName = null;
+			int lastId = 0;
+			while (results.next())
+			{
+				Integer val = (Integer)results.getObject(2);
+				String name = results.getString(3);
+				int id = results.getInt(1);
+				if (rowCount > 0)
+				{
+					/*
+					 * Null values are sorted first, so come last in descending order.
+					 */
+					assertTrue("VAL not descending", val == null ||
+						(lastVal != null && lastVal.intValue() >= val.intValue()));
+					boolean sameVal = (val == null) ? (lastVal == null) : val.equals(lastVal);
+					if (sameVal)
+					{
+						assertTrue("NAME not ascending", (lastName + "X").compareTo(name + "X") <= 0);
+						if (lastName.equals(name))
+							assertTrue("ID not descending", lastId > id);
+					}
+				}
+				lastVal = val;
+				lastName = name;
+				lastId = id;
+				rowCount++;
+			}
+			assertEquals("Incorrect row count", 5000, rowCount);
+			conn.close();
+		}
+		finally
+		{
+			file.delete();
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testOrderBySortThreads() throws SQLException, IOException
+	{
+		File dir = File.createTempFile("csvjdbc", "");
+		dir.delete();
+		dir.mkdir();
+		File file = new File(dir, "many.csv");
+		try
+		{
+			PrintWriter out = new PrintWriter(new FileWriter(file));
+			out.println("ID,VAL,NAME");
+			for (int i = 0; i < 30000; i++)
+			{
+				String val = (i % 13 == 0) ? "" : Integer.toString((i * 7919) % 101);
+				out.println(i + "," + val + ",N" + (i % 37));
+			}
+			out.close();
+
+			Properties props = new Properties();
+			props.put("columnTypes", "Int,Int,String");
+			Properties threadProps = new Properties();
+			threadProps.putAll(props);
+			threadProps.put("sortThreads", "3");
+
+			/*
+			 * Rows with equal values keep the order they were read in both sorts.
+			 */
+			String sql = "select ID, VAL, NAME from many order by VAL desc, NAME";
+			List<String> expected = readAllRows(dir.getPath(), props, sql);
+			List<String> actual = readAllRows(dir.getPath(), threadProps, sql);
+			assertEquals("Incorrect row count", 30000, expected.size());
+			assertEquals("Incorrect sorted rows", expected, actual);
+
+			sql = "select ID from many order by NAME, ID desc limit 100 offset 50";
+			assertEquals("Incorrect limited rows", readAllRows(dir.getPath(), props, sql),
+				readAllRows(dir.getPath(), threadProps, sql));
+		}
+		finally
+		{
+			file.delete();
+			dir.delete();
+		}
+
+		Integer[] values = new Integer[20001];
+		for (int i = 0; i < values.length; i++)
+			values[i] = Integer.valueOf((i * 7919) % 1000);
+		Integer[] sorted = values.clone();
+		Arrays.sort(sorted);
+		Comparator<Integer> comparator = new Comparator<Integer>()
+		{
+			public int compare(Integer i1, Integer i2)
+			{
+				return i1.compareTo(i2);
+			}
+		};
+		ParallelSorter.sort(values, comparator, 5);
+		assertTrue("Incorrect parallel sort", Arrays.equals(sorted, values));
+
+		/*
+		 * Error in a sorting thread is thrown in the calling thread.
+		 */
+		for (int i = 0; i < values.length; i++)
+			values[i] = Integer.valueOf((i * 7919) % 1000);
+		values[100] = Integer.valueOf(-1);
+		comparator = new Comparator<Integer>()
+		{
+			public int compare(Integer i1, Integer i2)
+			{
+				if (i1.intValue() < 0 || i2.intValue() < 0)
+					throw new StackOverflowError("Test failure");
+				return i1.compareTo(i2);
+			}
+		};
+		try
+		{
+			ParallelSorter.sort(values, comparator, 5);
+			fail("Should raise a java.lang.StackOverflowError");
+		}
+		catch (StackOverflowError e)
+		{
+			assertEquals("Incorrect error", "Test failure", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testOrderByMemoryLimit() throws SQLException, IOException
+	{
+		File dir = File.createTempFile("csvjdbc", "");
+		dir.delete();
+		dir.mkdir();
+		File file = new File(dir, "wide.csv");
+		try
+		{
+			PrintWriter out = new PrintWriter(new FileWriter(file));
+			out.println("ID,VAL,NAME,D,AMOUNT,DESCRIPTION");
+			for (int i = 0; i < 20000; i++)
+			{
+				String val = (i % 13 == 0) ? "" : Integer.toString((i * 7919) % 101);
+				out.println(i + "," + val + ",N" + (i % 37) + ",2020-01-" + (10 + i % 20) +
+					"," + (i % 1000) / 8.0 + ",Description of row " + i + " \u00e9t\u00e9");
+			}
+			out.close();
+
+			Properties props = new Properties();
+			props.put("columnTypes", "Int,Int,String,Date,Double,String");
+			props.put("charset", "UTF-8");
+			props.put("memoryLimit", "0");
+			Properties fileProps = new Properties();
+			fileProps.putAll(props);
+			fileProps.put("memoryLimit", "100000");
+
+			/*
+			 * Records read from the file are the same as those kept in memory.
+			 */
+			String sql = "select * from wide order by VAL desc, D, NAME";
+			List<String> expected = readAllRows(dir.getPath(), props, sql);
+			List<String> actual = readAllRows(dir.getPath(), fileProps, sql);
+			assertEquals("Incorrect row count", 20000, expected.size());
+			assertEquals("Incorrect sorted rows", expected, actual);
+
+			sql = "select ID, DESCRIPTION from wide where AMOUNT > 10 order by AMOUNT, ID desc limit 2500 offset 1000";
+			expected = readAllRows(dir.getPath(), props, sql);
+			actual = readAllRows(dir.getPath(), fileProps, sql);
+			assertEquals("Incorrect row count", 2500, expected.size());
+			assertEquals("Incorrect limited rows", expected, actual);
+
+			Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + dir.getPath(), fileProps);
+			Statement stmt = conn.createStatement();
+			stmt.setFetchSize(7);
+			ResultSet results = stmt.executeQuery("select ID from wide order by ID desc");
+			for (int i = 19999; i >= 19000; i--)
+			{
+				assertTrue(results.next());
+				assertEquals("Incorrect ID", i, results.getInt(1));
+			}
+			results.close();
+			conn.close();
+		}
+		finally
+		{
+			file.delete();
+			dir.delete();
+		}
+	}
+
+	private List<String> readAllRows(String path, Properties props, String sql) throws SQLException
+	{
+		Connection conn = DriverManager.getConnection("jdbc:relique:csv:" + path, props);
+		Statement stmt = conn.createStatement();
+		ResultSet results = stmt.executeQuery(sql);
+		List<String> rows = new ArrayList<String>();
+		int columnCount = results.getMetaData().getColumnCount();
+		while (results.next())
+		{
+			StringBuilder sb = new StringBuilder();
+			for (int i = 1; i <= columnCount; i++)
+				sb.append(results.getObject(i)).append(",");
+			rows.add(sb.toString());
+		}
+		results.close();
+		stmt.close();
+		conn.close();
+		return rows;
+	}
 }
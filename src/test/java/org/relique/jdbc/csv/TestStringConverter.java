@@ -25,6 +25,7 @@ import java.sql.Date;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.text.DateFormat;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Locale;
 import java.util.TimeZone;
@@ -272,4 +273,75 @@ public class TestStringConverter
 		got = sc.parseTimestamp("25-NOV-13 01.29.07.000000 PM");
 		assertEquals("2013-11-25 13:29:07", toUTC.format(got));
 	}
+
+	@Test
+	public void testParseIsoFormats() throws ParseException
+	{
+		StringConverter sc = new StringConverter("YYYY-MM-DD", "HH:mm:ss", null, "Europe/Athens");
+
+		assertEquals(Date.valueOf("2013-11-25"), sc.parseDate("2013-11-25"));
+		assertEquals(Date.valueOf("2013-11-25"), sc.parseDate("2013-11-25 10:00"));
+		assertEquals(null, sc.parseDate("2013-13-25"));
+		assertEquals(null, sc.parseDate("2013-1-25"));
+		assertEquals(null, sc.parseDate("N/A"));
+
+		assertEquals(Time.valueOf("13:29:07"), sc.parseTime("13:29:07"));
+		assertEquals(Time.valueOf("09:05:00"), sc.parseTime("9:05:00"));
+		assertEquals(new SimpleDateFormat("HH:mm:ss").parse("25:00:00").getTime(),
+			sc.parseTime("25:00:00").getTime());
+		assertEquals(null, sc.parseTime("noon"));
+
+		Timestamp got = sc.parseTimestamp("2013-11-25 13:29:07");
+		assertEquals("2013-11-25 11:29:07", toUTC.format(got));
+		got = sc.parseTimestamp("2013-1-5T3:29:07.123");
+		assertEquals("2013-01-05 01:29:07", toUTC.format(got));
+		assertEquals(null, sc.parseTimestamp("13-11-25 13:29:07"));
+		assertEquals(null, sc.parseTimestamp("2013-11-25"));
+	}
+
+	@Test
+	public void testColumnConverter()
+	{
+		StringConverter sc = new StringConverter("YYYY-MM-DD", "HH:mm:ss", null, "UTC");
+
+		assertEquals(Integer.valueOf(42), sc.getColumnConverter("Int").convert("42"));
+		assertEquals(Integer.valueOf(42), sc.getColumnConverter("integer").convert("42"));
+		assertEquals(Double.valueOf(2.5), sc.getColumnConverter("Double").convert("2,5"));
+		assertEquals(Date.valueOf("2013-11-25"), sc.getColumnConverter("Date").convert("2013-11-25"));
+		assertEquals("x", sc.getColumnConverter("Varchar").convert("x"));
+		assertEquals("x", sc.getColumnConverter(null).convert("x"));
+	}
+
+	@Test
+	public void testNumberParser()
+	{
+		NumberParser parser = new NumberParser();
+
+		assertEquals(NumberParser.OK, parser.parseLong("x-42x", 1, 4));
+		assertEquals(-42, parser.getLong());
+		assertEquals(NumberParser.OK, parser.parseLong("-9223372036854775808", 0, 20));
+		assertEquals(Long.MIN_VALUE, parser.getLong());
+		assertEquals(NumberParser.OUT_OF_RANGE, parser.parseLong("9223372036854775808", 0, 19));
+		assertEquals(NumberParser.OUT_OF_RANGE, parser.parseLong("128", 0, 3, Byte.MIN_VALUE, Byte.MAX_VALUE));
+		assertEquals(NumberParser.EMPTY, parser.parseLong("", 0, 0));
+		assertEquals(NumberParser.INVALID, parser.parseLong("N/A", 0, 3));
+		assertEquals(NumberParser.INVALID, parser.parseLong("-", 0, 1));
+
+		assertEquals(NumberParser.OK, parser.parseDouble(" 2,75 ", 0, 6, true));
+		assertEquals(2.75, parser.getDouble(), 0);
+		assertEquals(NumberParser.INVALID, parser.parseDouble("2,75", 0, 4, false));
+		assertEquals(NumberParser.OK, parser.parseDouble("1.5e-3", 0, 6, false));
+		assertEquals(0.0015, parser.getDouble(), 0);
+		assertEquals(NumberParser.OK, parser.parseDouble("0.30000000000000000004", 0, 22, false));
+		assertEquals(0.3, parser.getDouble(), 0);
+		assertEquals(NumberParser.OK, parser.parseDouble("-Infinity", 0, 9, false));
+		assertEquals(Double.NEGATIVE_INFINITY, parser.getDouble(), 0);
+		assertEquals(NumberParser.INVALID, parser.parseDouble("1e", 0, 2, false));
+		assertEquals(NumberParser.INVALID, parser.parseDouble(".", 0, 1, false));
+		assertEquals(NumberParser.EMPTY, parser.parseDouble("  ", 0, 2, false));
+
+		assertEquals(NumberParser.OK, parser.checkDecimal("8.65e-6", 0, 7));
+		assertEquals(NumberParser.INVALID, parser.checkDecimal("8.6.5", 0, 5));
+		assertEquals(NumberParser.INVALID, parser.checkDecimal(" 1", 0, 2));
+	}
 }
@@ -24,6 +24,7 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -34,6 +35,9 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Properties;
 import java.util.TimeZone;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -219,4 +223,125 @@ public class TestZipFiles
 		assertTrue(results.next());
 		assertEquals("UTF-16 encoding is wrong", "\u00A9 Copyright", results.getString(1));
 	}
+
+	private byte[] createRows(int firstId, int rowCount) throws IOException
+	{
+		StringBuilder sb = new StringBuilder("ID,NAME\n");
+		for (int i = firstId; i < firstId + rowCount; i++)
+			sb.append(i).append(",N").append(i % 37).append('\n');
+		return sb.toString().getBytes("US-ASCII");
+	}
+
+	private void addEntry(ZipOutputStream out, String name, byte[] data, boolean isStored) throws IOException
+	{
+		ZipEntry entry = new ZipEntry(name);
+		if (isStored)
+		{
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(data.length);
+			entry.setCrc(crc.getValue());
+		}
+		out.putNextEntry(entry);
+		out.write(data);
+		out.closeEntry();
+	}
+
+	@Test
+	public void testStoredEntries() throws SQLException, IOException
+	{
+		File zipFile = File.createTempFile("csvjdbc", ".zip");
+		try
+		{
+			ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipFile));
+			out.setComment("test file");
+			addEntry(out, "deflated.csv", createRows(0, 5000), false);
+			addEntry(out, "stored.csv", createRows(0, 5000), true);
+			addEntry(out, "empty.csv", "ID,NAME\n".getBytes("US-ASCII"), true);
+			out.close();
+
+			Connection conn = DriverManager.getConnection("jdbc:relique:csv:zip:" + zipFile.getPath());
+			Statement stmt = conn.createStatement();
+			ResultSet results1 = stmt.executeQuery("SELECT * FROM deflated");
+			Statement stmt2 = conn.createStatement();
+			ResultSet results2 = stmt2.executeQuery("SELECT * FROM stored");
+			int rowCount = 0;
+			while (results1.next())
+			{
+				assertTrue(results2.next());
+				assertEquals("The ID is wrong", results1.getString("ID"), results2.getString("ID"));
+				assertEquals("The NAME is wrong", results1.getString("NAME"), results2.getString("NAME"));
+				rowCount++;
+			}
+			assertFalse(results2.next());
+			assertEquals("Incorrect row count", 5000, rowCount);
+
+			results1 = stmt.executeQuery("SELECT * FROM empty");
+			assertFalse(results1.next());
+			conn.close();
+		}
+		finally
+		{
+			zipFile.delete();
+		}
+	}
+
+	@Test
+	public void testIndexedFiles() throws SQLException, IOException
+	{
+		File zipFile = File.createTempFile("csvjdbc", ".zip");
+		try
+		{
+			ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipFile));
+			addEntry(out, "part-3.csv", createRows(6000, 3000), false);
+			addEntry(out, "part-1.csv", createRows(0, 3000), false);
+			addEntry(out, "part-2.csv", createRows(3000, 3000), true);
+			addEntry(out, "other.csv", createRows(0, 10), false);
+			out.close();
+
+			String[] threadCounts = new String[]{"1", "3"};
+			for (int i = 0; i < threadCounts.length; i++)
+			{
+				Properties props = new Properties();
+				props.put("indexedFiles", "true");
+				props.put("fileTailPattern", "-([0-9]+)");
+				props.put("fileTailParts", "PART");
+				props.put("decompressionThreads", threadCounts[i]);
+				Connection conn = DriverManager.getConnection("jdbc:relique:csv:zip:" + zipFile.getPath(), props);
+				Statement stmt = conn.createStatement();
+
+				/*
+				 * Rows of all entries are read in order of entry names.
+				 */
+				ResultSet results = stmt.executeQuery("SELECT ID, PART FROM part");
+				int rowCount = 0;
+				while (results.next())
+				{
+					assertEquals("The ID is wrong", "" + rowCount, results.getString(1));
+					assertEquals("The PART is wrong", "" + (rowCount / 3000 + 1), results.getString(2));
+					rowCount++;
+				}
+				assertEquals("Incorrect row count with threads " + threadCounts[i], 9000, rowCount);
+
+				results = stmt.executeQuery("SELECT COUNT(*) FROM part WHERE PART = '2' AND NAME = 'N5'");
+				assertTrue(results.next());
+				assertEquals("Incorrect count", 82, results.getInt(1));
+
+				/*
+				 * Closing before all entries are read also closes the
+				 * entries that were opened in advance.
+				 */
+				results = stmt.executeQuery("SELECT ID FROM part");
+				assertTrue(results.next());
+				assertEquals("The ID is wrong", "0", results.getString(1));
+				results.close();
+				conn.close();
+			}
+		}
+		finally
+		{
+			zipFile.delete();
+		}
+	}
 }